@@ -0,0 +1,105 @@
+package com.zsm.whiteboard.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.zsm.whiteboard.image.Homography;
+import com.zsm.whiteboard.image.Nv21Processor;
+import com.zsm.whiteboard.image.ParallelExecutor;
+import com.zsm.whiteboard.image.PerspectiveWarper;
+import com.zsm.whiteboard.image.QuadDetector;
+
+/**
+ * Detection of the board in the downscaled luma, and rectification of the
+ * board in a frame sized picture.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BoardBenchmark {
+
+	private static final int ANALYSIS_WIDTH = 240;
+	private static final int WARP_BAND_ROWS = 64;
+
+	@Param({ "640x480", "1280x720", "1920x1080" })
+	public String size;
+
+	private int mWidth;
+	private int mHeight;
+	private ParallelExecutor mExecutor;
+	private QuadDetector mDetector;
+	private byte[] mLuma;
+	private int mLumaWidth;
+	private int mLumaHeight;
+	private float[] mQuad;
+	private PerspectiveWarper mWarper;
+	private int[] mArgb;
+	private Homography mHomography;
+	private int mOutWidth;
+	private int mOutHeight;
+	private int[] mBand;
+
+	@Setup
+	public void setUp() {
+		int[] wh = SyntheticFrames.parseSize( size );
+		mWidth = wh[0];
+		mHeight = wh[1];
+		byte[] frame = SyntheticFrames.whiteboardNv21( mWidth, mHeight, 1 );
+		mExecutor = new ParallelExecutor();
+		Nv21Processor processor = new Nv21Processor( mExecutor );
+
+		int factor = Math.max( 1, mWidth/ANALYSIS_WIDTH );
+		mLumaWidth = mWidth/factor;
+		mLumaHeight = mHeight/factor;
+		mLuma = new byte[mLumaWidth*mLumaHeight];
+		processor.downscaleLuma( frame, mWidth, mHeight, factor, mLuma );
+		// Budget large enough to measure the whole detection
+		mDetector = new QuadDetector( TimeUnit.SECONDS.toNanos( 10 ) );
+		mQuad = new float[QuadDetector.QUAD_SIZE];
+
+		mArgb = new int[mWidth*mHeight];
+		processor.toArgb( frame, mWidth, mHeight, mArgb );
+		mWarper = new PerspectiveWarper( mExecutor );
+		float[] quad = SyntheticFrames.boardQuad();
+		int[] outSize = new int[2];
+		Homography.rectifiedSize( quad, mWidth, mHeight, (long)mWidth*mHeight, outSize );
+		mOutWidth = outSize[0];
+		mOutHeight = outSize[1];
+		mHomography = Homography.rectToQuad( mOutWidth, mOutHeight, quad, mWidth, mHeight );
+		mBand = new int[mOutWidth*WARP_BAND_ROWS];
+	}
+
+	@TearDown
+	public void tearDown() {
+		mExecutor.shutdown();
+	}
+
+	@Benchmark
+	public boolean detectBoard() {
+		return mDetector.detect( mLuma, mLumaWidth, mLumaHeight, mQuad );
+	}
+
+	@Benchmark
+	public int[] rectifyBoard() {
+		for( int y = 0; y < mOutHeight; y += WARP_BAND_ROWS ) {
+			int rows = Math.min( WARP_BAND_ROWS, mOutHeight - y );
+			mWarper.warp( mArgb, mWidth, mHeight, mHomography, mBand, mOutWidth, y, rows );
+		}
+		return mBand;
+	}
+}
@@ -0,0 +1,91 @@
+package com.zsm.whiteboard.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.zsm.whiteboard.image.BoardEnhancer;
+import com.zsm.whiteboard.image.Homography;
+import com.zsm.whiteboard.image.Nv21Processor;
+import com.zsm.whiteboard.image.ParallelExecutor;
+import com.zsm.whiteboard.image.PerspectiveWarper;
+
+/**
+ * Rectification and enhancement of the board in a picture, as done by the
+ * keystone corrector with an enhancer set, without the decoding and the
+ * encoding of the JPEG.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EnhanceBenchmark {
+
+	// Frame sized, and the pictures of 8 and 12 megapixels
+	@Param({ "1920x1080", "3264x2448", "4032x3024" })
+	public String size;
+
+	private int mWidth;
+	private int mHeight;
+	private ParallelExecutor mExecutor;
+	private PerspectiveWarper mWarper;
+	private BoardEnhancer mEnhancer;
+	private int[] mArgb;
+	private Homography mHomography;
+	private int mOutWidth;
+	private int mOutHeight;
+	private int[] mOutput;
+
+	@Setup
+	public void setUp() {
+		int[] wh = SyntheticFrames.parseSize( size );
+		mWidth = wh[0];
+		mHeight = wh[1];
+		byte[] frame = SyntheticFrames.whiteboardNv21( mWidth, mHeight, 1 );
+		mExecutor = new ParallelExecutor();
+		mArgb = new int[mWidth*mHeight];
+		new Nv21Processor( mExecutor ).toArgb( frame, mWidth, mHeight, mArgb );
+		mWarper = new PerspectiveWarper( mExecutor );
+		mEnhancer = new BoardEnhancer( mExecutor );
+
+		float[] quad = SyntheticFrames.boardQuad();
+		int[] outSize = new int[2];
+		Homography.rectifiedSize( quad, mWidth, mHeight, (long)mWidth*mHeight, outSize );
+		mOutWidth = outSize[0];
+		mOutHeight = outSize[1];
+		mHomography = Homography.rectToQuad( mOutWidth, mOutHeight, quad, mWidth, mHeight );
+		mOutput = new int[mOutWidth*mOutHeight];
+	}
+
+	@TearDown
+	public void tearDown() {
+		mExecutor.shutdown();
+	}
+
+	@Benchmark
+	public int[] rectifyAndEnhance() {
+		mWarper.warp( mArgb, mWidth, mHeight, mHomography, mOutput, mOutWidth, 0, mOutHeight );
+		mEnhancer.enhance( mOutput, mOutWidth, mOutHeight );
+		return mOutput;
+	}
+
+	@Benchmark
+	public int[] rectifyAndEnhanceReusingBackground() {
+		mWarper.warp( mArgb, mWidth, mHeight, mHomography, mOutput, mOutWidth, 0, mOutHeight );
+		mEnhancer.enhance( mOutput, mOutWidth, mOutHeight, true );
+		return mOutput;
+	}
+}
@@ -0,0 +1,86 @@
+package com.zsm.whiteboard.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.zsm.whiteboard.image.Nv21Processor;
+import com.zsm.whiteboard.image.ParallelExecutor;
+
+/**
+ * Scan of the luma plane for its brightest pixel, done for every preview
+ * frame.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LumaScanBenchmark {
+
+	@Param({ "640x480", "1280x720", "1920x1080" })
+	public String size;
+
+	private int mWidth;
+	private int mHeight;
+	private byte[] mFrame;
+	private ParallelExecutor mExecutor;
+	private Nv21Processor mProcessor;
+
+	@Setup
+	public void setUp() {
+		int[] wh = SyntheticFrames.parseSize( size );
+		mWidth = wh[0];
+		mHeight = wh[1];
+		mFrame = SyntheticFrames.whiteboardNv21( mWidth, mHeight, 1 );
+		mExecutor = new ParallelExecutor();
+		mProcessor = new Nv21Processor( mExecutor );
+	}
+
+	@TearDown
+	public void tearDown() {
+		mExecutor.shutdown();
+	}
+
+	/**
+	 * The byte by byte scan the capture activity used to run on the UI
+	 * thread, kept as the baseline.
+	 */
+	@Benchmark
+	public int legacyScan() {
+		byte[] frameData = mFrame;
+		int max = 0;
+		int pos = 0;
+		int len = frameData.length*2/3;
+		for( int i = 0; i < len; i++ ) {
+			int data = frameData[i] & 0xFF;
+			if( data > max ) {
+				max = data;
+				pos = i;
+			}
+		}
+		return pos;
+	}
+
+	@Benchmark
+	public int chunkedScan() {
+		return Nv21Processor.findMaxLumaIndex( mFrame, 0, mWidth*mHeight );
+	}
+
+	@Benchmark
+	public int parallelScan() {
+		return mProcessor.maxLumaIndex( mFrame, mWidth, mHeight );
+	}
+}
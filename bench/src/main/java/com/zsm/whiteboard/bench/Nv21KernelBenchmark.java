@@ -0,0 +1,106 @@
+package com.zsm.whiteboard.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.zsm.whiteboard.image.Nv21Converter;
+import com.zsm.whiteboard.image.Nv21Processor;
+import com.zsm.whiteboard.image.ParallelExecutor;
+import com.zsm.whiteboard.image.Sharpness;
+
+/**
+ * Kernels run on the full preview frames.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class Nv21KernelBenchmark {
+
+	// Width of the luma the preview analysis runs on
+	private static final int ANALYSIS_WIDTH = 240;
+
+	@Param({ "640x480", "1280x720", "1920x1080" })
+	public String size;
+
+	private int mWidth;
+	private int mHeight;
+	private byte[] mFrame;
+	private ParallelExecutor mExecutor;
+	private Nv21Processor mProcessor;
+	private Nv21Converter mConverter;
+	private int[] mHistogram;
+	private byte[] mLuma;
+	private byte[] mDownscaled;
+	private int mDownscaleFactor;
+	private int[] mArgb;
+
+	@Setup
+	public void setUp() {
+		int[] wh = SyntheticFrames.parseSize( size );
+		mWidth = wh[0];
+		mHeight = wh[1];
+		mFrame = SyntheticFrames.whiteboardNv21( mWidth, mHeight, 1 );
+		mExecutor = new ParallelExecutor();
+		mProcessor = new Nv21Processor( mExecutor );
+		mConverter = new Nv21Converter( mExecutor );
+		mHistogram = new int[256];
+		mLuma = new byte[mWidth*mHeight];
+		mDownscaleFactor = Math.max( 1, mWidth/ANALYSIS_WIDTH );
+		mDownscaled = new byte[( mWidth/mDownscaleFactor )*( mHeight/mDownscaleFactor )];
+		mArgb = new int[mWidth*mHeight];
+	}
+
+	@TearDown
+	public void tearDown() {
+		mExecutor.shutdown();
+	}
+
+	@Benchmark
+	public int[] lumaHistogram() {
+		return mProcessor.lumaHistogram( mFrame, mWidth, mHeight, mHistogram );
+	}
+
+	@Benchmark
+	public byte[] threshold() {
+		mProcessor.threshold( mFrame, mWidth, mHeight, 128, mLuma );
+		return mLuma;
+	}
+
+	@Benchmark
+	public byte[] downscaleLuma() {
+		mProcessor.downscaleLuma( mFrame, mWidth, mHeight, mDownscaleFactor, mDownscaled );
+		return mDownscaled;
+	}
+
+	@Benchmark
+	public int[] toArgb() {
+		mProcessor.toArgb( mFrame, mWidth, mHeight, mArgb );
+		return mArgb;
+	}
+
+	@Benchmark
+	public int[] toArgbHalf() {
+		mConverter.convert( mFrame, mWidth, mHeight, 2, mArgb );
+		return mArgb;
+	}
+
+	@Benchmark
+	public double sharpness() {
+		return Sharpness.measure( mFrame, mWidth, mHeight );
+	}
+}
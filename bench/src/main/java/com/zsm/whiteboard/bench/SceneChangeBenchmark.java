@@ -0,0 +1,102 @@
+package com.zsm.whiteboard.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.zsm.whiteboard.analysis.SceneChangeDetector;
+import com.zsm.whiteboard.camera.SyntheticBoardSource;
+
+/**
+ * The scene change gate on a frame of the same scene, the common case while
+ * the board is only watched. The setup checks that the gate lets the frame
+ * with a short thin stroke added through, and holds the frames differing
+ * only by the noise or a slight change of the exposure, and fails otherwise.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SceneChangeBenchmark {
+
+	private static final int NOISE = 3;
+	private static final int EXPOSURE_SHIFT = 2;
+
+	@Param({ "640x480", "1280x720", "1920x1080" })
+	public String size;
+
+	private int mWidth;
+	private int mHeight;
+	private byte[] mUnchanged;
+	private SceneChangeDetector mDetector;
+
+	@Setup
+	public void setUp() {
+		int[] wh = SyntheticFrames.parseSize( size );
+		mWidth = wh[0];
+		mHeight = wh[1];
+		byte[] frame = SyntheticFrames.whiteboardNv21( mWidth, mHeight, 1 );
+		Random random = new Random( 2 );
+		mUnchanged = addNoise( frame, random );
+
+		byte[] exposed = addNoise( frame, random );
+		for( int i = 0; i < mWidth*mHeight; i++ ) {
+			exposed[i] = (byte)Math.min( 255, ( exposed[i] & 0xFF ) + EXPOSURE_SHIFT );
+		}
+
+		// A word of a thin pen, short and horizontal, so it crosses only the
+		// columns read
+		byte[] stroke = addNoise( frame, random );
+		int length = mWidth/20;
+		int x0 = mWidth*3/5;
+		int y0 = mHeight*2/5 + 3;
+		for( int y = y0; y < y0 + 2; y++ ) {
+			for( int x = x0; x < x0 + length; x++ ) {
+				stroke[y*mWidth + x] = (byte)SyntheticBoardSource.STROKE_LUMA;
+			}
+		}
+
+		SceneChangeDetector detector = new SceneChangeDetector();
+		check( detector.update( frame, mWidth, mHeight ), "first frame" );
+		check( !detector.update( mUnchanged, mWidth, mHeight ), "noise" );
+		check( !detector.update( exposed, mWidth, mHeight ), "exposure" );
+		check( detector.update( stroke, mWidth, mHeight ), "thin stroke" );
+
+		mDetector = new SceneChangeDetector();
+		mDetector.update( frame, mWidth, mHeight );
+	}
+
+	private byte[] addNoise( byte[] frame, Random random ) {
+		byte[] noisy = frame.clone();
+		for( int i = 0; i < mWidth*mHeight; i++ ) {
+			int luma = ( noisy[i] & 0xFF ) + random.nextInt( 2*NOISE + 1 ) - NOISE;
+			noisy[i] = (byte)Math.max( 0, Math.min( 255, luma ) );
+		}
+		return noisy;
+	}
+
+	private void check( boolean passed, String what ) {
+		if( !passed ) {
+			throw new IllegalStateException( "Scene change gate wrong at " + size
+											 + ": " + what );
+		}
+	}
+
+	@Benchmark
+	public boolean sameScene() {
+		return mDetector.update( mUnchanged, mWidth, mHeight );
+	}
+}
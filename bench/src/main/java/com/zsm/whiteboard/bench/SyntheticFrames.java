@@ -0,0 +1,79 @@
+package com.zsm.whiteboard.bench;
+
+import java.util.Random;
+
+import com.zsm.whiteboard.camera.SyntheticBoardSource;
+
+/**
+ * Synthetic preview frames of a whiteboard, so that the benchmarks run the
+ * kernels on data like what the camera delivers: the board of
+ * {@link SyntheticBoardSource}, with dark strokes and sensor noise added.
+ */
+public class SyntheticFrames {
+
+	private static final int NOISE = 6;
+	private static final int STROKES = 40;
+
+	private SyntheticFrames() {
+	}
+
+	/**
+	 * Parse the size of the frame in the form of "640x480".
+	 *
+	 * @param size the size
+	 * @return width and height
+	 */
+	public static int[] parseSize( String size ) {
+		int x = size.indexOf( 'x' );
+		return new int[]{ Integer.parseInt( size.substring( 0, x ) ),
+						  Integer.parseInt( size.substring( x + 1 ) ) };
+	}
+
+	/**
+	 * Corners of the board in the frames, normalized, top left, top right,
+	 * bottom right and bottom left.
+	 */
+	public static float[] boardQuad() {
+		return SyntheticBoardSource.boardQuad();
+	}
+
+	/**
+	 * Generate a frame in NV21.
+	 *
+	 * @param width width of the frame, even
+	 * @param height height of the frame, even
+	 * @param seed seed of the strokes and the noise
+	 * @return the frame
+	 */
+	public static byte[] whiteboardNv21( int width, int height, long seed ) {
+		Random random = new Random( seed );
+		byte[] frame = new byte[width*height*3/2];
+		SyntheticBoardSource.drawBoard( frame, width, height );
+
+		int thickness = Math.max( 2, width/320 );
+		for( int s = 0; s < STROKES; s++ ) {
+			int x0 = (int)( width*( 0.25f + 0.5f*random.nextFloat() ) );
+			int y0 = (int)( height*( 0.25f + 0.5f*random.nextFloat() ) );
+			int length = width/20 + random.nextInt( width/8 );
+			boolean horizontal = random.nextBoolean();
+			for( int i = 0; i < length; i++ ) {
+				for( int t = 0; t < thickness; t++ ) {
+					int x = horizontal ? x0 + i : x0 + t;
+					int y = horizontal ? y0 + t : y0 + i;
+					if( x < width && y < height ) {
+						frame[y*width + x] = (byte)SyntheticBoardSource.STROKE_LUMA;
+					}
+				}
+			}
+		}
+
+		for( int i = 0; i < width*height; i++ ) {
+			int luma = ( frame[i] & 0xFF ) + random.nextInt( 2*NOISE + 1 ) - NOISE;
+			frame[i] = (byte)Math.max( 0, Math.min( 255, luma ) );
+		}
+		for( int i = width*height; i < frame.length; i++ ) {
+			frame[i] = (byte)( 128 + random.nextInt( 5 ) - 2 );
+		}
+		return frame;
+	}
+}
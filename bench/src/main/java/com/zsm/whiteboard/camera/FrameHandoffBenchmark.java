@@ -0,0 +1,74 @@
+package com.zsm.whiteboard.camera;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.zsm.whiteboard.bench.SyntheticFrames;
+
+/**
+ * Handoff of a preview frame from the camera thread to the processing
+ * thread, as done for every frame, measured in one thread.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FrameHandoffBenchmark {
+
+	private static final int BUFFER_COUNT = 3;
+
+	@Param({ "640x480", "1280x720", "1920x1080" })
+	public String size;
+
+	private byte[] mFrame;
+	private byte[] mFrameCopy;
+	private final Object mLock = new Object();
+	private PreviewBufferRing mRing;
+	private FrameMailbox<byte[]> mMailbox;
+
+	@Setup
+	public void setUp() {
+		int[] wh = SyntheticFrames.parseSize( size );
+		mFrame = SyntheticFrames.whiteboardNv21( wh[0], wh[1], 1 );
+		mFrameCopy = new byte[mFrame.length];
+		mRing = new PreviewBufferRing( BUFFER_COUNT, mFrame.length );
+		mMailbox = new FrameMailbox<byte[]>();
+	}
+
+	/**
+	 * The frame copied under a lock, as the preview frame thread used to do,
+	 * kept as the baseline.
+	 */
+	@Benchmark
+	public byte[] legacyCopy() {
+		synchronized( mLock ) {
+			System.arraycopy( mFrame, 0, mFrameCopy, 0, mFrameCopy.length );
+		}
+		return mFrameCopy;
+	}
+
+	/**
+	 * The buffer checked out of the ring, posted to the mailbox, taken and
+	 * checked in again.
+	 */
+	@Benchmark
+	public boolean mailboxHandoff() {
+		byte[] buffer = mRing.getBuffer( 0 );
+		mRing.checkOut( buffer );
+		mMailbox.post( buffer );
+		return mRing.checkIn( mMailbox.poll() );
+	}
+}
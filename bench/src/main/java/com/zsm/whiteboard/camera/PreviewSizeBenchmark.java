@@ -0,0 +1,74 @@
+package com.zsm.whiteboard.camera;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.zsm.whiteboard.bench.SyntheticFrames;
+import com.zsm.whiteboard.util.Size;
+
+/**
+ * Choice of the preview size among the sizes of a typical phone camera, as
+ * done by {@link CameraController} each time the preview is set up without
+ * a cached size.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PreviewSizeBenchmark {
+
+	// Sizes reported by a common back camera, in no order
+	private static final int[][] CAMERA_SIZES = {
+		{ 4032, 3024 }, { 4000, 3000 }, { 3264, 2448 }, { 3840, 2160 }, { 2592, 1944 },
+		{ 2688, 1512 }, { 2048, 1536 }, { 1920, 1440 }, { 1920, 1080 }, { 1600, 1200 },
+		{ 1440, 1080 }, { 1280, 960 }, { 1280, 720 }, { 1024, 768 }, { 960, 720 },
+		{ 800, 600 }, { 720, 480 }, { 640, 480 }, { 640, 360 }, { 352, 288 },
+		{ 320, 240 }, { 176, 144 }
+	};
+	private static final int MAX_PREVIEW_WIDTH = 1920;
+	private static final int MAX_PREVIEW_HEIGHT = 1080;
+
+	// Size of the view, in the sensor coordinate
+	@Param({ "1280x720", "1920x1080", "2560x1440" })
+	public String view;
+
+	private List<Size> mChoices;
+	private Size mLargest;
+	private int mViewWidth;
+	private int mViewHeight;
+
+	@Setup
+	public void setUp() {
+		mChoices = new ArrayList<Size>();
+		for( int[] s : CAMERA_SIZES ) {
+			mChoices.add( new Size( s[0], s[1] ) );
+		}
+		mLargest = Collections.max( mChoices, SizeChooser.BY_AREA );
+		int[] wh = SyntheticFrames.parseSize( view );
+		mViewWidth = wh[0];
+		mViewHeight = wh[1];
+	}
+
+	@Benchmark
+	public Size chooseOptimalSize() {
+		return SizeChooser.chooseOptimalSize( mChoices, mViewWidth, mViewHeight,
+											  MAX_PREVIEW_WIDTH, MAX_PREVIEW_HEIGHT,
+											  mLargest );
+	}
+}
@@ -0,0 +1,129 @@
+package com.zsm.whiteboard.analysis;
+
+import com.zsm.log.Log;
+import com.zsm.whiteboard.camera.PipelineMetrics;
+
+/**
+ * Choose the width of the luma the frames are analyzed in, to hold the rate
+ * of the analysis. The processing time and the frames dropped before the
+ * analysis are watched in windows. The width steps down when the analysis
+ * falls behind the target rate, and steps up when it has had plenty of
+ * headroom for a few windows in a row. Only the analysis is scaled, the
+ * preview is never restarted. It MUST be used in the thread analyzing the
+ * frames.
+ */
+public class AnalysisRateController {
+
+	// Widths of the analysis, from the finest to the coarsest
+	private static final int[] WIDTHS = { 320, 240, 160, 120 };
+	private static final int DEFAULT_LEVEL = 1;
+	private static final float DEFAULT_TARGET_FPS = 15;
+	private static final long WINDOW_NANOS = 1000L*1000*1000;
+	// Frames dropped more than the ratio of the ones delivered is falling behind
+	private static final float MAX_DROP_RATIO = .2f;
+	// Processing less than the ratio of the budget is headroom
+	private static final float HEADROOM_RATIO = .5f;
+	// Windows in a row with headroom to step up
+	private static final int HEADROOM_WINDOWS = 3;
+
+	private final PipelineMetrics mMetrics;
+	private final long mBudgetNanos;
+	private final float mTargetFps;
+	private int mLevel = DEFAULT_LEVEL;
+
+	// Statistics of the current window
+	private long mWindowStart;
+	private int mFrames;
+	private long mProcessingNanos;
+	private long mDroppedBase;
+	private int mHeadroomWindows;
+
+	public AnalysisRateController( PipelineMetrics metrics ) {
+		this( metrics, DEFAULT_TARGET_FPS );
+	}
+
+	/**
+	 * @param metrics metrics to read the frames dropped from
+	 * @param targetFps frames per second to analyze
+	 */
+	public AnalysisRateController( PipelineMetrics metrics, float targetFps ) {
+		mMetrics = metrics;
+		mTargetFps = targetFps;
+		mBudgetNanos = (long)( 1e9/targetFps );
+	}
+
+	/**
+	 * @return width of the luma to analyze the frames in
+	 */
+	public int getAnalysisWidth() {
+		return WIDTHS[mLevel];
+	}
+
+	/**
+	 * A frame has been analyzed. The width may be changed for the following
+	 * frames.
+	 *
+	 * @param processingNanos time to analyze the frame
+	 */
+	public void onFrameAnalyzed( long processingNanos ) {
+		long now = System.nanoTime();
+		if( mWindowStart == 0 ) {
+			startWindow( now );
+			return;
+		}
+		mFrames++;
+		mProcessingNanos += processingNanos;
+		long elapsed = now - mWindowStart;
+		if( elapsed < WINDOW_NANOS ) {
+			return;
+		}
+
+		long dropped = droppedFrames() - mDroppedBase;
+		if( dropped < 0 ) {
+			// The metrics have been reset
+			dropped = 0;
+		}
+		float fps = mFrames*1e9f/elapsed;
+		long meanNanos = mProcessingNanos/mFrames;
+		float dropRatio = (float)dropped/( dropped + mFrames );
+
+		if( fps < mTargetFps && ( dropRatio > MAX_DROP_RATIO || meanNanos > mBudgetNanos ) ) {
+			mHeadroomWindows = 0;
+			if( mLevel < WIDTHS.length - 1 ) {
+				mLevel++;
+				Log.d( "Analysis falls behind, step down.", "fps", fps, "mean ms",
+					   meanNanos/1e6, "dropped", dropped, "width", WIDTHS[mLevel] );
+			}
+		} else if( meanNanos < mBudgetNanos*HEADROOM_RATIO && dropRatio <= MAX_DROP_RATIO/4 ) {
+			if( ++mHeadroomWindows >= HEADROOM_WINDOWS && mLevel > 0 ) {
+				mHeadroomWindows = 0;
+				mLevel--;
+				Log.d( "Analysis has headroom, step up.", "fps", fps, "mean ms",
+					   meanNanos/1e6, "width", WIDTHS[mLevel] );
+			}
+		} else {
+			mHeadroomWindows = 0;
+		}
+		startWindow( now );
+	}
+
+	/**
+	 * Start watching again, for example when the preview starts again.
+	 */
+	public void reset() {
+		mWindowStart = 0;
+		mHeadroomWindows = 0;
+	}
+
+	private void startWindow( long now ) {
+		mWindowStart = now;
+		mFrames = 0;
+		mProcessingNanos = 0;
+		mDroppedBase = droppedFrames();
+	}
+
+	private long droppedFrames() {
+		return mMetrics.getCount( PipelineMetrics.COUNTER.SKIPPED_BUSY )
+			   + mMetrics.getCount( PipelineMetrics.COUNTER.SKIPPED_STALE );
+	}
+}
@@ -0,0 +1,178 @@
+package com.zsm.whiteboard.analysis;
+
+import com.zsm.log.Log;
+import com.zsm.whiteboard.camera.CameraController;
+import com.zsm.whiteboard.image.QuadDetector;
+import com.zsm.whiteboard.image.Sharpness;
+
+/**
+ * Take a picture by itself when the content of the board has changed since
+ * the last one taken, such as written or erased, and then stays still and
+ * sharp for a while, so that a meeting can be captured unattended.
+ * <p>The content is the mean luma of the cells of a coarse grid over the board,
+ * or over the frame if no board is detected, in the downscaled luma. A
+ * change of the content from the former frame analyzed restarts the wait for
+ * it to be still, and the frames not analyzed as the scene has not changed
+ * count as still. It MUST be used in the thread analyzing the frames.
+ */
+public class AutoCapture {
+
+	public interface Listener {
+		/**
+		 * Take a picture now. It is invoked in the thread analyzing the frames.
+		 *
+		 * @return true, if the picture will be taken; false, if it cannot be
+		 * 			now, such as the pictures waiting to be saved are too
+		 * 			many, and it will be tried again for the following frames
+		 */
+		boolean onAutoCapture();
+	}
+
+	private static final int GRID_COLUMNS = 16;
+	private static final int GRID_ROWS = 12;
+	// Difference of a cell, in the levels of luma, from which it has changed
+	private static final int CELL_THRESHOLD = 8;
+	// Cells changed from which the content has changed
+	private static final int MIN_CHANGED_CELLS = 2;
+	// The content must be still for so long to be taken
+	private static final long STABLE_NANOS = 2000L*1000*1000;
+	private static final long MIN_CAPTURE_INTERVAL_NANOS = 10000L*1000*1000;
+	// The sharpness below the ratio of the best since the content changed is
+	// still being focused
+	private static final double SHARPNESS_RATIO = .8;
+
+	private final CameraController mController;
+	private final Listener mListener;
+
+	private final int[] mContent = new int[GRID_COLUMNS*GRID_ROWS];
+	private final int[] mFormer = new int[GRID_COLUMNS*GRID_ROWS];
+	private final int[] mCaptured = new int[GRID_COLUMNS*GRID_ROWS];
+	private final int[] mCellSums = new int[GRID_COLUMNS*GRID_ROWS];
+	private final int[] mCellCounts = new int[GRID_COLUMNS*GRID_ROWS];
+	private boolean mContentValid;
+	private boolean mCapturedValid;
+	private long mStableSince;
+	private double mSharpness;
+	private double mBestSharpness;
+	private long mLastCapture;
+	private int mCaptures;
+
+	public AutoCapture( CameraController controller, Listener listener ) {
+		mController = controller;
+		mListener = listener;
+	}
+
+	/**
+	 * A frame has been analyzed.
+	 *
+	 * @param luma downscaled luma of the frame
+	 * @param width width of the luma
+	 * @param height height of the luma
+	 * @param boardQuad corners of the board normalized by the size of the
+	 * 			frame, or null if no board detected
+	 */
+	public void update( byte[] luma, int width, int height, float[] boardQuad ) {
+		long now = System.nanoTime();
+		float left = 0, top = 0, right = 1, bottom = 1;
+		if( boardQuad != null ) {
+			left = top = 1;
+			right = bottom = 0;
+			for( int i = 0; i < QuadDetector.QUAD_SIZE; i += 2 ) {
+				left = Math.min( left, boardQuad[i] );
+				right = Math.max( right, boardQuad[i] );
+				top = Math.min( top, boardQuad[i+1] );
+				bottom = Math.max( bottom, boardQuad[i+1] );
+			}
+		}
+		int x0 = Math.max( 0, (int)( left*width ) );
+		int y0 = Math.max( 0, (int)( top*height ) );
+		int x1 = Math.min( width, (int)( right*width ) );
+		int y1 = Math.min( height, (int)( bottom*height ) );
+		if( x1 - x0 < GRID_COLUMNS || y1 - y0 < GRID_ROWS ) {
+			return;
+		}
+		measureContent( luma, width, x0, y0, x1, y1 );
+		mSharpness = Sharpness.measure( luma, width, height, x0, y0, x1, y1 );
+
+		if( !mContentValid || changedCells( mContent, mFormer ) >= MIN_CHANGED_CELLS ) {
+			mStableSince = now;
+			mBestSharpness = mSharpness;
+		} else {
+			mBestSharpness = Math.max( mBestSharpness, mSharpness );
+		}
+		System.arraycopy( mContent, 0, mFormer, 0, mFormer.length );
+		mContentValid = true;
+		check( now );
+	}
+
+	/**
+	 * A frame has not been analyzed, as the scene has not changed.
+	 */
+	public void onUnchangedFrame() {
+		if( mContentValid ) {
+			check( System.nanoTime() );
+		}
+	}
+
+	/**
+	 * Forget the content, for example when the preview starts again. The
+	 * content of the last picture taken is kept.
+	 */
+	public void reset() {
+		mContentValid = false;
+	}
+
+	private void check( long now ) {
+		if( now - mStableSince < STABLE_NANOS
+			|| ( mCaptures > 0 && now - mLastCapture < MIN_CAPTURE_INTERVAL_NANOS )
+			|| ( mCapturedValid && changedCells( mContent, mCaptured ) < MIN_CHANGED_CELLS )
+			|| mSharpness < mBestSharpness*SHARPNESS_RATIO
+			|| mController.isFocusing() ) {
+
+			return;
+		}
+		// Taken as captured only when accepted, so a board whose picture
+		// cannot be taken now is taken later
+		if( !mListener.onAutoCapture() ) {
+			Log.d( "Board changed and still, but the picture cannot be taken now." );
+			return;
+		}
+		System.arraycopy( mContent, 0, mCaptured, 0, mCaptured.length );
+		mCapturedValid = true;
+		mLastCapture = now;
+		mCaptures++;
+		Log.d( "Board changed and still, take a picture.", "captures", mCaptures,
+			   "sharpness", mSharpness );
+	}
+
+	private void measureContent( byte[] luma, int width, int x0, int y0, int x1, int y1 ) {
+		for( int i = 0; i < mCellSums.length; i++ ) {
+			mCellSums[i] = 0;
+			mCellCounts[i] = 0;
+		}
+		int w = x1 - x0;
+		int h = y1 - y0;
+		for( int y = y0; y < y1; y++ ) {
+			int row = ( y - y0 )*GRID_ROWS/h*GRID_COLUMNS;
+			int i = y*width + x0;
+			for( int x = 0; x < w; x++, i++ ) {
+				int cell = row + x*GRID_COLUMNS/w;
+				mCellSums[cell] += luma[i] & 0xFF;
+				mCellCounts[cell]++;
+			}
+		}
+		for( int i = 0; i < mContent.length; i++ ) {
+			mContent[i] = mCellSums[i]/Math.max( 1, mCellCounts[i] );
+		}
+	}
+
+	private static int changedCells( int[] a, int[] b ) {
+		int changed = 0;
+		for( int i = 0; i < a.length; i++ ) {
+			if( Math.abs( a[i] - b[i] ) >= CELL_THRESHOLD ) {
+				changed++;
+			}
+		}
+		return changed;
+	}
+}
@@ -0,0 +1,79 @@
+package com.zsm.whiteboard.analysis;
+
+import com.zsm.whiteboard.image.QuadDetector;
+import com.zsm.whiteboard.image.QuadTracker;
+
+/**
+ * Detect the board in the downscaled luma of the preview frames, and smooth
+ * the result across the frames. When the detection runs out of its time
+ * budget, the luma is further decimated for the following frames.
+ */
+public class BoardDetector {
+
+	private static final long BUDGET_NANOS = 15*1000*1000;
+	private static final int MAX_DECIMATION = 4;
+
+	private final QuadDetector mDetector = new QuadDetector( BUDGET_NANOS );
+	private final QuadTracker mTracker = new QuadTracker();
+	private final float[] mDetected = new float[QuadDetector.QUAD_SIZE];
+	private int mDecimation = 1;
+	private byte[] mDecimated;
+
+	/**
+	 * Detect the board in the luma, and update the result.
+	 *
+	 * @param luma downscaled luma of a frame
+	 * @param width width of the luma
+	 * @param height height of the luma
+	 * @return true, if the result is valid after updated
+	 */
+	public boolean detect( byte[] luma, int width, int height ) {
+		byte[] source = luma;
+		int w = width;
+		int h = height;
+		if( mDecimation > 1 ) {
+			w = width/mDecimation;
+			h = height/mDecimation;
+			if( mDecimated == null || mDecimated.length < w*h ) {
+				mDecimated = new byte[w*h];
+			}
+			decimate( luma, width, mDecimation, mDecimated, w, h );
+			source = mDecimated;
+		}
+
+		boolean found = mDetector.detect( source, w, h, mDetected );
+		if( mDetector.isTimedOut() && mDecimation < MAX_DECIMATION ) {
+			mDecimation++;
+		}
+		return mTracker.update( found ? mDetected : null );
+	}
+
+	/**
+	 * @param quad array of {@link QuadDetector#QUAD_SIZE} to copy the corners
+	 * 			to, normalized by the size of the frame
+	 * @return true, if the result is valid and copied
+	 */
+	public boolean getQuad( float[] quad ) {
+		return mTracker.getQuad( quad );
+	}
+
+	public boolean hasBoard() {
+		return mTracker.isValid();
+	}
+
+	public void reset() {
+		mTracker.reset();
+		mDecimation = 1;
+	}
+
+	private static void decimate( byte[] source, int width, int factor,
+								  byte[] output, int outWidth, int outHeight ) {
+		for( int y = 0; y < outHeight; y++ ) {
+			int s = y*factor*width;
+			int o = y*outWidth;
+			for( int x = 0; x < outWidth; x++, s += factor ) {
+				output[o + x] = source[s];
+			}
+		}
+	}
+}
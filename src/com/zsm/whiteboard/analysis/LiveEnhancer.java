@@ -0,0 +1,228 @@
+package com.zsm.whiteboard.analysis;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+
+import com.zsm.log.Log;
+import com.zsm.whiteboard.image.BoardEnhancer;
+import com.zsm.whiteboard.image.Homography;
+import com.zsm.whiteboard.image.Nv21Converter;
+import com.zsm.whiteboard.image.ParallelExecutor;
+import com.zsm.whiteboard.image.PerspectiveWarper;
+import com.zsm.whiteboard.image.QuadDetector;
+import com.zsm.whiteboard.ui.PreviewOperator;
+
+/**
+ * Show the board rectified and enhanced on the {@link PreviewOperator} as the
+ * preview goes, in a reduced resolution. The background of the board is
+ * estimated again only when the board moves, or once in a while, otherwise
+ * the former one is reused.
+ * <p>The board is rendered into two bitmaps in turn. The one shown is never
+ * written, and a frame coming while the other is still waiting for the UI
+ * thread is skipped, so the rendering never waits for the UI thread, and the
+ * UI thread at most waits for a bitmap being copied. The bitmaps are
+ * allocated for the largest board once, and reconfigured to the size of the
+ * board, so no bitmap is allocated after that.
+ * <p>The frame is converted by {@link #convertFrame} before it is released,
+ * and rendered by {@link #render} after, both in the thread analyzing the
+ * frames.
+ */
+public class LiveEnhancer {
+
+	// Max pixels of the board rendered
+	private static final int MAX_AREA = 480*360;
+	// The background is estimated again when a corner of the board moves
+	// farther, normalized by the size of the frame
+	private static final float MAX_CORNER_SHIFT = .02f;
+	// The background is estimated again after so many frames anyway
+	private static final int BACKGROUND_REFRESH_FRAMES = 60;
+
+	private final PerspectiveWarper mWarper;
+	private final BoardEnhancer mEnhancer;
+	private final Nv21Converter mConverter;
+	private final PreviewOperator mPreviewOperator;
+	private final Handler mUiHandler;
+
+	// Owned by the analyzing thread
+	private int[] mFrame;
+	private int mFrameWidth;
+	private int mFrameHeight;
+	private boolean mConverted;
+	private final int[] mOutput = new int[MAX_AREA];
+	private final int[] mSize = new int[2];
+	private final float[] mBackgroundQuad = new float[QuadDetector.QUAD_SIZE];
+	private boolean mBackgroundValid;
+	private int mFramesSinceBackground;
+
+	// The bitmaps, and which is shown and whether the other is pending,
+	// guarded by mBitmaps
+	private final Bitmap[] mBitmaps = new Bitmap[2];
+	private int mShown = -1;
+	private boolean mPending;
+	private boolean mHidden = true;
+	private boolean mReleased;
+
+	private final Runnable mSwapper = new Runnable() {
+		@Override
+		public void run() {
+			swap();
+		}
+	};
+
+	public LiveEnhancer( ParallelExecutor executor, PreviewOperator operator,
+						 Handler uiHandler ) {
+		mWarper = new PerspectiveWarper( executor );
+		mEnhancer = new BoardEnhancer( executor );
+		mConverter = new Nv21Converter( executor );
+		mPreviewOperator = operator;
+		mUiHandler = uiHandler;
+	}
+
+	/**
+	 * Convert the frame to be rendered, unless the former rendering is still
+	 * waiting for the UI thread. It is downsampled by the largest factor
+	 * supported not over the one of the analysis, so the conversion is held
+	 * along with the rate of the analysis.
+	 *
+	 * @param nv21 the frame
+	 * @param width width of the frame
+	 * @param height height of the frame
+	 * @param analysisFactor factor the frame is downscaled by to be analyzed
+	 */
+	public void convertFrame( byte[] nv21, int width, int height, int analysisFactor ) {
+		synchronized( mBitmaps ) {
+			mConverted = !mPending;
+		}
+		if( !mConverted ) {
+			return;
+		}
+		int factor = analysisFactor >= 4 ? 4 : ( analysisFactor >= 2 ? 2 : 1 );
+		int w = Nv21Converter.outputWidth( width, factor );
+		int h = Nv21Converter.outputHeight( height, factor );
+		if( mFrame == null || mFrame.length != w*h ) {
+			mFrame = new int[w*h];
+			mBackgroundValid = false;
+		}
+		mFrameWidth = w;
+		mFrameHeight = h;
+		mConverter.convert( nv21, width, height, factor, mFrame );
+	}
+
+	/**
+	 * Render the board of the frame converted, and post it to be shown.
+	 *
+	 * @param quad corners of the board normalized by the size of the frame,
+	 * 			or null to hide the board shown
+	 */
+	public void render( float[] quad ) {
+		if( quad == null ) {
+			hide();
+			return;
+		}
+		if( !mConverted ) {
+			return;
+		}
+		mConverted = false;
+
+		boolean reuse = mBackgroundValid && !boardMoved( quad )
+						&& mFramesSinceBackground < BACKGROUND_REFRESH_FRAMES;
+		if( !reuse ) {
+			// The size is kept with the background, so that it can be reused
+			Homography.rectifiedSize( quad, mFrameWidth, mFrameHeight, MAX_AREA, mSize );
+		}
+		int width = mSize[0];
+		int height = mSize[1];
+		Homography homography
+			= Homography.rectToQuad( width, height, quad, mFrameWidth, mFrameHeight );
+		mWarper.warp( mFrame, mFrameWidth, mFrameHeight, homography, mOutput, width, 0,
+					  height );
+		if( mEnhancer.enhance( mOutput, width, height, reuse ) ) {
+			System.arraycopy( quad, 0, mBackgroundQuad, 0, mBackgroundQuad.length );
+			mBackgroundValid = true;
+			mFramesSinceBackground = 0;
+		} else {
+			mFramesSinceBackground++;
+		}
+
+		synchronized( mBitmaps ) {
+			if( mReleased ) {
+				return;
+			}
+			// Not shown, and not to be shown until posted, so the UI thread
+			// only waits for it when the swap is just being posted
+			int index = mShown == 0 ? 1 : 0;
+			if( mBitmaps[index] == null ) {
+				mBitmaps[index]
+					= Bitmap.createBitmap( MAX_AREA, 1, Bitmap.Config.ARGB_8888 );
+			}
+			Bitmap back = mBitmaps[index];
+			back.reconfigure( width, height, Bitmap.Config.ARGB_8888 );
+			back.setPixels( mOutput, 0, width, 0, 0, width, height );
+			mPending = true;
+			mHidden = false;
+		}
+		mUiHandler.post( mSwapper );
+	}
+
+	private boolean boardMoved( float[] quad ) {
+		for( int i = 0; i < quad.length; i++ ) {
+			if( Math.abs( quad[i] - mBackgroundQuad[i] ) > MAX_CORNER_SHIFT ) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void hide() {
+		mConverted = false;
+		mBackgroundValid = false;
+		synchronized( mBitmaps ) {
+			if( mHidden ) {
+				return;
+			}
+			mHidden = true;
+		}
+		mUiHandler.post( mSwapper );
+	}
+
+	// In the UI thread
+	private void swap() {
+		Bitmap shown;
+		synchronized( mBitmaps ) {
+			if( mHidden ) {
+				mShown = -1;
+				mPending = false;
+				shown = null;
+			} else {
+				if( mPending ) {
+					mShown = mShown == 0 ? 1 : 0;
+					mPending = false;
+				}
+				shown = mShown < 0 ? null : mBitmaps[mShown];
+			}
+		}
+		mPreviewOperator.setEnhancedBitmap( shown );
+	}
+
+	/**
+	 * Hide the board, and release the bitmaps. Nothing is rendered after
+	 * that. It MUST be invoked in the UI thread.
+	 */
+	public void release() {
+		mUiHandler.removeCallbacks( mSwapper );
+		mPreviewOperator.setEnhancedBitmap( null );
+		synchronized( mBitmaps ) {
+			for( int i = 0; i < mBitmaps.length; i++ ) {
+				if( mBitmaps[i] != null ) {
+					mBitmaps[i].recycle();
+					mBitmaps[i] = null;
+				}
+			}
+			mShown = -1;
+			mPending = false;
+			mHidden = true;
+			mReleased = true;
+		}
+		Log.d( "Live enhancement released." );
+	}
+}
@@ -0,0 +1,322 @@
+package com.zsm.whiteboard.analysis;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+
+import com.zsm.whiteboard.camera.CameraController;
+import com.zsm.whiteboard.camera.CameraController.PREVIEW_FORMAT;
+import com.zsm.whiteboard.camera.PipelineMetrics;
+import com.zsm.whiteboard.camera.PreviewCallback;
+import com.zsm.whiteboard.image.Nv21Processor;
+import com.zsm.whiteboard.image.QuadDetector;
+import com.zsm.whiteboard.ui.PreviewOperator;
+
+/**
+ * Analyze the preview frames in the thread delivering them, mark the
+ * brightest spot and outline the board detected on the {@link PreviewOperator}.
+ * The frame is downscaled in parallel by the {@link Nv21Processor}, and the
+ * brightest spot is searched and the board detected in the downscaled luma. Only the update of the
+ * overlay is posted to the UI thread. All the buffers and the runnable are
+ * allocated once, so no garbage is produced for each frame. The width of the
+ * luma analyzed is chosen by the {@link AnalysisRateController}, to hold the
+ * rate of the analysis, and the frame enhanced live is converted in the same
+ * factor. A frame of the same scene as the one last analyzed,
+ * told by the {@link SceneChangeDetector}, is not analyzed, and the results
+ * shown are kept. The focus trigger is still fed with such frames, as a blur
+ * barely changes the scene.
+ */
+public class PreviewFrameAnalyzer implements PreviewCallback {
+
+	private static final int MARK_SIZE = 100;
+	private static final int MARK_COLOR = 0xFFFF0000;
+	private final CameraController mCameraController;
+	private final Nv21Processor mProcessor;
+	private final PreviewOperator mPreviewOperator;
+	private final Handler mUiHandler;
+	private final PipelineMetrics mMetrics;
+
+	private final int[] mMarkPixels = new int[MARK_SIZE*MARK_SIZE];
+	private final int[] mClearPixels = new int[MARK_SIZE*MARK_SIZE];
+	private final Runnable mOverlayUpdater;
+	private final BoardDetector mBoardDetector = new BoardDetector();
+	private final AnalysisRateController mRateController;
+	private final SceneChangeDetector mChangeDetector = new SceneChangeDetector();
+	private SharpnessFocusTrigger mFocusTrigger;
+	private LiveEnhancer mLiveEnhancer;
+	private AutoCapture mAutoCapture;
+	private volatile long mMinFrameIntervalNanos;
+	private long mLastFrameTime;
+	// Board for the focus trigger and the live enhancer, owned by the
+	// analyzing thread
+	private final float[] mFrameQuad = new float[QuadDetector.QUAD_SIZE];
+
+	// Downscaled luma of the frame, owned by the analyzing thread
+	private byte[] mAnalysisLuma;
+	private int mAnalysisFactor;
+	private int mAnalysisWidth;
+	private int mAnalysisHeight;
+	private int mLastFrameWidth;
+	private int mLastFrameHeight;
+
+	// Board detected, guarded by mBoardQuad
+	private final float[] mBoardQuad = new float[QuadDetector.QUAD_SIZE];
+	private boolean mBoardFound;
+
+	// Result of the latest analysis, packed as (x << 16 | y), and the frame
+	// size. Written by the analyzing thread and read by the UI thread.
+	private volatile int mMarkPosition = -1;
+	private volatile int mFrameWidth;
+	private volatile int mFrameHeight;
+	private boolean mUpdatePending;
+	private volatile long mPostTime;
+
+	// Owned by the UI thread
+	private Bitmap mOverlay;
+	private int mShownPosition = -1;
+	private final float[] mShownQuad = new float[QuadDetector.QUAD_SIZE];
+
+	public PreviewFrameAnalyzer( CameraController controller, Nv21Processor processor,
+								 PreviewOperator operator, Handler uiHandler ) {
+		mCameraController = controller;
+		mProcessor = processor;
+		mPreviewOperator = operator;
+		mUiHandler = uiHandler;
+		mMetrics = controller.getMetrics();
+		mRateController = new AnalysisRateController( mMetrics );
+
+		for( int i = 0; i < mMarkPixels.length; i++ ) {
+			mMarkPixels[i] = MARK_COLOR;
+		}
+		mOverlayUpdater = new Runnable() {
+			@Override
+			public void run() {
+				updateOverlay();
+			}
+		};
+	}
+
+	@Override
+	public void onPreviewFrame( PREVIEW_FORMAT format, byte[] frameData,
+								int width, int height ) {
+
+		long start = System.nanoTime();
+		if( start - mLastFrameTime < mMinFrameIntervalNanos ) {
+			mCameraController.releasePreviewFrame( frameData );
+			mMetrics.increment( PipelineMetrics.COUNTER.SKIPPED_THROTTLED );
+			return;
+		}
+		mLastFrameTime = start;
+		mCameraController.setPreviewFrameProcessing( true );
+		int pos = -1;
+		try {
+			if( mChangeDetector.update( frameData, width, height ) ) {
+				downscaleLuma( frameData, width, height );
+				pos = brightestPosition( width );
+				if( mLiveEnhancer != null ) {
+					mLiveEnhancer.convertFrame( frameData, width, height,
+												mAnalysisFactor );
+				}
+			} else if( mFocusTrigger != null && mFocusTrigger.measuresNext() ) {
+				downscaleLuma( frameData, width, height );
+			}
+		} finally {
+			mCameraController.releasePreviewFrame( frameData );
+			mCameraController.setPreviewFrameProcessing( false );
+		}
+		if( pos < 0 ) {
+			// The results of the frame last analyzed still hold
+			mMetrics.increment( PipelineMetrics.COUNTER.SKIPPED_UNCHANGED );
+			if( mFocusTrigger != null ) {
+				// Measured in the board last detected
+				float[] quad = mBoardDetector.getQuad( mFrameQuad ) ? mFrameQuad : null;
+				mFocusTrigger.update( mAnalysisLuma, mAnalysisWidth, mAnalysisHeight,
+									  quad );
+			}
+			if( mAutoCapture != null ) {
+				mAutoCapture.onUnchangedFrame();
+			}
+			return;
+		}
+
+		boolean boardChanged = detectBoard();
+		if( mFocusTrigger != null || mLiveEnhancer != null || mAutoCapture != null ) {
+			float[] quad = mBoardDetector.getQuad( mFrameQuad ) ? mFrameQuad : null;
+			if( mFocusTrigger != null ) {
+				mFocusTrigger.update( mAnalysisLuma, mAnalysisWidth, mAnalysisHeight,
+									  quad );
+			}
+			if( mLiveEnhancer != null ) {
+				mLiveEnhancer.render( quad );
+			}
+			if( mAutoCapture != null ) {
+				mAutoCapture.update( mAnalysisLuma, mAnalysisWidth, mAnalysisHeight,
+									 quad );
+			}
+		}
+
+		int x = Math.min( pos % width, width - MARK_SIZE - 1 );
+		int y = Math.min( pos / width, height - MARK_SIZE - 1 );
+		mFrameWidth = width;
+		mFrameHeight = height;
+		int position = ( x << 16 ) | y;
+		long processing = System.nanoTime() - start;
+		mMetrics.record( PipelineMetrics.STAGE.PROCESSING, processing );
+		mRateController.onFrameAnalyzed( processing );
+		if( position == mMarkPosition && !boardChanged ) {
+			return;
+		}
+		mMarkPosition = position;
+
+		synchronized( mOverlayUpdater ) {
+			if( mUpdatePending ) {
+				// The pending update will pick the newest result up
+				mMetrics.increment( PipelineMetrics.COUNTER.UI_COALESCED );
+				return;
+			}
+			mUpdatePending = true;
+		}
+		mPostTime = System.nanoTime();
+		mUiHandler.post( mOverlayUpdater );
+	}
+
+	/**
+	 * @param trigger trigger to focus again when the board is blurred, or
+	 * 			null. It MUST be set before the frames delivered.
+	 */
+	public void setFocusTrigger( SharpnessFocusTrigger trigger ) {
+		mFocusTrigger = trigger;
+	}
+
+	/**
+	 * @param enhancer enhancer to show the board enhanced live, or null. It
+	 * 			MUST be set before the frames delivered.
+	 */
+	public void setLiveEnhancer( LiveEnhancer enhancer ) {
+		mLiveEnhancer = enhancer;
+	}
+
+	/**
+	 * @param capture auto capture to feed the frames analyzed, or null. It
+	 * 			MUST be set before the frames delivered.
+	 */
+	public void setAutoCapture( AutoCapture capture ) {
+		mAutoCapture = capture;
+	}
+
+	/**
+	 * Analyze the frames at a rate at most, the frames coming sooner are
+	 * released at once. It is for running long, such as by the
+	 * {@link AutoCapture}.
+	 *
+	 * @param intervalMillis min interval between the frames analyzed, 0 to
+	 * 			analyze all
+	 */
+	public void setMinFrameInterval( long intervalMillis ) {
+		mMinFrameIntervalNanos = intervalMillis*1000*1000;
+	}
+
+	/**
+	 * @param quad array of {@link QuadDetector#QUAD_SIZE} to copy the corners
+	 * 			of the board to, normalized by the size of the preview frame
+	 * @return true, if a board is detected and copied
+	 */
+	public boolean getBoardQuad( float[] quad ) {
+		synchronized( mBoardQuad ) {
+			if( mBoardFound ) {
+				System.arraycopy( mBoardQuad, 0, quad, 0, mBoardQuad.length );
+			}
+			return mBoardFound;
+		}
+	}
+
+	private void downscaleLuma( byte[] frameData, int width, int height ) {
+		if( width != mLastFrameWidth || height != mLastFrameHeight ) {
+			// The board is tracked in the normalized coordinates, so it is
+			// kept when only the width of the analysis changes
+			mLastFrameWidth = width;
+			mLastFrameHeight = height;
+			mBoardDetector.reset();
+			mRateController.reset();
+		}
+		int factor = Math.max( 1, width/mRateController.getAnalysisWidth() );
+		mAnalysisFactor = factor;
+		int analysisWidth = width/factor;
+		int analysisHeight = height/factor;
+		if( analysisWidth != mAnalysisWidth || analysisHeight != mAnalysisHeight ) {
+			mAnalysisWidth = analysisWidth;
+			mAnalysisHeight = analysisHeight;
+			mAnalysisLuma = new byte[analysisWidth*analysisHeight];
+			if( mFocusTrigger != null ) {
+				// The sharpness is only comparable in the same size
+				mFocusTrigger.reset();
+			}
+		}
+		mProcessor.downscaleLuma( frameData, width, height, factor, mAnalysisLuma );
+	}
+
+	// Index of the brightest spot in the frame, searched in the downscaled luma
+	private int brightestPosition( int width ) {
+		int index = mProcessor.maxLumaIndex( mAnalysisLuma, mAnalysisWidth, mAnalysisHeight );
+		int x = ( index % mAnalysisWidth )*mAnalysisFactor;
+		int y = ( index / mAnalysisWidth )*mAnalysisFactor;
+		return y*width + x;
+	}
+
+	// Return true if the board shown should be changed
+	private boolean detectBoard() {
+		boolean wasFound;
+		synchronized( mBoardQuad ) {
+			wasFound = mBoardFound;
+		}
+		boolean found
+			= mBoardDetector.detect( mAnalysisLuma, mAnalysisWidth, mAnalysisHeight );
+		if( !found && !wasFound ) {
+			return false;
+		}
+		synchronized( mBoardQuad ) {
+			mBoardFound = mBoardDetector.getQuad( mBoardQuad );
+		}
+		return true;
+	}
+
+	private void updateOverlay() {
+		mMetrics.recordSince( PipelineMetrics.STAGE.UI_POST, mPostTime );
+		synchronized( mOverlayUpdater ) {
+			mUpdatePending = false;
+		}
+
+		int width = mFrameWidth;
+		int height = mFrameHeight;
+		if( mOverlay == null || mOverlay.getWidth() != width
+			|| mOverlay.getHeight() != height ) {
+
+			mOverlay = Bitmap.createBitmap( width, height, Bitmap.Config.ARGB_8888 );
+			mShownPosition = -1;
+			mPreviewOperator.setImageBitmap( mOverlay );
+		}
+
+		boolean boardFound;
+		synchronized( mBoardQuad ) {
+			boardFound = mBoardFound;
+			if( boardFound ) {
+				System.arraycopy( mBoardQuad, 0, mShownQuad, 0, mShownQuad.length );
+			}
+		}
+		mPreviewOperator.setBoardQuad( boardFound ? mShownQuad : null );
+
+		int position = mMarkPosition;
+		if( position == mShownPosition ) {
+			return;
+		}
+		if( mShownPosition >= 0 ) {
+			mOverlay.setPixels( mClearPixels, 0, MARK_SIZE,
+								mShownPosition >> 16, mShownPosition & 0xFFFF,
+								MARK_SIZE, MARK_SIZE );
+		}
+		mOverlay.setPixels( mMarkPixels, 0, MARK_SIZE,
+							position >> 16, position & 0xFFFF,
+							MARK_SIZE, MARK_SIZE );
+		mShownPosition = position;
+		mPreviewOperator.invalidate();
+	}
+}
@@ -0,0 +1,139 @@
+package com.zsm.whiteboard.analysis;
+
+import java.util.Arrays;
+
+/**
+ * Tell whether the scene has changed since the frame last analyzed, so that
+ * the analysis of a frame of the same scene can be skipped and its former
+ * result reused. The signature of a frame is the mean luma along a few rows
+ * and columns across each block of a coarse grid. Every pixel along them is
+ * read, so a thin stroke crossing a line changes its mean, where it could
+ * fall between sparse samples. It reads about one pixel in twenty of a frame.
+ * It is compared with the signature of the frame last analyzed, not the
+ * former frame, so a slow change adds up until it is a change. A change
+ * missed is caught by a frame analyzed anyway after a while, in time rather
+ * than frames, so it is not delayed longer when the frames are throttled.
+ * <p>It depends on nothing of Android, so it can be run on any JVM.
+ */
+public class SceneChangeDetector {
+
+	private static final int GRID_COLUMNS = 16;
+	private static final int GRID_ROWS = 12;
+	// Rows and columns read across each block
+	private static final int BLOCK_LINES = 4;
+	// The means are kept in 1/16 of the levels of luma
+	private static final int MEAN_BITS = 4;
+	// Mean difference of the lines, from which the scene has changed, as the
+	// exposure changes
+	private static final int MEAN_THRESHOLD = 3 << MEAN_BITS;
+	// Difference of a line beyond the mean one, from which the scene has
+	// changed, as a stroke is written, something small moves or the camera
+	// moves. A stroke of 2 pixels wide and 100 levels dark crossing a line of
+	// 120 pixels changes its mean by 1.7 levels.
+	private static final int LINE_THRESHOLD = 3 << ( MEAN_BITS - 1 );
+	// A frame is analyzed after the frames unchanged for so long anyway
+	private static final long MAX_UNCHANGED_NANOS = 1000L*1000*1000;
+
+	private static final int ROW_LINES = GRID_ROWS*BLOCK_LINES;
+	private static final int COLUMN_LINES = GRID_COLUMNS*BLOCK_LINES;
+
+	private final int[] mSignature
+		= new int[ROW_LINES*GRID_COLUMNS + COLUMN_LINES*GRID_ROWS];
+	private final int[] mReference = new int[mSignature.length];
+	// Columns read, and their sums in a row of the blocks
+	private final int[] mColumns = new int[COLUMN_LINES];
+	private final int[] mColumnSums = new int[COLUMN_LINES];
+	private int mReferenceWidth;
+	private int mReferenceHeight;
+	private long mReferenceTime;
+
+	/**
+	 * Compare the frame with the one last analyzed. If it has changed, it
+	 * becomes the one last analyzed.
+	 *
+	 * @param luma luma of the frame, row by row, such as an NV21 frame
+	 * @param width width of the frame
+	 * @param height height of the frame
+	 * @return true, if the scene has changed and the frame should be analyzed
+	 */
+	public boolean update( byte[] luma, int width, int height ) {
+		if( width < COLUMN_LINES || height < ROW_LINES ) {
+			// Too small to tell, always analyzed
+			return true;
+		}
+		computeSignature( luma, width, height );
+		long now = System.nanoTime();
+		if( width != mReferenceWidth || height != mReferenceHeight
+			|| now - mReferenceTime > MAX_UNCHANGED_NANOS || differs() ) {
+
+			System.arraycopy( mSignature, 0, mReference, 0, mReference.length );
+			mReferenceWidth = width;
+			mReferenceHeight = height;
+			mReferenceTime = now;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Forget the frame last analyzed, so that the next frame is analyzed.
+	 */
+	public void reset() {
+		mReferenceWidth = 0;
+		mReferenceHeight = 0;
+	}
+
+	private void computeSignature( byte[] luma, int width, int height ) {
+		int s = 0;
+		// The rows across the blocks, in the centers of their cells
+		for( int line = 0; line < ROW_LINES; line++ ) {
+			int row = (int)( ( 2L*line + 1 )*height/( 2*ROW_LINES ) )*width;
+			for( int bx = 0; bx < GRID_COLUMNS; bx++ ) {
+				int x0 = bx*width/GRID_COLUMNS;
+				int x1 = ( bx + 1 )*width/GRID_COLUMNS;
+				int sum = 0;
+				for( int i = row + x0; i < row + x1; i++ ) {
+					sum += luma[i] & 0xFF;
+				}
+				mSignature[s++] = ( sum << MEAN_BITS )/( x1 - x0 );
+			}
+		}
+		// The columns are summed row by row, so the frame is read forward
+		for( int line = 0; line < COLUMN_LINES; line++ ) {
+			mColumns[line] = (int)( ( 2L*line + 1 )*width/( 2*COLUMN_LINES ) );
+		}
+		for( int by = 0; by < GRID_ROWS; by++ ) {
+			int y0 = by*height/GRID_ROWS;
+			int y1 = ( by + 1 )*height/GRID_ROWS;
+			Arrays.fill( mColumnSums, 0 );
+			for( int y = y0; y < y1; y++ ) {
+				int row = y*width;
+				for( int line = 0; line < COLUMN_LINES; line++ ) {
+					mColumnSums[line] += luma[row + mColumns[line]] & 0xFF;
+				}
+			}
+			for( int line = 0; line < COLUMN_LINES; line++ ) {
+				mSignature[s++] = ( mColumnSums[line] << MEAN_BITS )/( y1 - y0 );
+			}
+		}
+	}
+
+	private boolean differs() {
+		long total = 0;
+		for( int i = 0; i < mSignature.length; i++ ) {
+			total += mSignature[i] - mReference[i];
+		}
+		int mean = (int)( total/mSignature.length );
+		if( Math.abs( mean ) >= MEAN_THRESHOLD ) {
+			return true;
+		}
+		// A small change of the exposure shifts all the lines, it is not
+		// taken as a change of a line
+		for( int i = 0; i < mSignature.length; i++ ) {
+			if( Math.abs( mSignature[i] - mReference[i] - mean ) >= LINE_THRESHOLD ) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
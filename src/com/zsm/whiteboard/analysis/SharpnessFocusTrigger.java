@@ -0,0 +1,158 @@
+package com.zsm.whiteboard.analysis;
+
+import android.graphics.RectF;
+
+import com.zsm.log.Log;
+import com.zsm.whiteboard.camera.CameraController;
+import com.zsm.whiteboard.image.QuadDetector;
+import com.zsm.whiteboard.image.Sharpness;
+
+/**
+ * Focus again when the board becomes blurred. The sharpness of the board, or
+ * of the center of the frame if no board is detected, is measured in the
+ * downscaled luma every few frames. The sharpness just after a focus is taken
+ * as the reference, and a focus at the board is triggered only when the
+ * sharpness stays well below it, so the lens does not hunt while the content
+ * is sharp. The focus mode chosen by the user is kept, as the camera is
+ * switched back to it after each focus triggered. It MUST be used in the
+ * thread analyzing the frames.
+ */
+public class SharpnessFocusTrigger {
+
+	// Measure every so many frames
+	private static final int MEASURE_INTERVAL = 3;
+	// Measurements after a focus to take the reference from
+	private static final int SETTLE_MEASUREMENTS = 3;
+	// The sharpness below the ratio of the reference is a drop
+	private static final double DROP_RATIO = .6;
+	// Drops in a row to trigger a focus, not to chase a frame blurred by shaking
+	private static final int DROPS_TO_TRIGGER = 3;
+	private static final long MIN_TRIGGER_INTERVAL_NANOS = 2000L*1000*1000;
+	// The board is measured inside its bounds inset by the fraction, to skip
+	// its frame
+	private static final float BOARD_INSET = .1f;
+	// Half of the side of the center region measured without a board
+	private static final float CENTER_HALF = .25f;
+	// The reference is taken again when an edge of the region moves farther
+	private static final float MAX_REGION_SHIFT = .1f;
+
+	private final CameraController mController;
+	private final RectF mRegion = new RectF();
+	private final RectF mReferenceRegion = new RectF();
+
+	private int mFrames;
+	private int mSettling = SETTLE_MEASUREMENTS;
+	private double mReference;
+	private int mDrops;
+	private long mLastTrigger;
+	private int mTriggers;
+
+	public SharpnessFocusTrigger( CameraController controller ) {
+		mController = controller;
+	}
+
+	/**
+	 * Measure the frame, and trigger a focus if it has been blurred.
+	 *
+	 * @param luma downscaled luma of the frame
+	 * @param width width of the luma
+	 * @param height height of the luma
+	 * @param boardQuad corners of the board normalized by the size of the
+	 * 			frame, or null if no board detected
+	 */
+	public void update( byte[] luma, int width, int height, float[] boardQuad ) {
+		if( mController.isFocusing() ) {
+			// The reference is taken when the focus is done
+			settle();
+			return;
+		}
+		if( ++mFrames < MEASURE_INTERVAL ) {
+			return;
+		}
+		mFrames = 0;
+
+		setRegion( boardQuad );
+		if( mSettling == 0 && regionShifted() ) {
+			settle();
+		}
+		double sharpness
+			= Sharpness.measure( luma, width, height,
+								 (int)( mRegion.left*width ), (int)( mRegion.top*height ),
+								 (int)( mRegion.right*width ),
+								 (int)( mRegion.bottom*height ) );
+
+		if( mSettling > 0 ) {
+			mReference = Math.max( mReference, sharpness );
+			mReferenceRegion.set( mRegion );
+			mSettling--;
+			return;
+		}
+		if( sharpness >= mReference*DROP_RATIO ) {
+			mDrops = 0;
+			mReference = Math.max( mReference, sharpness );
+			return;
+		}
+		long now = System.nanoTime();
+		if( ++mDrops < DROPS_TO_TRIGGER
+			|| now - mLastTrigger < MIN_TRIGGER_INTERVAL_NANOS ) {
+
+			return;
+		}
+
+		if( mController.startAutoFocusOnFrame( mRegion ) != 0 ) {
+			mLastTrigger = now;
+			mTriggers++;
+			Log.d( "Board blurred, focus again.", "sharpness", sharpness,
+				   "reference", mReference, "triggers", mTriggers );
+			settle();
+		}
+	}
+
+	/**
+	 * @return true, if the luma of the next frame is to be measured. The luma
+	 * 			passed to the other updates is not read.
+	 */
+	public boolean measuresNext() {
+		return !mController.isFocusing() && mFrames + 1 >= MEASURE_INTERVAL;
+	}
+
+	/**
+	 * Forget the reference, for example when the size of the frame changes.
+	 */
+	public void reset() {
+		mFrames = 0;
+		settle();
+	}
+
+	private void settle() {
+		mSettling = SETTLE_MEASUREMENTS;
+		mReference = 0;
+		mDrops = 0;
+	}
+
+	private void setRegion( float[] quad ) {
+		if( quad == null ) {
+			mRegion.set( .5f - CENTER_HALF, .5f - CENTER_HALF,
+						 .5f + CENTER_HALF, .5f + CENTER_HALF );
+			return;
+		}
+		float left = 1, top = 1, right = 0, bottom = 0;
+		for( int i = 0; i < QuadDetector.QUAD_SIZE; i += 2 ) {
+			left = Math.min( left, quad[i] );
+			right = Math.max( right, quad[i] );
+			top = Math.min( top, quad[i+1] );
+			bottom = Math.max( bottom, quad[i+1] );
+		}
+		float dx = ( right - left )*BOARD_INSET;
+		float dy = ( bottom - top )*BOARD_INSET;
+		mRegion.set( Math.max( 0, left + dx ), Math.max( 0, top + dy ),
+					 Math.min( 1, right - dx ), Math.min( 1, bottom - dy ) );
+	}
+
+	private boolean regionShifted() {
+		return Math.abs( mRegion.left - mReferenceRegion.left ) > MAX_REGION_SHIFT
+			   || Math.abs( mRegion.top - mReferenceRegion.top ) > MAX_REGION_SHIFT
+			   || Math.abs( mRegion.right - mReferenceRegion.right ) > MAX_REGION_SHIFT
+			   || Math.abs( mRegion.bottom - mReferenceRegion.bottom ) > MAX_REGION_SHIFT;
+	}
+}
@@ -1,13 +1,22 @@
 package com.zsm.whiteboard.app;
 
+import java.io.File;
+
 import com.zsm.driver.android.log.LogInstaller;
 import com.zsm.driver.android.log.LogPreferences;
 import com.zsm.log.Log;
+import com.zsm.whiteboard.camera.CameraSessionManager;
+import com.zsm.whiteboard.camera.CapabilityCache;
 
 import android.app.Application;
 
 public class WhiteBoardApp extends Application {
 
+	private static final String CAPABILITY_FILE = "camera_capabilities";
+
+	private CameraSessionManager mCameraSessionManager;
+	private CapabilityCache mCapabilityCache;
+
 	public WhiteBoardApp() {
 		super();
 		LogInstaller.installAndroidLog( "WhiteBoard" );
@@ -19,6 +28,25 @@ public class WhiteBoardApp extends Application {
 		LogPreferences.init( this );
 		LogInstaller.installFileLog( this );
 		Log.setGlobalLevel( Log.LEVEL.DEBUG );
+		mCameraSessionManager = new CameraSessionManager();
+		// Small, loaded before any activity for the preview to be laid out
+		// before the camera opened
+		mCapabilityCache = new CapabilityCache( new File( getFilesDir(), CAPABILITY_FILE ) );
+		mCapabilityCache.load();
+	}
+
+	/**
+	 * @return manager of the camera sessions, living as long as the application
+	 */
+	public CameraSessionManager getCameraSessionManager() {
+		return mCameraSessionManager;
+	}
+
+	/**
+	 * @return cache of the capabilities of the cameras
+	 */
+	public CapabilityCache getCapabilityCache() {
+		return mCapabilityCache;
 	}
 
 }
@@ -0,0 +1,1103 @@
+package com.zsm.whiteboard.camera;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.SurfaceTexture;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+import android.hardware.camera2.params.MeteringRectangle;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.view.Surface;
+
+import com.zsm.log.Log;
+import com.zsm.whiteboard.camera.CameraController.PREVIEW_FORMAT;
+import com.zsm.whiteboard.util.Size;
+
+/**
+ * Camera by the Camera2 API. The preview surface, the analysis stream and the
+ * still capture stream are configured in one session, so the preview is never
+ * stopped to take a picture, and the analysis frames keep coming while the
+ * picture is being taken.
+ * <p>The analysis frames come from an {@link ImageReader} of YUV_420_888
+ * holding several images, and the pictures from another one of JPEG. All the
+ * callbacks of the camera and the readers run in a dedicated
+ * {@link HandlerThread}, so does all the work on the session.
+ * <p>The luma of an analysis image is copied into an NV21 buffer of a
+ * {@link PreviewBufferRing}, and the frames are delivered and released in the
+ * same way as {@link LegacyCamera}. For {@link PREVIEW_FORMAT#LUMA} the image
+ * is kept until the frame is released, and its chroma is copied only if the
+ * frame is captured for a picture. Otherwise the chroma is copied at once and
+ * the image closed.
+ * <p>The thread started for an open quits only when the device is closed,
+ * even if the device is opened after the camera is closed.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class Camera2Camera implements CameraInterface {
+
+	private static final int DEFAULT_PREVIEW_BUFFER_COUNT = 3;
+	// An image for each frame kept, one being copied and one being filled
+	private static final int DEFAULT_ANALYSIS_IMAGE_COUNT
+		= DEFAULT_PREVIEW_BUFFER_COUNT + 2;
+	private static final int JPEG_IMAGE_COUNT = 2;
+	// Same as the limits of CameraController
+	private static final int MAX_STREAM_WIDTH = 1920;
+	private static final int MAX_STREAM_HEIGHT = 1080;
+
+	private final CameraManager mManager;
+	private final int mAnalysisImageCount;
+	private final int mPreviewBufferCount;
+	private final Handler mSharedHandler;
+
+	// Created for each open if no shared handler
+	private HandlerThread mCameraThread;
+	private Handler mHandler;
+	// Changed by each open and close, a device opened for an earlier one is
+	// closed at once
+	private volatile int mOpenGeneration;
+	private CameraControllerCallback mControllerCallback;
+	private int mCameraIndex;
+
+	// Set before the camera is notified as opened, read only after that
+	private volatile CameraCharacteristics mCharacteristics;
+	private volatile Size mStreamSize;
+	private volatile Size mJpegSize;
+
+	// Owned by the camera thread
+	private CameraDevice mDevice;
+	// Opening or closing, the thread is quit when neither
+	private boolean mDeviceOpening;
+	private int mDevicesClosing;
+	private HandlerThread mQuittingThread;
+	private CameraCaptureSession mSession;
+	private int mSessionGeneration;
+	private CaptureRequest.Builder mPreviewRequest;
+	private ImageReader mAnalysisReader;
+	private ImageReader mJpegReader;
+	private PreviewFrameThread mPreviewFrameThread;
+	private PreviewBufferRing mRetiredRing;
+	private byte[] mURow;
+	private byte[] mVRow;
+	private boolean mFocusing;
+	private int mFocusId;
+	// Tag of the request triggering the running focus, and the number of its
+	// frame once completed. Results of the frames before it may still carry
+	// the lock of an earlier focus.
+	private Object mFocusTrigger;
+	private long mFocusTriggerFrame = -1;
+
+	private volatile Surface mPreviewSurface;
+	private boolean mOwnsPreviewSurface;
+	private Size mPreviewViewSize;
+	private volatile PreviewBufferRing mBufferRing;
+	private final AtomicBoolean mPreviewProcessing = new AtomicBoolean( false );
+	private final AtomicReference<PreviewCallback> mFrameCapture
+		= new AtomicReference<PreviewCallback>();
+	private PipelineMetrics mMetrics = new PipelineMetrics();
+	private final AtomicInteger mFocusIds = new AtomicInteger();
+	// Images of the frames delivered without the chroma
+	private final Map<byte[], Image> mLumaImages = new IdentityHashMap<byte[], Image>();
+
+	private volatile CameraController.FOCUS_MODE mFocusMode
+		= CameraController.FOCUS_MODE.CONTINUOUS_PICTURE;
+	private volatile List<CameraController.Area> mFocusAreas;
+	private volatile MeteringRectangle[] mAfRegions;
+	private volatile MeteringRectangle[] mAeRegions;
+
+	public Camera2Camera( Context context ) {
+		this( context, null );
+	}
+
+	/**
+	 * @param context context to get the camera service
+	 * @param cameraHandler handler of the thread to run the camera in, such
+	 * 			as {@link CameraSessionManager#getHandler()}. Null to start
+	 * 			a thread for each open.
+	 */
+	public Camera2Camera( Context context, Handler cameraHandler ) {
+		this( context, DEFAULT_ANALYSIS_IMAGE_COUNT, DEFAULT_PREVIEW_BUFFER_COUNT,
+			  cameraHandler );
+	}
+
+	/**
+	 * @param context context to get the camera service
+	 * @param analysisImageCount max number of the images of the analysis
+	 * 			reader, at least 2 more than the buffers, as an image is kept
+	 * 			for each frame delivered without the chroma
+	 * @param previewBufferCount number of the buffers the analysis frames
+	 * 			are copied into, as {@link LegacyCamera#LegacyCamera(int)}
+	 * @param cameraHandler as {@link #Camera2Camera(Context, Handler)}
+	 */
+	public Camera2Camera( Context context, int analysisImageCount,
+						  int previewBufferCount, Handler cameraHandler ) {
+
+		if( previewBufferCount < 1 ) {
+			throw new IllegalArgumentException(
+						"Invalid preview buffer count: " + previewBufferCount );
+		}
+		if( analysisImageCount < previewBufferCount + 2 ) {
+			throw new IllegalArgumentException(
+						"Invalid analysis image count: " + analysisImageCount );
+		}
+		mManager = (CameraManager)context.getSystemService( Context.CAMERA_SERVICE );
+		mAnalysisImageCount = analysisImageCount;
+		mPreviewBufferCount = previewBufferCount;
+		mSharedHandler = cameraHandler;
+	}
+
+	@Override
+	public void open( final int id, CameraControllerCallback callback ) {
+		mCameraIndex = id;
+		mControllerCallback = callback;
+		final int generation = ++mOpenGeneration;
+		if( mSharedHandler != null ) {
+			mHandler = mSharedHandler;
+		} else {
+			mCameraThread = new HandlerThread( "Camera2" );
+			mCameraThread.start();
+			mHandler = new Handler( mCameraThread.getLooper() );
+		}
+		mHandler.post( new Runnable() {
+			@Override
+			public void run() {
+				openDevice( id, generation );
+			}
+		} );
+	}
+
+	private void openDevice( int id, int generation ) {
+		if( generation != mOpenGeneration ) {
+			// Closed before opened
+			return;
+		}
+		try {
+			String[] ids = mManager.getCameraIdList();
+			if( id < 0 || id >= ids.length ) {
+				throw new IllegalArgumentException( "No such camera: " + id );
+			}
+			CameraCharacteristics characteristics
+				= mManager.getCameraCharacteristics( ids[id] );
+			StreamConfigurationMap map
+				= characteristics.get( CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP );
+			mJpegSize = largest( map.getOutputSizes( ImageFormat.JPEG ),
+								 Integer.MAX_VALUE, Integer.MAX_VALUE, null );
+			mStreamSize = largest( map.getOutputSizes( ImageFormat.YUV_420_888 ),
+								   MAX_STREAM_WIDTH, MAX_STREAM_HEIGHT, mJpegSize );
+			mCharacteristics = characteristics;
+			mManager.openCamera( ids[id], newDeviceCallback( generation ), mHandler );
+			mDeviceOpening = true;
+		} catch( SecurityException e ) {
+			Log.e( e, "No permission to open the camera", id );
+			mControllerCallback.onPermissionDenied( id );
+		} catch( CameraAccessException | RuntimeException e ) {
+			mControllerCallback.onOpenFailed( id, e );
+		}
+	}
+
+	private CameraDevice.StateCallback newDeviceCallback( final int generation ) {
+		return new CameraDevice.StateCallback() {
+
+			@Override
+			public void onOpened( CameraDevice camera ) {
+				mDeviceOpening = false;
+				if( generation != mOpenGeneration ) {
+					Log.d( "Camera2 opened after closed, close it.", camera.getId() );
+					closeCamera( camera );
+					return;
+				}
+				mDevice = camera;
+				Log.d( "Camera2 opened.", "id", camera.getId(), "stream size",
+					   mStreamSize.width, mStreamSize.height );
+				mControllerCallback.onOpened( mCameraIndex );
+			}
+
+			@Override
+			public void onClosed( CameraDevice camera ) {
+				mDevicesClosing--;
+				quitIfClosed();
+			}
+
+			@Override
+			public void onDisconnected( CameraDevice camera ) {
+				Log.w( "Camera disconnected.", camera.getId() );
+				mDeviceOpening = false;
+				if( camera == mDevice ) {
+					closeDevice();
+				} else {
+					closeCamera( camera );
+				}
+			}
+
+			@Override
+			public void onError( CameraDevice camera, int error ) {
+				Log.e( "Camera error.", camera.getId(), "error", error );
+				mDeviceOpening = false;
+				if( camera == mDevice ) {
+					closeDevice();
+				} else {
+					closeCamera( camera );
+				}
+				if( generation == mOpenGeneration ) {
+					mControllerCallback.onOpenFailed(
+						mCameraIndex, new IOException( "Camera error: " + error ) );
+				}
+			}
+		};
+	}
+
+	@Override
+	public void close() {
+		if( mHandler == null ) {
+			return;
+		}
+		mOpenGeneration++;
+		final HandlerThread thread = mCameraThread;
+		mCameraThread = null;
+		mHandler.post( new Runnable() {
+			@Override
+			public void run() {
+				closeDevice();
+				if( thread != null ) {
+					// Quit once the device opening or closing has finished
+					mQuittingThread = thread;
+					quitIfClosed();
+				}
+			}
+		} );
+	}
+
+	private void closeCamera( CameraDevice camera ) {
+		mDevicesClosing++;
+		camera.close();
+	}
+
+	private void quitIfClosed() {
+		if( mQuittingThread != null && !mDeviceOpening && mDevicesClosing <= 0 ) {
+			mQuittingThread.quitSafely();
+			mQuittingThread = null;
+		}
+	}
+
+	private void closeDevice() {
+		closeSession();
+		mRetiredRing = null;
+		mFrameCapture.set( null );
+		if( mJpegReader != null ) {
+			mJpegReader.close();
+			mJpegReader = null;
+		}
+		if( mDevice != null ) {
+			closeCamera( mDevice );
+			mDevice = null;
+		}
+		if( mOwnsPreviewSurface && mPreviewSurface != null ) {
+			mPreviewSurface.release();
+		}
+		mPreviewSurface = null;
+		mOwnsPreviewSurface = false;
+	}
+
+	@Override
+	public List<Size> getSupportedCaptureSize() {
+		return convertSizes( getStreamConfiguration().getOutputSizes( ImageFormat.JPEG ) );
+	}
+
+	@Override
+	public List<Size> getSupportedPreviewSize() {
+		return convertSizes(
+					getStreamConfiguration().getOutputSizes( ImageFormat.YUV_420_888 ) );
+	}
+
+	@Override
+	public CameraCapabilities queryCapabilities() {
+		List<CameraController.FOCUS_MODE> focusModes
+			= new ArrayList<CameraController.FOCUS_MODE>();
+		int[] available
+			= mCharacteristics.get( CameraCharacteristics.CONTROL_AF_AVAILABLE_MODES );
+		for( CameraController.FOCUS_MODE mode : CameraController.FOCUS_MODE.values() ) {
+			if( contains( available, toAfMode( mode ) ) ) {
+				focusModes.add( mode );
+			}
+		}
+		return new CameraCapabilities( getSensorOrientation(), getSupportedPreviewSize(),
+									   getSupportedCaptureSize(), focusModes,
+									   getMaxRegions( CameraCharacteristics.CONTROL_MAX_REGIONS_AF ),
+									   getMaxRegions( CameraCharacteristics.CONTROL_MAX_REGIONS_AE ) );
+	}
+
+	private static boolean contains( int[] values, int value ) {
+		for( int i = 0; values != null && i < values.length; i++ ) {
+			if( values[i] == value ) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private StreamConfigurationMap getStreamConfiguration() {
+		return mCharacteristics.get( CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP );
+	}
+
+	private List<Size> convertSizes( android.util.Size[] sizes ) {
+		ArrayList<Size> list = new ArrayList<Size>( sizes.length );
+		for( android.util.Size s : sizes ) {
+			list.add( new Size( s.getWidth(), s.getHeight() ) );
+		}
+		return list;
+	}
+
+	// The largest size not exceeding the max, in the same aspect ratio as
+	// the given one if there is
+	private static Size largest( android.util.Size[] sizes, int maxWidth,
+								 int maxHeight, Size aspect ) {
+		android.util.Size best = null;
+		boolean bestMatches = false;
+		for( android.util.Size s : sizes ) {
+			if( s.getWidth() > maxWidth || s.getHeight() > maxHeight ) {
+				continue;
+			}
+			boolean matches
+				= aspect != null
+				  && (long)s.getWidth()*aspect.height == (long)s.getHeight()*aspect.width;
+			if( best == null || ( matches && !bestMatches )
+				|| ( matches == bestMatches
+					 && s.getWidth()*s.getHeight() > best.getWidth()*best.getHeight() ) ) {
+
+				best = s;
+				bestMatches = matches;
+			}
+		}
+		if( best == null ) {
+			best = sizes[0];
+		}
+		return new Size( best.getWidth(), best.getHeight() );
+	}
+
+	@Override
+	public int getSensorOrientation() {
+		return mCharacteristics.get( CameraCharacteristics.SENSOR_ORIENTATION );
+	}
+
+	@Override
+	public void setPreviewSize( Size size ) {
+		for( android.util.Size s
+				: getStreamConfiguration().getOutputSizes( ImageFormat.YUV_420_888 ) ) {
+			if( s.getWidth() == size.width && s.getHeight() == size.height ) {
+				mStreamSize = size;
+				return;
+			}
+		}
+		Log.w( "Preview size not supported by the YUV stream, keep the stream size.",
+			   size, "stream size", mStreamSize.width, mStreamSize.height );
+	}
+
+	@Override
+	public void setPreviewSurface( Surface s ) {
+		replacePreviewSurface( s, false );
+	}
+
+	@Override
+	public void setPreviewTexture( SurfaceTexture texture, Size previewViewSize )
+				throws IOException {
+
+		texture.setDefaultBufferSize( mStreamSize.width, mStreamSize.height );
+		mPreviewViewSize = previewViewSize;
+		replacePreviewSurface( new Surface( texture ), true );
+	}
+
+	// The new surface is used when the preview started next time
+	private void replacePreviewSurface( final Surface surface, final boolean owned ) {
+		mHandler.post( new Runnable() {
+			@Override
+			public void run() {
+				if( mOwnsPreviewSurface && mPreviewSurface != null
+					&& mPreviewSurface != surface ) {
+
+					mPreviewSurface.release();
+				}
+				mPreviewSurface = surface;
+				mOwnsPreviewSurface = owned;
+			}
+		} );
+	}
+
+	@Override
+	public void startPreview( final PREVIEW_FORMAT format, final PreviewCallback cb ) {
+		if( format != null && format != PREVIEW_FORMAT.NV21 ) {
+			RuntimeException e
+				= new IllegalArgumentException(
+						"Preview type is not supported:" + format );
+			Log.e( e, "Unsupported preview type", format );
+			throw e;
+		}
+		mHandler.post( new Runnable() {
+			@Override
+			public void run() {
+				createSession( format, cb );
+			}
+		} );
+	}
+
+	@Override
+	public void stopPreview() {
+		mHandler.post( new Runnable() {
+			@Override
+			public void run() {
+				closeSession();
+			}
+		} );
+	}
+
+	/**
+	 * The frames are always delivered through the buffers, so the callback
+	 * MUST release them as the one of {@link #startPreview}. The preview is
+	 * restarted with the callback.
+	 */
+	@Override
+	public void setPreviewCallback( PREVIEW_FORMAT format, PreviewCallback cb ) {
+		startPreview( format, cb );
+	}
+
+	private void createSession( PREVIEW_FORMAT format, PreviewCallback cb ) {
+		if( mDevice == null ) {
+			Log.w( "Camera not opened, preview not started." );
+			return;
+		}
+		closeSession();
+
+		List<Surface> outputs = new ArrayList<Surface>( 3 );
+		Surface preview = mPreviewSurface;
+		if( preview != null ) {
+			outputs.add( preview );
+		}
+		if( cb != null ) {
+			int width = mStreamSize.width;
+			int height = mStreamSize.height;
+			PreviewBufferRing ring
+				= new PreviewBufferRing( mPreviewBufferCount, width*height*3/2,
+										 mRetiredRing );
+			mRetiredRing = null;
+			PreviewFrameThread frameThread
+				= new PreviewFrameThread( format, cb, width, height, this,
+										  mPreviewProcessing, mMetrics );
+			mAnalysisReader
+				= ImageReader.newInstance( width, height, ImageFormat.YUV_420_888,
+										   mAnalysisImageCount );
+			mAnalysisReader.setOnImageAvailableListener(
+				newAnalysisListener( format, ring, frameThread, mMetrics ), mHandler );
+			outputs.add( mAnalysisReader.getSurface() );
+			mPreviewFrameThread = frameThread;
+			mPreviewFrameThread.start();
+			mBufferRing = ring;
+		}
+		if( mJpegReader == null ) {
+			mJpegReader
+				= ImageReader.newInstance( mJpegSize.width, mJpegSize.height,
+										   ImageFormat.JPEG, JPEG_IMAGE_COUNT );
+			mJpegReader.setOnImageAvailableListener( mJpegListener, mHandler );
+		}
+		outputs.add( mJpegReader.getSurface() );
+
+		final int generation = ++mSessionGeneration;
+		try {
+			mDevice.createCaptureSession( outputs, new CameraCaptureSession.StateCallback() {
+				@Override
+				public void onConfigured( CameraCaptureSession session ) {
+					if( generation != mSessionGeneration || mDevice == null ) {
+						session.close();
+						return;
+					}
+					mSession = session;
+					startRepeating();
+				}
+
+				@Override
+				public void onConfigureFailed( CameraCaptureSession session ) {
+					Log.e( "Configure the capture session failed!" );
+				}
+			}, mHandler );
+			Log.d( "Capture session requested.", "outputs", outputs.size(),
+				   "analysis images", mAnalysisImageCount );
+		} catch( CameraAccessException e ) {
+			Log.e( e, "Create the capture session failed!" );
+		}
+	}
+
+	private void startRepeating() {
+		try {
+			mPreviewRequest = mDevice.createCaptureRequest( CameraDevice.TEMPLATE_PREVIEW );
+			if( mPreviewSurface != null ) {
+				mPreviewRequest.addTarget( mPreviewSurface );
+			}
+			if( mAnalysisReader != null ) {
+				mPreviewRequest.addTarget( mAnalysisReader.getSurface() );
+			}
+			updateRepeating();
+		} catch( CameraAccessException | RuntimeException e ) {
+			Log.e( e, "Start the repeating request failed!" );
+		}
+	}
+
+	private void updateRepeating() {
+		if( mSession == null || mPreviewRequest == null ) {
+			return;
+		}
+		applyControls( mPreviewRequest );
+		try {
+			mSession.setRepeatingRequest( mPreviewRequest.build(), mCaptureCallback,
+										  mHandler );
+		} catch( CameraAccessException | RuntimeException e ) {
+			Log.e( e, "Set the repeating request failed!" );
+		}
+	}
+
+	private void applyControls( CaptureRequest.Builder builder ) {
+		builder.set( CaptureRequest.CONTROL_MODE, CaptureRequest.CONTROL_MODE_AUTO );
+		builder.set( CaptureRequest.CONTROL_AF_MODE, toAfMode( mFocusMode ) );
+		if( mFocusMode == CameraController.FOCUS_MODE.INFINITY ) {
+			builder.set( CaptureRequest.LENS_FOCUS_DISTANCE, 0f );
+		}
+		builder.set( CaptureRequest.CONTROL_AF_REGIONS, mAfRegions );
+		builder.set( CaptureRequest.CONTROL_AE_REGIONS, mAeRegions );
+	}
+
+	private void closeSession() {
+		mSessionGeneration++;
+		mFrameCapture.set( null );
+		if( mPreviewFrameThread != null ) {
+			mPreviewFrameThread.stopPreviewProcess();
+			mPreviewFrameThread = null;
+		}
+		// Frames of the stopped session released later will be ignored
+		if( mBufferRing != null ) {
+			mRetiredRing = mBufferRing;
+			mBufferRing = null;
+		}
+		if( mSession != null ) {
+			mSession.close();
+			mSession = null;
+		}
+		mPreviewRequest = null;
+		if( mAnalysisReader != null ) {
+			mAnalysisReader.close();
+			mAnalysisReader = null;
+		}
+		if( mFocusing ) {
+			int focusId = mFocusId;
+			finishFocus();
+			mControllerCallback.onAutoFocus( focusId, false );
+		}
+	}
+
+	private void finishFocus() {
+		mFocusing = false;
+		mFocusTrigger = null;
+		mFocusTriggerFrame = -1;
+	}
+
+	private ImageReader.OnImageAvailableListener newAnalysisListener(
+					final PREVIEW_FORMAT format, final PreviewBufferRing ring,
+					final PreviewFrameThread frameThread, final PipelineMetrics metrics ) {
+
+		return new ImageReader.OnImageAvailableListener() {
+			@Override
+			public void onImageAvailable( ImageReader reader ) {
+				long start = System.nanoTime();
+				// Older images are dropped, as stale
+				Image image = reader.acquireLatestImage();
+				if( image == null ) {
+					return;
+				}
+				int width = image.getWidth();
+				int height = image.getHeight();
+				byte[] frame = ring.checkOutQueued();
+				if( frame == null ) {
+					image.close();
+					metrics.increment( PipelineMetrics.COUNTER.SKIPPED_BUSY );
+					return;
+				}
+				PreviewCallback capture = mFrameCapture.getAndSet( null );
+				boolean keepImage = capture == null && format == PREVIEW_FORMAT.LUMA;
+				try {
+					copyLuma( image, frame );
+					if( !keepImage ) {
+						copyChroma( image, frame );
+					}
+				} finally {
+					if( keepImage ) {
+						synchronized( mLumaImages ) {
+							mLumaImages.put( frame, image );
+						}
+					} else {
+						image.close();
+					}
+				}
+				if( capture != null ) {
+					capture.onPreviewFrame( PREVIEW_FORMAT.NV21, frame, width, height );
+				} else {
+					frameThread.setFrameData( frame );
+				}
+				metrics.recordSince( PipelineMetrics.STAGE.CAMERA_CALLBACK, start );
+			}
+		};
+	}
+
+	// Copy the planes of YUV_420_888 into NV21, row by row, as the rows may be
+	// padded and the chroma may be planar or interleaved
+	private static void copyLuma( Image image, byte[] nv21 ) {
+		int width = image.getWidth();
+		int height = image.getHeight();
+		Image.Plane[] planes = image.getPlanes();
+
+		ByteBuffer y = planes[0].getBuffer();
+		int yRowStride = planes[0].getRowStride();
+		if( yRowStride == width ) {
+			y.get( nv21, 0, width*height );
+		} else {
+			for( int row = 0; row < height; row++ ) {
+				y.position( row*yRowStride );
+				y.get( nv21, row*width, width );
+			}
+		}
+	}
+
+	// Called in the camera thread, or in the one capturing a frame
+	private synchronized void copyChroma( Image image, byte[] nv21 ) {
+		int width = image.getWidth();
+		int height = image.getHeight();
+		Image.Plane[] planes = image.getPlanes();
+
+		// U and V have the same strides
+		ByteBuffer u = planes[1].getBuffer();
+		ByteBuffer v = planes[2].getBuffer();
+		int rowStride = planes[1].getRowStride();
+		int pixelStride = planes[1].getPixelStride();
+		int chromaWidth = width/2;
+		int rowLength = ( chromaWidth - 1 )*pixelStride + 1;
+		if( mURow == null || mURow.length < rowLength ) {
+			mURow = new byte[rowLength];
+			mVRow = new byte[rowLength];
+		}
+		int out = width*height;
+		for( int row = 0; row < height/2; row++ ) {
+			u.position( row*rowStride );
+			u.get( mURow, 0, rowLength );
+			v.position( row*rowStride );
+			v.get( mVRow, 0, rowLength );
+			for( int i = 0; i < rowLength; i += pixelStride ) {
+				nv21[out++] = mVRow[i];
+				nv21[out++] = mURow[i];
+			}
+		}
+	}
+
+	private final ImageReader.OnImageAvailableListener mJpegListener
+		= new ImageReader.OnImageAvailableListener() {
+
+		@Override
+		public void onImageAvailable( ImageReader reader ) {
+			Image image = reader.acquireNextImage();
+			if( image == null ) {
+				return;
+			}
+			byte[] data;
+			try {
+				ByteBuffer buffer = image.getPlanes()[0].getBuffer();
+				data = new byte[buffer.remaining()];
+				buffer.get( data );
+			} finally {
+				image.close();
+			}
+			mControllerCallback.onPictureReady( CameraController.PICTURE_TYPE.JPEG, data );
+		}
+	};
+
+	private final CameraCaptureSession.CaptureCallback mCaptureCallback
+		= new CameraCaptureSession.CaptureCallback() {
+
+		@Override
+		public void onCaptureCompleted( CameraCaptureSession session,
+										CaptureRequest request,
+										TotalCaptureResult result ) {
+			if( !mFocusing ) {
+				return;
+			}
+			if( mFocusTrigger != null && request.getTag() == mFocusTrigger ) {
+				mFocusTriggerFrame = result.getFrameNumber();
+			}
+			if( mFocusTriggerFrame < 0 || result.getFrameNumber() < mFocusTriggerFrame ) {
+				return;
+			}
+			Integer state = result.get( CaptureResult.CONTROL_AF_STATE );
+			if( state == null
+				|| state == CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED
+				|| state == CaptureResult.CONTROL_AF_STATE_NOT_FOCUSED_LOCKED ) {
+
+				int focusId = mFocusId;
+				finishFocus();
+				boolean success
+					= state != null
+					  && state == CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED;
+				Log.d( "Focus finished. ", "Result", success, "focus", focusId,
+					   "Focus mode", mFocusMode );
+				mControllerCallback.onAutoFocus( focusId, success );
+			}
+		}
+	};
+
+	@Override
+	public boolean focusIsVideo() {
+		return mFocusMode == CameraController.FOCUS_MODE.CONTINUOUS_VIDEO;
+	}
+
+	@Override
+	public boolean supportsAutoFocus() {
+		return mFocusMode == CameraController.FOCUS_MODE.AUTO
+				|| mFocusMode == CameraController.FOCUS_MODE.MACRO;
+	}
+
+	@Override
+	public List<CameraController.Area> getMeteringAreas() {
+		return mAeRegions == null ? null : mFocusAreas;
+	}
+
+	@Override
+	public List<CameraController.Area> getFocusAreas() {
+		return mAfRegions == null ? null : mFocusAreas;
+	}
+
+	@Override
+	public void clearFocusAndMetering() {
+		mFocusAreas = null;
+		mAfRegions = null;
+		mAeRegions = null;
+		postUpdateRepeating();
+	}
+
+	@Override
+	public boolean setFocusAndMeteringArea( List<CameraController.Area> areas ) {
+		MeteringRectangle[] regions = toMeteringRegions( areas );
+		boolean focusRegions
+			= getMaxRegions( CameraCharacteristics.CONTROL_MAX_REGIONS_AF ) > 0
+			  && mFocusMode != CameraController.FOCUS_MODE.INFINITY;
+		boolean meteringRegions
+			= getMaxRegions( CameraCharacteristics.CONTROL_MAX_REGIONS_AE ) > 0;
+		if( !focusRegions && !meteringRegions ) {
+			return false;
+		}
+		mFocusAreas = areas;
+		mAfRegions = focusRegions ? regions : null;
+		mAeRegions = meteringRegions ? regions : null;
+		postUpdateRepeating();
+		return true;
+	}
+
+	private int getMaxRegions( CameraCharacteristics.Key<Integer> key ) {
+		Integer max = mCharacteristics.get( key );
+		return max == null ? 0 : max;
+	}
+
+	// Map the areas in [-1000, 1000] onto the part of the active array of the
+	// sensor seen by the stream
+	private MeteringRectangle[] toMeteringRegions( List<CameraController.Area> areas ) {
+		Rect active = streamCrop();
+		MeteringRectangle[] regions = new MeteringRectangle[areas.size()];
+		for( int i = 0; i < regions.length; i++ ) {
+			CameraController.Area area = areas.get( i );
+			Rect r = new Rect( toSensor( area.rect.left, active.left, active.width() ),
+							   toSensor( area.rect.top, active.top, active.height() ),
+							   toSensor( area.rect.right, active.left, active.width() ),
+							   toSensor( area.rect.bottom, active.top, active.height() ) );
+			regions[i] = new MeteringRectangle( r, area.weight );
+		}
+		return regions;
+	}
+
+	// The stream is the center of the active array, cropped to the aspect
+	// ratio of the stream
+	private Rect streamCrop() {
+		Rect active
+			= mCharacteristics.get( CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE );
+		Size stream = mStreamSize;
+		int width = active.width();
+		int height = active.height();
+		if( (long)stream.width*height > (long)stream.height*width ) {
+			height = (int)( (long)width*stream.height/stream.width );
+		} else {
+			width = (int)( (long)height*stream.width/stream.height );
+		}
+		int left = active.left + ( active.width() - width )/2;
+		int top = active.top + ( active.height() - height )/2;
+		return new Rect( left, top, left + width, top + height );
+	}
+
+	private static int toSensor( int v, int origin, int length ) {
+		int clamped = Math.max( -1000, Math.min( 1000, v ) );
+		return origin + (int)( (long)( clamped + 1000 )*( length - 1 )/2000 );
+	}
+
+	@Override
+	public void cancelAutoFocus() {
+		mHandler.post( new Runnable() {
+			@Override
+			public void run() {
+				finishFocus();
+				triggerFocus( CaptureRequest.CONTROL_AF_TRIGGER_CANCEL );
+			}
+		} );
+	}
+
+	@Override
+	public int autoFocus() {
+		final int focusId = nextFocusId();
+		mHandler.post( new Runnable() {
+			@Override
+			public void run() {
+				if( mSession == null || mPreviewRequest == null ) {
+					Log.w( "Preview not running, cannot focus.", focusId );
+					mControllerCallback.onAutoFocus( focusId, false );
+					return;
+				}
+				mFocusing = true;
+				mFocusId = focusId;
+				mFocusTrigger = new Object();
+				mFocusTriggerFrame = -1;
+				if( !triggerFocus( CaptureRequest.CONTROL_AF_TRIGGER_START ) ) {
+					finishFocus();
+					mControllerCallback.onAutoFocus( focusId, false );
+				}
+			}
+		} );
+		return focusId;
+	}
+
+	private int nextFocusId() {
+		int id;
+		do {
+			id = mFocusIds.incrementAndGet();
+		} while( id == 0 );
+		return id;
+	}
+
+	private boolean triggerFocus( int trigger ) {
+		if( mSession == null || mPreviewRequest == null ) {
+			return false;
+		}
+		try {
+			applyControls( mPreviewRequest );
+			mPreviewRequest.set( CaptureRequest.CONTROL_AF_TRIGGER, trigger );
+			if( trigger == CaptureRequest.CONTROL_AF_TRIGGER_START ) {
+				mPreviewRequest.setTag( mFocusTrigger );
+			}
+			mSession.capture( mPreviewRequest.build(), mCaptureCallback, mHandler );
+			return true;
+		} catch( CameraAccessException | RuntimeException e ) {
+			Log.e( e, "Trigger the auto focus failed!", trigger );
+			return false;
+		} finally {
+			mPreviewRequest.set( CaptureRequest.CONTROL_AF_TRIGGER,
+								 CaptureRequest.CONTROL_AF_TRIGGER_IDLE );
+			mPreviewRequest.setTag( null );
+		}
+	}
+
+	@Override
+	public int startAutoFocusAt( Rect displayRect ) {
+		Rect screenRect = new Rect();
+		screenRect.left = (int) ((((float)displayRect.left)/mPreviewViewSize.width - 0.5)*2000);
+		screenRect.right = (int) ((((float)displayRect.right)/mPreviewViewSize.width - 0.5)*2000);
+		screenRect.top = (int) ((((float)displayRect.top)/mPreviewViewSize.height - 0.5)*2000);
+		screenRect.bottom = (int) ((((float)displayRect.bottom)/mPreviewViewSize.height - 0.5)*2000);
+
+		List<CameraController.Area> list = new ArrayList<CameraController.Area>();
+		list.add( new CameraController.Area( screenRect, 1000 ) );
+		setFocusAndMeteringArea( list );
+
+		return autoFocus();
+	}
+
+	/**
+	 * The picture is taken by the JPEG stream of the session, the preview and
+	 * the analysis frames are not interrupted.
+	 */
+	@Override
+	public void takePicture( CameraController.PICTURE_TYPE imageType ) {
+		if( imageType != CameraController.PICTURE_TYPE.JPEG ) {
+			Log.e( "Unsupported image type", imageType );
+			return;
+		}
+		mHandler.post( new Runnable() {
+			@Override
+			public void run() {
+				captureStill();
+			}
+		} );
+	}
+
+	private void captureStill() {
+		if( mSession == null ) {
+			Log.e( "Preview not running, cannot take the picture." );
+			return;
+		}
+		try {
+			CaptureRequest.Builder builder
+				= mDevice.createCaptureRequest( CameraDevice.TEMPLATE_STILL_CAPTURE );
+			builder.addTarget( mJpegReader.getSurface() );
+			if( mPreviewSurface != null ) {
+				builder.addTarget( mPreviewSurface );
+			}
+			// Not rotated, as the pictures of LegacyCamera, for the board
+			// detected in the preview frames to map onto the picture
+			applyControls( builder );
+			mSession.capture( builder.build(), null, mHandler );
+		} catch( CameraAccessException | RuntimeException e ) {
+			Log.e( e, "Take the picture failed!" );
+		}
+	}
+
+	@Override
+	public void soundShutter( boolean sound ) {
+		// Camera2 plays no shutter sound by itself
+		Log.d( "Shutter sound is not played by Camera2.", sound );
+	}
+
+	@Override
+	public void setFocusMode( CameraController.FOCUS_MODE mode ) {
+		int[] available
+			= mCharacteristics.get( CameraCharacteristics.CONTROL_AF_AVAILABLE_MODES );
+		if( !contains( available, toAfMode( mode ) ) ) {
+			Log.w( "Focus mode not supported by the camera", mode );
+			return;
+		}
+		if( mode != mFocusMode ) {
+			mFocusMode = mode;
+			postUpdateRepeating();
+		}
+	}
+
+	@Override
+	public CameraController.FOCUS_MODE getFocusMode() {
+		return mFocusMode;
+	}
+
+	private static int toAfMode( CameraController.FOCUS_MODE mode ) {
+		switch( mode ) {
+			case AUTO:
+				return CaptureRequest.CONTROL_AF_MODE_AUTO;
+			case CONTINUOUS_PICTURE:
+				return CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE;
+			case CONTINUOUS_VIDEO:
+				return CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_VIDEO;
+			case MACRO:
+				return CaptureRequest.CONTROL_AF_MODE_MACRO;
+			case INFINITY:
+			default:
+				// The lens is set to infinity by the request
+				return CaptureRequest.CONTROL_AF_MODE_OFF;
+		}
+	}
+
+	private void postUpdateRepeating() {
+		mHandler.post( new Runnable() {
+			@Override
+			public void run() {
+				updateRepeating();
+			}
+		} );
+	}
+
+	@Override
+	public void setPreviewFrameProcessing( boolean processing ) {
+		mPreviewProcessing.set( processing );
+	}
+
+	@Override
+	public void releasePreviewFrame( byte[] frameData ) {
+		Image image;
+		synchronized( mLumaImages ) {
+			image = mLumaImages.remove( frameData );
+		}
+		if( image != null ) {
+			image.close();
+		}
+		PreviewBufferRing ring = mBufferRing;
+		if( ring != null ) {
+			// Free to be copied into again
+			ring.checkIn( frameData );
+		}
+	}
+
+	/**
+	 * The frame passed is always in NV21, its chroma is copied now if it was
+	 * delivered without.
+	 */
+	@Override
+	public boolean capturePreviewFrame( final PreviewCallback cb ) {
+		PreviewFrameThread frameThread = mPreviewFrameThread;
+		if( mBufferRing == null || frameThread == null ) {
+			return false;
+		}
+		PreviewCallback completing = new PreviewCallback() {
+			@Override
+			public void onPreviewFrame( PREVIEW_FORMAT format, byte[] frameData,
+										int width, int height ) {
+				completeChroma( frameData, width, height );
+				cb.onPreviewFrame( PREVIEW_FORMAT.NV21, frameData, width, height );
+			}
+		};
+		if( frameThread.passLatest( completing ) ) {
+			return true;
+		}
+		// Completed by the camera thread
+		mFrameCapture.set( cb );
+		return true;
+	}
+
+	private void completeChroma( byte[] frame, int width, int height ) {
+		Image image;
+		synchronized( mLumaImages ) {
+			image = mLumaImages.remove( frame );
+		}
+		if( image == null ) {
+			// Delivered in NV21
+			return;
+		}
+		try {
+			copyChroma( image, frame );
+		} catch( IllegalStateException e ) {
+			// The reader is closed with the session
+			Log.w( e, "Image closed, the frame is captured in gray." );
+			Arrays.fill( frame, width*height, width*height*3/2, (byte)128 );
+		} finally {
+			image.close();
+		}
+	}
+
+	@Override
+	public void setPipelineMetrics( PipelineMetrics metrics ) {
+		mMetrics = metrics;
+	}
+}
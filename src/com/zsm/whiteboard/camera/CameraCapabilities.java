@@ -0,0 +1,129 @@
+package com.zsm.whiteboard.camera;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.zsm.whiteboard.util.Size;
+
+/**
+ * What a camera can do, queried once and kept by the {@link CapabilityCache},
+ * so that the camera need not be asked again in the following sessions.
+ */
+public class CameraCapabilities {
+
+	private final int mSensorOrientation;
+	private final List<Size> mPreviewSizes;
+	private final List<Size> mCaptureSizes;
+	private final List<CameraController.FOCUS_MODE> mFocusModes;
+	private final int mMaxFocusAreas;
+	private final int mMaxMeteringAreas;
+
+	/**
+	 * @param sensorOrientation as {@link CameraInterface#getSensorOrientation()}
+	 * @param previewSizes as {@link CameraInterface#getSupportedPreviewSize()}
+	 * @param captureSizes as {@link CameraInterface#getSupportedCaptureSize()}
+	 * @param focusModes focus modes supported
+	 * @param maxFocusAreas max number of the focus areas, 0 if not supported
+	 * @param maxMeteringAreas max number of the metering areas, 0 if not
+	 * 			supported
+	 */
+	public CameraCapabilities( int sensorOrientation, List<Size> previewSizes,
+							   List<Size> captureSizes,
+							   List<CameraController.FOCUS_MODE> focusModes,
+							   int maxFocusAreas, int maxMeteringAreas ) {
+
+		mSensorOrientation = sensorOrientation;
+		mPreviewSizes = Collections.unmodifiableList( new ArrayList<Size>( previewSizes ) );
+		mCaptureSizes = Collections.unmodifiableList( new ArrayList<Size>( captureSizes ) );
+		mFocusModes
+			= Collections.unmodifiableList(
+					new ArrayList<CameraController.FOCUS_MODE>( focusModes ) );
+		mMaxFocusAreas = maxFocusAreas;
+		mMaxMeteringAreas = maxMeteringAreas;
+	}
+
+	public int getSensorOrientation() {
+		return mSensorOrientation;
+	}
+
+	public List<Size> getPreviewSizes() {
+		return mPreviewSizes;
+	}
+
+	public List<Size> getCaptureSizes() {
+		return mCaptureSizes;
+	}
+
+	public List<CameraController.FOCUS_MODE> getFocusModes() {
+		return mFocusModes;
+	}
+
+	public boolean supportsFocusMode( CameraController.FOCUS_MODE mode ) {
+		return mFocusModes.contains( mode );
+	}
+
+	public int getMaxFocusAreas() {
+		return mMaxFocusAreas;
+	}
+
+	public int getMaxMeteringAreas() {
+		return mMaxMeteringAreas;
+	}
+
+	void writeTo( DataOutput out ) throws IOException {
+		out.writeInt( mSensorOrientation );
+		writeSizes( out, mPreviewSizes );
+		writeSizes( out, mCaptureSizes );
+		out.writeInt( mFocusModes.size() );
+		for( CameraController.FOCUS_MODE mode : mFocusModes ) {
+			out.writeUTF( mode.name() );
+		}
+		out.writeInt( mMaxFocusAreas );
+		out.writeInt( mMaxMeteringAreas );
+	}
+
+	static CameraCapabilities readFrom( DataInput in ) throws IOException {
+		int orientation = in.readInt();
+		List<Size> previewSizes = readSizes( in );
+		List<Size> captureSizes = readSizes( in );
+		int count = in.readInt();
+		List<CameraController.FOCUS_MODE> focusModes
+			= new ArrayList<CameraController.FOCUS_MODE>( count );
+		for( int i = 0; i < count; i++ ) {
+			String name = in.readUTF();
+			try {
+				focusModes.add( CameraController.FOCUS_MODE.valueOf( name ) );
+			} catch( IllegalArgumentException e ) {
+				// A mode of another version, ignore it
+			}
+		}
+		int maxFocusAreas = in.readInt();
+		int maxMeteringAreas = in.readInt();
+		return new CameraCapabilities( orientation, previewSizes, captureSizes,
+									   focusModes, maxFocusAreas, maxMeteringAreas );
+	}
+
+	private static void writeSizes( DataOutput out, List<Size> sizes ) throws IOException {
+		out.writeInt( sizes.size() );
+		for( Size s : sizes ) {
+			out.writeInt( s.width );
+			out.writeInt( s.height );
+		}
+	}
+
+	private static List<Size> readSizes( DataInput in ) throws IOException {
+		int count = in.readInt();
+		if( count < 0 ) {
+			throw new IOException( "Invalid size count: " + count );
+		}
+		List<Size> sizes = new ArrayList<Size>( count );
+		for( int i = 0; i < count; i++ ) {
+			sizes.add( new Size( in.readInt(), in.readInt() ) );
+		}
+		return sizes;
+	}
+}
@@ -3,7 +3,6 @@ package com.zsm.whiteboard.camera;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 
 import android.content.Context;
@@ -13,6 +12,8 @@ import android.graphics.Point;
 import android.graphics.Rect;
 import android.graphics.RectF;
 import android.graphics.SurfaceTexture;
+import android.os.Handler;
+import android.os.Looper;
 import android.view.Display;
 import android.view.Surface;
 
@@ -47,6 +48,26 @@ public class CameraController implements CameraControllerCallback{
     
     public enum PREVIEW_FORMAT {
     	NV21,
+    	/**
+    	 * Buffers of NV21 of which only the luma is sure to be filled, for
+    	 * the callbacks reading nothing else. The camera may skip the chroma
+    	 * of each frame then. The frames captured for a picture are always
+    	 * in NV21.
+    	 */
+    	LUMA,
+    }
+    
+    public enum CAPTURE_MODE {
+    	/**
+    	 * Take the picture by the still capture of the camera, in the highest
+    	 * resolution, but the preview is interrupted
+    	 */
+    	STILL,
+    	/**
+    	 * Encode the current preview frame as the picture, without interrupting
+    	 * the preview
+    	 */
+    	PREVIEW_FRAME
     }
     
     public enum FOCUS_MODE {
@@ -67,16 +88,6 @@ public class CameraController implements CameraControllerCallback{
 		}
 	}
 	
-	private class CompareSizesByArea implements
-			Comparator<Size> {
-
-		@Override
-		public int compare(Size s1, Size s2) {
-			return s1.area() - s2.area();
-		}
-
-	}
-
 	private Context mContext;
 	private CameraInterface mCamera;
 
@@ -90,21 +101,100 @@ public class CameraController implements CameraControllerCallback{
 
 	private CameraUserInterface mCameraUserInterface;
 
+	// Pictures to take in the burst, besides the one being taken
+	private int mBurstRemaining;
+	private int mBurstTaken;
+	private boolean mInBurst;
+
+	private CAPTURE_MODE mCaptureMode = CAPTURE_MODE.STILL;
+	private FrameEncoder mFrameEncoder;
+	private PreviewSnapshot mSnapshot;
+	private final PipelineMetrics mMetrics = new PipelineMetrics();
+	private CameraSessionManager mSessionManager;
+	private int mCameraId;
+	private CapabilityCache mCapabilityCache;
+	private volatile CameraCapabilities mCapabilities;
+	private volatile FocusScheduler mFocusScheduler;
+
 	public CameraController( Context c, CameraInterface camera ) {
 		mContext = c;
 		mCamera = camera;
+		mCamera.setPipelineMetrics( mMetrics );
+	}
+	
+	/**
+	 * @return metrics of the preview pipeline, recorded by the camera and by
+	 * 			the users of the preview frames
+	 */
+	public PipelineMetrics getMetrics() {
+		return mMetrics;
+	}
+	
+	/**
+	 * @param manager manager to cache the preview size chosen in, and to
+	 * 			measure the launch by, or null
+	 */
+	public void setSessionManager( CameraSessionManager manager ) {
+		mSessionManager = manager;
+	}
+	
+	/**
+	 * @param cache cache to get the capabilities of the camera from, even
+	 * 			before it is opened, and to keep the ones queried in, or null
+	 */
+	public void setCapabilityCache( CapabilityCache cache ) {
+		mCapabilityCache = cache;
+	}
+	
+	/**
+	 * @return capabilities of the camera, from the cache if they are cached,
+	 * 			or queried from the camera; null if neither cached nor opened
+	 */
+	public CameraCapabilities getCapabilities() {
+		CameraCapabilities capabilities = mCapabilities;
+		if( capabilities != null ) {
+			return capabilities;
+		}
+		if( mCapabilityCache != null ) {
+			capabilities = mCapabilityCache.get( mCameraId );
+		}
+		if( capabilities == null ) {
+			if( mCameraState == CAMERA_STATE.NOTINITIALIZED
+				|| mCameraState == CAMERA_STATE.FAILED ) {
+				
+				return null;
+			}
+			capabilities = mCamera.queryCapabilities();
+			if( mCapabilityCache != null ) {
+				mCapabilityCache.put( mCameraId, capabilities );
+			}
+		}
+		mCapabilities = capabilities;
+		return capabilities;
 	}
 	
 	public void openCamera( final int id, CameraUserInterface ui ) {
 		mCameraUserInterface = ui;
+		if( id != mCameraId ) {
+			mCapabilities = null;
+		}
+		mCameraId = id;
         mCamera.open( id, this );
 	}
 	
 	public void releaseCamera() {
+		stopSnapshot();
+		if( mFocusScheduler != null ) {
+			mFocusScheduler.cancel();
+		}
 		if( mCamera != null ) {
 			mCamera.close();
 			mCameraState = CAMERA_STATE.NOTINITIALIZED;
 		}
+		// The picture being taken will never come
+		if( isInBurst() ) {
+			finishBurst();
+		}
 	}
 
     /**
@@ -124,7 +214,9 @@ public class CameraController implements CameraControllerCallback{
     	
     	mPreviewView = preview;
     	mPreviewViewSize = new Size( viewWidth, viewHeight );
-    	if( getState() == CAMERA_STATE.OPENED ) {
+    	// The outputs can be laid out before the camera opened, when its
+    	// capabilities are cached
+    	if( getState() == CAMERA_STATE.OPENED || getCapabilities() != null ) {
 	    	setupCameraOutputs(preview, screenRotation, screenSize);
     	}
     }
@@ -177,6 +269,7 @@ public class CameraController implements CameraControllerCallback{
 		if( getState() == CAMERA_STATE.OPENED ) {
 			SurfaceTexture surfaceTexture = mPreviewView.getSurfaceTexture();
 			try {
+				mCamera.setPreviewSize(mPreviewSensorSize);
 				mCamera.setPreviewTexture(surfaceTexture, mPreviewViewSize);
 				mCameraState = CAMERA_STATE.PREVIEW_SET;
 			} catch(IOException e) {
@@ -203,7 +296,9 @@ public class CameraController implements CameraControllerCallback{
 					throws CameraControllerException {
 		
 		try {
-			mCamera.startPreview(format, cb);
+			mCamera.startPreview(format,
+								 mSessionManager == null || cb == null
+								 	? cb : mSessionManager.watchFirstFrame( cb ) );
 		} catch(RuntimeException e) {
 			Log.e( e, "Start preview failed!" );
 			throw new CameraControllerException();
@@ -211,6 +306,7 @@ public class CameraController implements CameraControllerCallback{
 	}
 	
 	public void stopPreview() {
+		cancelSnapshot();
 		mCamera.stopPreview();
 		mCameraState = CAMERA_STATE.PREVIEW_SET;
 	}
@@ -218,12 +314,21 @@ public class CameraController implements CameraControllerCallback{
 	private Size initPreviewSize(int width, int height, int screenRotation,
 								 Size screenSize) {
 		
+		if( mSessionManager != null ) {
+			Size cached
+				= mSessionManager.getPreviewSize( mCameraId, width, height,
+												  screenRotation );
+			if( cached != null ) {
+				return cached;
+			}
+		}
+		
+		CameraCapabilities capabilities = getCapabilities();
 		// For still image captures, we use the largest available size.
 		Size largest
-			= Collections.max( mCamera.getSupportedCaptureSize(),
-							   new CompareSizesByArea());
+			= Collections.max( capabilities.getCaptureSizes(), SizeChooser.BY_AREA );
 
-		int sensorOrientation = mCamera.getSensorOrientation();
+		int sensorOrientation = capabilities.getSensorOrientation();
 		boolean swappedDimensions = false;
 		switch (screenRotation) {
 		    case Surface.ROTATION_0:
@@ -266,63 +371,21 @@ public class CameraController implements CameraControllerCallback{
 		// bus' bandwidth limitation, resulting in gorgeous previews but the storage of
 		// garbage capture data.
 		Size previewSize
-			= chooseOptimalSize(mCamera.getSupportedCaptureSize(),
-								rotatedPreviewWidth, rotatedPreviewHeight,
-								maxPreviewWidth, maxPreviewHeight, largest);
+			= SizeChooser.chooseOptimalSize(capabilities.getCaptureSizes(),
+											rotatedPreviewWidth, rotatedPreviewHeight,
+											maxPreviewWidth, maxPreviewHeight, largest);
+		if( previewSize == null ) {
+			Log.w("Couldn't find any suitable preview size");
+			previewSize = capabilities.getCaptureSizes().get( 0 );
+		}
+		if( mSessionManager != null ) {
+			mSessionManager.putPreviewSize( mCameraId, width, height, screenRotation,
+											previewSize );
+		}
 		
 		return previewSize;
 	}
     
-    /**
-     * Given {@code choices} of {@code Size}s supported by a camera, choose the smallest one that
-     * is at least as large as the respective texture view size, and that is at most as large as the
-     * respective max size, and whose aspect ratio matches with the specified value. If such size
-     * doesn't exist, choose the largest one that is at most as large as the respective max size,
-     * and whose aspect ratio matches with the specified value.
-     *
-     * @param choices           The list of sizes that the camera supports for the intended output
-     *                          class
-     * @param viewWidth  The width of the texture view relative to sensor coordinate
-     * @param viewHeight The height of the texture view relative to sensor coordinate
-     * @param maxWidth          The maximum width that can be chosen
-     * @param maxHeight         The maximum height that can be chosen
-     * @param aspectRatio       The aspect ratio
-     * @return The optimal {@code Size}, or an arbitrary one if none were big enough
-     */
-    private Size chooseOptimalSize(List<Size> choices, int viewWidth,
-            					   int viewHeight, int maxWidth,
-            					   int maxHeight, Size aspectRatio) {
-
-        // Collect the supported resolutions that are at least as big as the preview Surface
-        List<Size> bigEnough = new ArrayList<>();
-        // Collect the supported resolutions that are smaller than the preview Surface
-        List<Size> notBigEnough = new ArrayList<>();
-        int w = aspectRatio.getWidth();
-        int h = aspectRatio.getHeight();
-        for (Size option : choices) {
-            if (option.getWidth() <= maxWidth && option.getHeight() <= maxHeight &&
-                    option.getHeight() == option.getWidth() * h / w) {
-                if (option.getWidth() >= viewWidth &&
-                    option.getHeight() >= viewHeight) {
-                    bigEnough.add(option);
-                } else {
-                    notBigEnough.add(option);
-                }
-            }
-        }
-
-        // Pick the smallest of those big enough. If there is no one big enough, pick the
-        // largest of those not big enough.
-        if (bigEnough.size() > 0) {
-            return Collections.min(bigEnough, new CompareSizesByArea());
-        } else if (notBigEnough.size() > 0) {
-            return Collections.max(notBigEnough, new CompareSizesByArea());
-        } else {
-            Log.w("Couldn't find any suitable preview size");
-            return choices.get( 0 );
-        }
-    }
-
     /**
      * Configures the necessary {@link android.graphics.Matrix} transformation to `mTextureView`.
      * This method should be called after the camera preview size is determined in
@@ -355,15 +418,174 @@ public class CameraController implements CameraControllerCallback{
         mPreviewView.setTransform(matrix);
     }
 
-    public void startAutoFocusAt( Rect displayRect ) {
-    	mCamera.setFocusMode( FOCUS_MODE.AUTO );
-    	mCamera.startAutoFocusAt(displayRect);
+    /**
+     * Focus at the place tapped. The taps in quick succession are coalesced,
+     * and only the last one is focused at.
+     * 
+     * @param displayRect the place in the coordinates of the preview view
+     * @return id of the request, the result will be reported to
+     * 			{@link CameraUserInterface#onAutoFocus(int, boolean)} with it
+     */
+    public int startAutoFocusAt( Rect displayRect ) {
+    	return getFocusScheduler().request( displayRect );
+    }
+    
+    /**
+     * Focus at a region of the preview frames, if no other focus is requested
+     * or running, so that a focus tapped is never overridden. The focus mode
+     * is switched back when the focus finishes, as for a tap.
+     * 
+     * @param region the region normalized by the size of the preview frames
+     * @return id of the request, or 0 if another focus is requested or running
+     */
+    public int startAutoFocusOnFrame( RectF region ) {
+    	// The frames are in the orientation of the sensor, as the areas are
+    	Rect rect = new Rect( (int)( region.left*2000 - 1000 ),
+    						  (int)( region.top*2000 - 1000 ),
+    						  (int)( region.right*2000 - 1000 ),
+    						  (int)( region.bottom*2000 - 1000 ) );
+    	List<Area> areas = new ArrayList<Area>();
+    	areas.add( new Area( rect, 1000 ) );
+    	return getFocusScheduler().requestAreasIfIdle( areas );
+    }
+    
+    /**
+     * @return true, if a focus is requested or running
+     */
+    public boolean isFocusing() {
+    	FocusScheduler scheduler = mFocusScheduler;
+    	return scheduler != null && scheduler.isBusy();
+    }
+    
+    private synchronized FocusScheduler getFocusScheduler() {
+    	if( mFocusScheduler == null ) {
+    		Handler handler
+    			= mSessionManager == null
+    				? new Handler( Looper.getMainLooper() ) : mSessionManager.getHandler();
+    		mFocusScheduler
+    			= new FocusScheduler( mCamera, handler, new FocusScheduler.Listener() {
+					@Override
+					public void onFocusResult(int requestId, boolean success) {
+						mCameraUserInterface.onAutoFocus( requestId, success );
+					}
+				} );
+    	}
+    	return mFocusScheduler;
     }
     
     public void takePicture() {
+    	if( mCaptureMode == CAPTURE_MODE.PREVIEW_FRAME ) {
+    		if( takeSnapshot() ) {
+    			return;
+    		}
+    		Log.w( "Snapshot unavailable, take the picture by still capture." );
+    	}
     	mCamera.takePicture( CameraController.PICTURE_TYPE.JPEG);
     }
     
+    public void setCaptureMode( CAPTURE_MODE mode ) {
+    	mCaptureMode = mode;
+    }
+    
+    public CAPTURE_MODE getCaptureMode() {
+    	return mCaptureMode;
+    }
+    
+    /**
+     * Set the encoder of the pictures captured from the preview frames.
+     * 
+     * @param encoder the encoder, or null for the default one of
+     * 			{@link YuvJpegEncoder}
+     */
+    public void setFrameEncoder( FrameEncoder encoder ) {
+    	mFrameEncoder = encoder;
+    	// Created with the new encoder when needed
+    	stopSnapshot();
+    }
+    
+    /**
+     * Capture the current preview frame as the picture, without interrupting
+     * the preview. The picture is passed to
+     * {@link CameraUserInterface#savePicture} in the encoding thread.
+     * 
+     * @return true, if the snapshot is being taken; false, if one is being
+     * 			taken already, or the preview frames are not available
+     */
+    public boolean takeSnapshot() {
+    	if( mSnapshot == null ) {
+    		FrameEncoder encoder
+    			= mFrameEncoder == null ? new YuvJpegEncoder() : mFrameEncoder;
+    		mSnapshot = new PreviewSnapshot( mCamera, encoder, mCameraUserInterface );
+    	}
+    	return mSnapshot.take();
+    }
+    
+    // The request of the snapshot is dropped by the camera when the preview
+    // stops
+    private void cancelSnapshot() {
+    	if( mSnapshot != null ) {
+    		mSnapshot.cancel();
+    	}
+    }
+    
+    private void stopSnapshot() {
+    	if( mSnapshot != null ) {
+    		mSnapshot.stop();
+    		mSnapshot = null;
+    	}
+    }
+    
+    /**
+     * Take pictures one after another, as fast as the camera can. The next
+     * picture is taken as soon as the preview restarted after the former one.
+     * Each picture is passed to {@link CameraUserInterface#savePicture}, and
+     * the end of the burst to {@link CameraUserInterface#burstFinished}.
+     * 
+     * @param count number of the pictures to take
+     * @return true, if the burst started; false, if a burst is running
+     */
+    public boolean takeBurst( int count ) {
+    	if( count < 1 ) {
+    		throw new IllegalArgumentException( "Invalid burst count: " + count );
+    	}
+    	synchronized( this ) {
+	    	if( mInBurst ) {
+	    		return false;
+	    	}
+	    	mInBurst = true;
+	    	mBurstRemaining = count - 1;
+	    	mBurstTaken = 0;
+    	}
+    	takeBurstPicture();
+    	return true;
+    }
+    
+    /**
+     * @return true, if a burst is running
+     */
+    public synchronized boolean isInBurst() {
+    	return mInBurst;
+    }
+    
+    private void takeBurstPicture() {
+    	try {
+    		mCamera.takePicture( CameraController.PICTURE_TYPE.JPEG );
+    	} catch( RuntimeException e ) {
+    		Log.e( e, "Take burst picture failed!" );
+    		finishBurst();
+    	}
+    }
+    
+    private void finishBurst() {
+    	int taken;
+    	synchronized( this ) {
+    		taken = mBurstTaken;
+    		mInBurst = false;
+    		mBurstRemaining = 0;
+    	}
+    	mCameraUserInterface.burstFinished( taken );
+    }
+    
 	public void soundShutter( boolean sound ) {
 		mCamera.soundShutter(sound);
 	}
@@ -372,9 +594,23 @@ public class CameraController implements CameraControllerCallback{
 		mCamera.setPreviewFrameProcessing( processing );
 	}
 	
+	/**
+	 * @see CameraInterface#releasePreviewFrame
+	 */
+	public void releasePreviewFrame( byte[] frameData ) {
+		mCamera.releasePreviewFrame( frameData );
+	}
+	
 	@Override
 	public void onOpened(int id) {
 		mCameraState = CAMERA_STATE.OPENED;
+		// Query the capabilities in the camera thread if they are not cached,
+		// while the views may be still being inflated, so that setting the
+		// preview up in the UI thread need not wait for them
+		getCapabilities();
+		if( mSessionManager != null ) {
+			mSessionManager.markOpened();
+		}
 		if( mPreviewView != null ) {
 			setPreviewTexture();
 		}
@@ -393,13 +629,41 @@ public class CameraController implements CameraControllerCallback{
 	}
 
 	@Override
-	public void onAutoFocus(boolean success) {
-		mCameraUserInterface.onAutoFocus(success);
+	public void onAutoFocus(int focusId, boolean success) {
+		if( mFocusScheduler != null ) {
+			mFocusScheduler.onAutoFocus( focusId, success );
+		} else {
+			mCameraUserInterface.onAutoFocus( 0, success );
+		}
 	}
 
 	@Override
 	public void onPictureReady(PICTURE_TYPE imageType, byte[] pictureData) {
-		mCameraUserInterface.savePicture(imageType, pictureData);
+		boolean inBurst;
+		synchronized( this ) {
+			inBurst = mInBurst;
+		}
+		if( !inBurst ) {
+			mCameraUserInterface.savePicture(imageType, pictureData);
+			return;
+		}
+		mCameraUserInterface.saveBurstPicture( pictureData );
+		boolean next;
+		synchronized( this ) {
+			if( !mInBurst ) {
+				return;
+			}
+			mBurstTaken++;
+			next = mBurstRemaining > 0;
+			if( next ) {
+				mBurstRemaining--;
+			}
+		}
+		if( next ) {
+			takeBurstPicture();
+		} else {
+			finishBurst();
+		}
 	}
 
 }
@@ -8,7 +8,11 @@ public interface CameraControllerCallback {
 
 	void onOpenFailed(int id, Exception e);
 	
-	void onAutoFocus( boolean success );
+	/**
+	 * @param focusId id of the focus, as returned when it started
+	 * @param success true, if focused
+	 */
+	void onAutoFocus( int focusId, boolean success );
 	
 	void onPictureReady( CameraController.PICTURE_TYPE imageType, byte[] pictureData );
 }
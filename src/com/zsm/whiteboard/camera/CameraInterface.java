@@ -22,6 +22,24 @@ public interface CameraInterface {
 
 	int getSensorOrientation();
 
+	/**
+	 * Set the size of the preview frames, as chosen by the controller. It is
+	 * applied when the preview texture set or the preview started next time.
+	 * A size not supported for the preview is ignored, and the camera keeps
+	 * its own.
+	 * 
+	 * @param size size of the preview frames, in the sensor coordinate
+	 */
+	void setPreviewSize( Size size );
+
+	/**
+	 * Query all the capabilities of the opened camera at once, to be cached
+	 * by {@link CapabilityCache}.
+	 * 
+	 * @return the capabilities
+	 */
+	CameraCapabilities queryCapabilities();
+
 	/**
 	 * Set where to display the preview. If neither Surface nor SurfaceTexture set,
 	 * the preview callback MUST be set when {@link startPreview} invoked, and in
@@ -75,9 +93,22 @@ public interface CameraInterface {
 
 	public abstract void cancelAutoFocus();
 
-	public abstract void autoFocus();
+	/**
+	 * Start a focus. Its result is reported by
+	 * {@link CameraControllerCallback#onAutoFocus} with the id returned, so
+	 * that a late result of an earlier focus can be told from it.
+	 * 
+	 * @return id of the focus, never 0
+	 */
+	public abstract int autoFocus();
 
-	public abstract void startAutoFocusAt(Rect displayRect);
+	/**
+	 * Start a focus at the place, as {@link #autoFocus()}.
+	 * 
+	 * @param displayRect the place in the coordinates of the preview view
+	 * @return id of the focus, never 0
+	 */
+	public abstract int startAutoFocusAt(Rect displayRect);
 
 	public abstract void takePicture(final CameraController.PICTURE_TYPE imageType);
 
@@ -85,8 +116,44 @@ public interface CameraInterface {
 
 	public abstract void setFocusMode(CameraController.FOCUS_MODE mode);
 
+	/**
+	 * @return the focus mode set, or null if the camera is in a mode not
+	 * 			of {@link CameraController.FOCUS_MODE}
+	 */
+	CameraController.FOCUS_MODE getFocusMode();
+
 	public abstract void setPreviewCallback(final CameraController.PREVIEW_FORMAT type, final PreviewCallback cb);
 
 	void setPreviewFrameProcessing(boolean processing);
 
+	/**
+	 * Give the frame delivered by {@link PreviewCallback#onPreviewFrame} back to
+	 * the camera, so that it can be filled again. The frame MUST NOT be accessed
+	 * after released. Frames not delivered by the callback installed by
+	 * {@link startPreview}, or released already, are ignored.
+	 * 
+	 * @param frameData data of the frame to release
+	 */
+	void releasePreviewFrame(byte[] frameData);
+
+	/**
+	 * Pass the preview frame on the screen to the callback, instead of the
+	 * callback installed by {@link startPreview}. It is the newest frame
+	 * arrived if it is still held, passed in the invoking thread, otherwise
+	 * the next frame, passed in the thread of the camera. So the callback
+	 * should return at once. It owns the frame, and MUST release it by
+	 * {@link releasePreviewFrame}. The request is dropped when the preview
+	 * stops.
+	 * 
+	 * @param cb callback to pass the frame to
+	 * @return true, if the frame will be passed; false, if the preview is not
+	 * 			running with a frame callback
+	 */
+	boolean capturePreviewFrame(PreviewCallback cb);
+
+	/**
+	 * @param metrics metrics to record the stages of the camera into
+	 */
+	void setPipelineMetrics(PipelineMetrics metrics);
+
 }
@@ -0,0 +1,141 @@
+package com.zsm.whiteboard.camera;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import com.zsm.log.Log;
+import com.zsm.whiteboard.camera.CameraController.PREVIEW_FORMAT;
+import com.zsm.whiteboard.util.Size;
+
+/**
+ * Keep what outlives a camera session: one camera thread for all the sessions
+ * of the application, instead of a new thread for each open, and the preview
+ * size chosen for each camera, so that a session started again need not
+ * choose it again.
+ * <p>It also measures the time from the launch, or the resume, to the camera
+ * opened and to the first preview frame delivered.
+ */
+public class CameraSessionManager {
+
+	private final HandlerThread mCameraThread;
+	private final Handler mHandler;
+	private final Map<String, Size> mPreviewSizes = new HashMap<String, Size>();
+
+	private volatile long mLaunchTime;
+	private final AtomicBoolean mOpenedSeen = new AtomicBoolean( true );
+	private final AtomicBoolean mFirstFrameSeen = new AtomicBoolean( true );
+	private volatile long mLaunchToOpened = -1;
+	private volatile long mLaunchToFirstFrame = -1;
+
+	public CameraSessionManager() {
+		mCameraThread = new HandlerThread( "CameraSession" );
+		mCameraThread.start();
+		mHandler = new Handler( mCameraThread.getLooper() );
+	}
+
+	/**
+	 * @return handler of the camera thread, to open the cameras and to receive
+	 * 			their callbacks in
+	 */
+	public Handler getHandler() {
+		return mHandler;
+	}
+
+	/**
+	 * Mark the start of the launch, from which the time to the camera opened
+	 * and to the first preview frame is measured.
+	 */
+	public void markLaunch() {
+		mLaunchTime = System.nanoTime();
+		mOpenedSeen.set( false );
+		mFirstFrameSeen.set( false );
+	}
+
+	void markOpened() {
+		if( !mOpenedSeen.getAndSet( true ) ) {
+			mLaunchToOpened = System.nanoTime() - mLaunchTime;
+			Log.i( "Camera opened after launch.", "ms", toMillis( mLaunchToOpened ) );
+		}
+	}
+
+	void markFirstFrame() {
+		if( !mFirstFrameSeen.getAndSet( true ) ) {
+			mLaunchToFirstFrame = System.nanoTime() - mLaunchTime;
+			Log.i( "First preview frame after launch.", "ms",
+				   toMillis( mLaunchToFirstFrame ), "opened at",
+				   toMillis( mLaunchToOpened ) );
+		}
+	}
+
+	/**
+	 * @return milliseconds from the last launch to the camera opened, or -1
+	 * 			if not measured
+	 */
+	public long getLaunchToOpenedMillis() {
+		return toMillis( mLaunchToOpened );
+	}
+
+	/**
+	 * @return milliseconds from the last launch to the first preview frame,
+	 * 			or -1 if not measured
+	 */
+	public long getLaunchToFirstFrameMillis() {
+		return toMillis( mLaunchToFirstFrame );
+	}
+
+	private static long toMillis( long nanos ) {
+		return nanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis( nanos );
+	}
+
+	/**
+	 * Wrap the preview callback, to mark the first frame after the launch
+	 * delivered.
+	 *
+	 * @param cb the callback
+	 * @return the callback wrapped
+	 */
+	PreviewCallback watchFirstFrame( final PreviewCallback cb ) {
+		return new PreviewCallback() {
+			@Override
+			public void onPreviewFrame( PREVIEW_FORMAT format, byte[] frameData,
+										int width, int height ) {
+				markFirstFrame();
+				cb.onPreviewFrame( format, frameData, width, height );
+			}
+		};
+	}
+
+	/**
+	 * @return the preview size chosen in a former session for the same
+	 * 			camera and view, or null if none
+	 */
+	synchronized Size getPreviewSize( int cameraId, int viewWidth, int viewHeight,
+									  int screenRotation ) {
+		return mPreviewSizes.get(
+					configKey( cameraId, viewWidth, viewHeight, screenRotation ) );
+	}
+
+	synchronized void putPreviewSize( int cameraId, int viewWidth, int viewHeight,
+									  int screenRotation, Size size ) {
+		mPreviewSizes.put( configKey( cameraId, viewWidth, viewHeight, screenRotation ),
+						   size );
+	}
+
+	private static String configKey( int cameraId, int viewWidth, int viewHeight,
+									 int screenRotation ) {
+		return cameraId + ":" + viewWidth + "x" + viewHeight + "@" + screenRotation;
+	}
+
+	/**
+	 * Stop the camera thread after the work posted done. The manager cannot
+	 * be used any more.
+	 */
+	public void quit() {
+		mCameraThread.quitSafely();
+	}
+}
@@ -9,7 +9,38 @@ public interface CameraUserInterface {
 
 	void cameraOpenFailed(int id, Exception e);
 	
-	void onAutoFocus( boolean success );
+	/**
+	 * The camera finished focusing. It is invoked in the camera thread.
+	 * 
+	 * @param requestId id returned by {@link CameraController#startAutoFocusAt},
+	 * 			or 0 if the focus was not requested by it
+	 * @param success true, if focused
+	 */
+	void onAutoFocus( int requestId, boolean success );
 	
+	/**
+	 * A picture is taken, not in a burst. It is invoked in the camera thread,
+	 * or in the encoding thread for a snapshot.
+	 * 
+	 * @param imageType type of the picture
+	 * @param data the picture
+	 */
 	void savePicture( CameraController.PICTURE_TYPE imageType, byte[] data );
+	
+	/**
+	 * A picture of a burst started by {@link CameraController#takeBurst} is
+	 * taken. It is invoked in the camera thread.
+	 * 
+	 * @param jpeg the picture in JPEG
+	 */
+	void saveBurstPicture( byte[] jpeg );
+	
+	/**
+	 * A burst started by {@link CameraController#takeBurst} finished, all of
+	 * its pictures have been passed to {@link #saveBurstPicture}. It is
+	 * invoked in the camera thread.
+	 * 
+	 * @param count number of the pictures taken in the burst
+	 */
+	void burstFinished( int count );
 }
@@ -0,0 +1,121 @@
+package com.zsm.whiteboard.camera;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.os.Build;
+
+import com.zsm.log.Log;
+
+/**
+ * Keep the {@link CameraCapabilities} of each camera in a file, so that they
+ * are known before the camera is opened, and the camera is only asked for
+ * them once. The file is for the device it is written on, it is dropped when
+ * the device or its system changes.
+ */
+public class CapabilityCache {
+
+	private static final int FILE_VERSION = 1;
+
+	private final File mFile;
+	private final String mDevice;
+	private final Map<Integer, CameraCapabilities> mCapabilities
+		= new HashMap<Integer, CameraCapabilities>();
+
+	/**
+	 * @param file file to keep the capabilities in
+	 */
+	public CapabilityCache( File file ) {
+		this( file, Build.MANUFACTURER + "/" + Build.MODEL + "/" + Build.FINGERPRINT );
+	}
+
+	/**
+	 * @param file file to keep the capabilities in
+	 * @param device identity of the device, the file of another device is
+	 * 			dropped
+	 */
+	CapabilityCache( File file, String device ) {
+		mFile = file;
+		mDevice = device;
+	}
+
+	/**
+	 * Load the capabilities from the file. The file of another device, or
+	 * broken, is ignored.
+	 */
+	public synchronized void load() {
+		mCapabilities.clear();
+		try( DataInputStream in
+				= new DataInputStream(
+					new BufferedInputStream( new FileInputStream( mFile ) ) ) ) {
+
+			if( in.readInt() != FILE_VERSION || !mDevice.equals( in.readUTF() ) ) {
+				Log.d( "Camera capabilities of another version or device dropped." );
+				return;
+			}
+			int count = in.readInt();
+			for( int i = 0; i < count; i++ ) {
+				int id = in.readInt();
+				mCapabilities.put( id, CameraCapabilities.readFrom( in ) );
+			}
+			Log.d( "Camera capabilities loaded.", "cameras", count );
+		} catch( FileNotFoundException e ) {
+			Log.d( "No camera capabilities cached yet." );
+		} catch( IOException | RuntimeException e ) {
+			Log.w( e, "Load camera capabilities failed, they will be queried again." );
+			mCapabilities.clear();
+		}
+	}
+
+	/**
+	 * @param cameraId id of the camera
+	 * @return the capabilities of the camera, or null if not cached
+	 */
+	public synchronized CameraCapabilities get( int cameraId ) {
+		return mCapabilities.get( cameraId );
+	}
+
+	/**
+	 * Cache the capabilities of the camera, and save them into the file.
+	 *
+	 * @param cameraId id of the camera
+	 * @param capabilities capabilities of the camera
+	 */
+	public synchronized void put( int cameraId, CameraCapabilities capabilities ) {
+		mCapabilities.put( cameraId, capabilities );
+		try {
+			save();
+		} catch( IOException e ) {
+			Log.w( e, "Save camera capabilities failed!", mFile );
+		}
+	}
+
+	private void save() throws IOException {
+		File temp = new File( mFile.getPath() + ".tmp" );
+		try( DataOutputStream out
+				= new DataOutputStream(
+					new BufferedOutputStream( new FileOutputStream( temp ) ) ) ) {
+
+			out.writeInt( FILE_VERSION );
+			out.writeUTF( mDevice );
+			out.writeInt( mCapabilities.size() );
+			for( Map.Entry<Integer, CameraCapabilities> e : mCapabilities.entrySet() ) {
+				out.writeInt( e.getKey() );
+				e.getValue().writeTo( out );
+			}
+		}
+		if( !temp.renameTo( mFile ) ) {
+			temp.delete();
+			throw new IOException( "Cannot rename " + temp + " to " + mFile );
+		}
+	}
+}
@@ -0,0 +1,275 @@
+package com.zsm.whiteboard.camera;
+
+import java.util.List;
+
+import android.graphics.Rect;
+import android.os.Handler;
+
+import com.zsm.log.Log;
+
+/**
+ * Schedule the focus at the places tapped. The taps within a short window are
+ * coalesced into the last one, and a focus still running when a newer one
+ * starts is cancelled, so rapid taps never queue up work in the camera. A
+ * focus not finished in time is cancelled and reported as failed.
+ * <p>Each tap gets a request id, and the result is reported with the id of
+ * the focus it belongs to, so that the user can tell a stale result from the
+ * one of the last tap. The camera reports its results with the id of its
+ * focus, and a late result of a focus superseded, timed out or cancelled is
+ * dropped, never taken as the one of the focus running.
+ * <p>The camera is switched to the auto focus mode for a focus, and switched
+ * back to the mode it was in when the focus finishes or is cancelled.
+ * <p>Besides the taps, a focus at some areas can be requested when no other
+ * focus is requested or running, for example by the content of the frames.
+ * <p>The camera is driven in the thread of the handler, and the results are
+ * reported in it.
+ */
+class FocusScheduler {
+
+	interface Listener {
+		void onFocusResult( int requestId, boolean success );
+	}
+
+	static final long DEFAULT_COALESCE_MS = 100;
+	static final long DEFAULT_TIMEOUT_MS = 3000;
+
+	private final CameraInterface mCamera;
+	private final Handler mHandler;
+	private final Listener mListener;
+	private final long mCoalesceMs;
+	private final long mTimeoutMs;
+
+	// Tap waiting for the window to close, guarded by this
+	private int mNextId;
+	private int mPendingId;
+	private Rect mPendingRect;
+	private List<CameraController.Area> mPendingAreas;
+
+	// Written by the thread of the handler
+	private volatile int mRunningId;
+	// Id of the focus of the camera for the running request, owned by the
+	// thread of the handler
+	private int mCameraFocusId;
+	// Mode to switch back to after the focus, or null if not switched,
+	// owned by the thread of the handler
+	private CameraController.FOCUS_MODE mRestoreMode;
+
+	private final Runnable mStarter = new Runnable() {
+		@Override
+		public void run() {
+			startPending();
+		}
+	};
+
+	private final Runnable mTimeout = new Runnable() {
+		@Override
+		public void run() {
+			if( mRunningId != 0 ) {
+				Log.w( "Focus timed out, cancel it.", "request", mRunningId );
+				mCamera.cancelAutoFocus();
+				finish( false );
+			}
+		}
+	};
+
+	FocusScheduler( CameraInterface camera, Handler handler, Listener listener ) {
+		this( camera, handler, listener, DEFAULT_COALESCE_MS, DEFAULT_TIMEOUT_MS );
+	}
+
+	/**
+	 * @param camera camera to focus
+	 * @param handler handler of the thread to drive the camera in
+	 * @param listener listener of the results
+	 * @param coalesceMs taps within so many milliseconds are coalesced
+	 * @param timeoutMs a focus not finished in so many milliseconds is
+	 * 			cancelled
+	 */
+	FocusScheduler( CameraInterface camera, Handler handler, Listener listener,
+					long coalesceMs, long timeoutMs ) {
+		mCamera = camera;
+		mHandler = handler;
+		mListener = listener;
+		mCoalesceMs = coalesceMs;
+		mTimeoutMs = timeoutMs;
+	}
+
+	/**
+	 * Request to focus at the place. It returns at once, the focus starts
+	 * when no newer request comes within the window.
+	 *
+	 * @param displayRect the place in the coordinates of the preview view
+	 * @return id of the request, never 0
+	 */
+	int request( Rect displayRect ) {
+		int id;
+		synchronized( this ) {
+			id = nextId();
+			mPendingRect = new Rect( displayRect );
+			mPendingAreas = null;
+		}
+		mHandler.removeCallbacks( mStarter );
+		mHandler.postDelayed( mStarter, mCoalesceMs );
+		return id;
+	}
+
+	/**
+	 * Request to focus at the areas, if no other focus is requested or
+	 * running. The focus starts at once.
+	 *
+	 * @param areas the areas in the coordinates of the camera
+	 * @return id of the request, or 0 if another focus is requested or running
+	 */
+	int requestAreasIfIdle( List<CameraController.Area> areas ) {
+		int id;
+		synchronized( this ) {
+			if( isBusy() ) {
+				return 0;
+			}
+			id = nextId();
+			mPendingAreas = areas;
+		}
+		mHandler.post( mStarter );
+		return id;
+	}
+
+	/**
+	 * @return true, if a focus is requested or running
+	 */
+	synchronized boolean isBusy() {
+		return mPendingId != 0 || mRunningId != 0;
+	}
+
+	// Guarded by this
+	private int nextId() {
+		if( ++mNextId == 0 ) {
+			mNextId = 1;
+		}
+		mPendingId = mNextId;
+		return mNextId;
+	}
+
+	private void startPending() {
+		int id;
+		int superseded = mRunningId;
+		Rect rect;
+		List<CameraController.Area> areas;
+		synchronized( this ) {
+			id = mPendingId;
+			rect = mPendingRect;
+			areas = mPendingAreas;
+			mPendingId = 0;
+			mPendingRect = null;
+			mPendingAreas = null;
+			if( id != 0 ) {
+				// Taken over at once, so that it is busy in between
+				mRunningId = id;
+			}
+		}
+		if( id == 0 ) {
+			return;
+		}
+		if( superseded != 0 ) {
+			Log.d( "Focus superseded, cancel it.", "request", superseded, "by", id );
+			mHandler.removeCallbacks( mTimeout );
+			mCamera.cancelAutoFocus();
+		}
+		try {
+			switchToAuto();
+			// The results are handled in this thread, so none of the focus
+			// is handled before its id is known
+			if( rect != null ) {
+				mCameraFocusId = mCamera.startAutoFocusAt( rect );
+			} else {
+				mCamera.setFocusAndMeteringArea( areas );
+				mCameraFocusId = mCamera.autoFocus();
+			}
+		} catch( RuntimeException e ) {
+			Log.e( e, "Start focus failed!", "request", id );
+			finish( false );
+			return;
+		}
+		mHandler.postDelayed( mTimeout, mTimeoutMs );
+	}
+
+	// Kept switched while a focus supersedes another, so the mode saved is
+	// the one before the first
+	private void switchToAuto() {
+		if( mRestoreMode != null ) {
+			return;
+		}
+		CameraController.FOCUS_MODE mode = mCamera.getFocusMode();
+		if( mode == CameraController.FOCUS_MODE.AUTO ) {
+			return;
+		}
+		if( mode == null ) {
+			Log.w( "Focus mode unknown, it will not be restored after the focus." );
+		}
+		mCamera.setFocusMode( CameraController.FOCUS_MODE.AUTO );
+		mRestoreMode = mode;
+	}
+
+	private void restoreMode() {
+		CameraController.FOCUS_MODE mode = mRestoreMode;
+		mRestoreMode = null;
+		if( mode == null ) {
+			return;
+		}
+		try {
+			mCamera.setFocusMode( mode );
+		} catch( RuntimeException e ) {
+			// The camera may have been closed when cancelled
+			Log.w( e, "Restore the focus mode failed.", mode );
+		}
+	}
+
+	/**
+	 * The camera finished focusing. It can be invoked in any thread.
+	 *
+	 * @param focusId id of the focus of the camera
+	 * @param success true, if focused
+	 */
+	void onAutoFocus( final int focusId, final boolean success ) {
+		mHandler.post( new Runnable() {
+			@Override
+			public void run() {
+				if( mRunningId == 0 || focusId != mCameraFocusId ) {
+					Log.d( "Stale focus result dropped.", "focus", focusId,
+						   "running", mCameraFocusId );
+					return;
+				}
+				finish( success );
+			}
+		} );
+	}
+
+	private void finish( boolean success ) {
+		int id = mRunningId;
+		mRunningId = 0;
+		mCameraFocusId = 0;
+		mHandler.removeCallbacks( mTimeout );
+		restoreMode();
+		mListener.onFocusResult( id, success );
+	}
+
+	/**
+	 * Drop the request waiting, and forget the focus running. Its result, if
+	 * any, will be dropped.
+	 */
+	void cancel() {
+		synchronized( this ) {
+			mPendingId = 0;
+			mPendingRect = null;
+			mPendingAreas = null;
+		}
+		mHandler.removeCallbacks( mStarter );
+		mHandler.post( new Runnable() {
+			@Override
+			public void run() {
+				mRunningId = 0;
+				mCameraFocusId = 0;
+				mHandler.removeCallbacks( mTimeout );
+				restoreMode();
+			}
+		} );
+	}
+}
@@ -0,0 +1,31 @@
+package com.zsm.whiteboard.camera;
+
+import java.io.IOException;
+
+import com.zsm.whiteboard.camera.CameraController.PREVIEW_FORMAT;
+
+/**
+ * Encode a preview frame into a picture, for the capture mode of
+ * {@link CameraController.CAPTURE_MODE#PREVIEW_FRAME}.
+ */
+public interface FrameEncoder {
+
+	/**
+	 * Encode the frame. It is invoked in the encoding thread, one frame at a
+	 * time.
+	 * 
+	 * @param format format of the frame
+	 * @param frame data of the frame, which MUST NOT be held after returned
+	 * @param width width of the frame
+	 * @param height height of the frame
+	 * @return the picture encoded
+	 * @throws IOException if the frame cannot be encoded
+	 */
+	byte[] encode( PREVIEW_FORMAT format, byte[] frame, int width, int height )
+				throws IOException;
+
+	/**
+	 * @return type of the pictures encoded
+	 */
+	CameraController.PICTURE_TYPE getPictureType();
+}
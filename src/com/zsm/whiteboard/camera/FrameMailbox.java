@@ -0,0 +1,90 @@
+package com.zsm.whiteboard.camera;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A single slot, lock free hand off between one producer and one consumer.
+ * The producer always replaces what is in the slot, so the consumer sees
+ * the newest item only, and the replaced stale item is given back to the
+ * producer to be recycled. The consumer is parked while the slot is empty,
+ * so no CPU is used when there is nothing to do.
+ *
+ * @param <T> type of the item handed off
+ */
+class FrameMailbox<T> {
+
+	private final AtomicReference<T> mSlot = new AtomicReference<T>();
+	private volatile Thread mConsumer;
+	private volatile boolean mClosed;
+
+	/**
+	 * Put the item into the slot and wake the consumer up.
+	 *
+	 * @param item item to hand off, MUST NOT be null
+	 * @return the stale item replaced, which was never taken by the consumer,
+	 * 			or null if the slot was empty
+	 */
+	T post( T item ) {
+		T stale = mSlot.getAndSet( item );
+		Thread consumer = mConsumer;
+		if( consumer != null ) {
+			LockSupport.unpark( consumer );
+		}
+		return stale;
+	}
+
+	/**
+	 * Take the item out of the slot without waiting.
+	 *
+	 * @return the item in the slot, or null if the slot is empty
+	 */
+	T poll() {
+		return mSlot.getAndSet( null );
+	}
+
+	/**
+	 * Take the item out of the slot. The invoking thread is parked until an
+	 * item posted, or the mailbox closed. Only one thread can take.
+	 *
+	 * @return the newest item, or null if the mailbox is closed or the thread
+	 * 			is interrupted
+	 */
+	T take() {
+		mConsumer = Thread.currentThread();
+		try {
+			while( !mClosed ) {
+				T item = mSlot.getAndSet( null );
+				if( item != null ) {
+					return item;
+				}
+				LockSupport.park( this );
+				if( Thread.interrupted() ) {
+					return null;
+				}
+			}
+			return null;
+		} finally {
+			mConsumer = null;
+		}
+	}
+
+	/**
+	 * Close the mailbox and wake the consumer up. The consumer will get null
+	 * from {@link #take}.
+	 *
+	 * @return the item left in the slot, or null if the slot is empty
+	 */
+	T close() {
+		mClosed = true;
+		Thread consumer = mConsumer;
+		if( consumer != null ) {
+			LockSupport.unpark( consumer );
+		}
+		return poll();
+	}
+
+	boolean isClosed() {
+		return mClosed;
+	}
+}
@@ -0,0 +1,23 @@
+package com.zsm.whiteboard.camera;
+
+import java.io.Closeable;
+
+/**
+ * Source of the preview frames of a {@link SimulatedCamera}, also used by
+ * the benchmarks.
+ */
+public interface FrameSource extends Closeable {
+
+	/**
+	 * Fill a frame in NV21. It is invoked in the frame producing thread of
+	 * the camera, once for each frame, in the order of the frames.
+	 * 
+	 * @param nv21 buffer to fill, of width*height*3/2 bytes
+	 * @param width width of the frame
+	 * @param height height of the frame
+	 * @param index index of the frame since the camera opened. Indexes of
+	 * 			the frames dropped are skipped, and the same index may be
+	 * 			filled again for a still picture.
+	 */
+	void fill( byte[] nv21, int width, int height, long index );
+}
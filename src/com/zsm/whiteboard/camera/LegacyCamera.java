@@ -3,6 +3,9 @@ package com.zsm.whiteboard.camera;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import android.graphics.ImageFormat;
 import android.graphics.Rect;
@@ -10,6 +13,7 @@ import android.graphics.SurfaceTexture;
 import android.hardware.Camera;
 import android.hardware.Camera.CameraInfo;
 import android.hardware.Camera.PictureCallback;
+import android.os.Handler;
 import android.view.Surface;
 
 import com.zsm.log.Log;
@@ -19,19 +23,46 @@ import com.zsm.whiteboard.util.Size;
 @SuppressWarnings("deprecation")
 public class LegacyCamera implements CameraInterface {
 
-	private Camera mCamera;
+	// One for the callback, one held for a snapshot, and two for the camera
+	public static final int DEFAULT_PREVIEW_BUFFER_COUNT = 4;
+
+	private volatile Camera mCamera;
+	// Held to release the camera, and to give a buffer back to it in the
+	// thread processing the frames, so no buffer is given to a released one
+	private final Object mCameraLock = new Object();
+	private volatile ParametersShadow mParameters;
+	// Commits the parameters staged, if not committed by others before it
+	private final Runnable mParametersCommitter = new Runnable() {
+		@Override
+		public void run() {
+			commitParameters();
+		}
+	};
 	private List<Size> mSupportedPreviewSizes;
 	private List<Size> mSupportedPictureSizes;
+	private volatile Size mRequestedPreviewSize;
 
 	private int mCameraId;
 	private CameraInfo mCameraInfo;
 	private CameraControllerCallback mControllerCallback;
-	private Camera.AutoFocusCallback mAutoFocusCallback;
+	private final AtomicInteger mFocusIds = new AtomicInteger();
 	
 	private Size mPreviewViewSize;
 	private Camera.Size mCameraPreviewSize;
-	protected Boolean mPreviewProcessing;
+	private final AtomicBoolean mPreviewProcessing = new AtomicBoolean( false );
 	private PreviewFrameThread mPreviewFrameThread;
+	private final int mPreviewBufferCount;
+	private final Handler mCameraHandler;
+	private volatile PreviewBufferRing mBufferRing;
+	// Ring of the stopped preview session, whose buffers can be reused
+	private PreviewBufferRing mRetiredRing;
+	// Format and callback of the preview, to restart it after a picture taken
+	private PREVIEW_FORMAT mPreviewFormat;
+	private PreviewCallback mPreviewCallback;
+	private PipelineMetrics mMetrics = new PipelineMetrics();
+	// Callback to capture the next preview frame
+	private final AtomicReference<PreviewCallback> mFrameCapture
+		= new AtomicReference<PreviewCallback>();
 	
 	private static class TakePictureShutterCallback implements Camera.ShutterCallback {
 		// don't do anything here, but we need to implement the callback to get the shutter 
@@ -42,89 +73,91 @@ public class LegacyCamera implements CameraInterface {
         }
 	}
 	
-	private class PreviewFrameThread extends Thread {
-		
-		private PreviewCallback mCallback;
-		private PREVIEW_FORMAT mFrameFormat;
-		private byte[] mFrameData;
-		private boolean mFrameDataReady;
-		private boolean mKeepRunning;
-		
-		public PreviewFrameThread( PREVIEW_FORMAT format, int frameByteSize,
-								   PreviewCallback cb ) {
-			
-			mFrameFormat = format;
-			mFrameData = new byte[ frameByteSize ];
-			mCallback = cb;
-			mPreviewProcessing = false;
-		}
-
-		@Override
-		public void run() {
-			mKeepRunning = true;
-			while( mKeepRunning ) {
-				synchronized( mPreviewProcessing ) {
-					if( !mPreviewProcessing && mFrameDataReady ) {
-						mCallback.onPreviewFrame(mFrameFormat, mFrameData,
-												 mCameraPreviewSize.width,
-												 mCameraPreviewSize.height );
-						mFrameDataReady = false;
-						Log.d( "Preview frame processed." );
-					}
-				}
-				Thread.yield();
-			}
-		}
-		
-		public void setFrameData( byte[] data ) {
-			synchronized( mPreviewProcessing ) {
-				if( !mPreviewProcessing ) {
-					System.arraycopy( data, 0, mFrameData, 0, mFrameData.length );
-					mFrameDataReady = true;
-				}
-			}
-		}
-		
-		public void stopPreviewProcess() {
-			mKeepRunning = false;
+	public LegacyCamera() {
+		this( DEFAULT_PREVIEW_BUFFER_COUNT );
+	}
+	
+	/**
+	 * @param previewBufferCount number of the buffers used to receive the
+	 * 			preview frames. One is held by the processing thread, one is
+	 * 			waiting to be processed, and the others are being filled by
+	 * 			the camera. So it should be at least 3 for the camera not to
+	 * 			be stalled.
+	 */
+	public LegacyCamera( int previewBufferCount ) {
+		this( previewBufferCount, null );
+	}
+	
+	/**
+	 * @param previewBufferCount as {@link #LegacyCamera(int)}
+	 * @param cameraHandler handler of the thread to open and close the camera
+	 * 			in, such as {@link CameraSessionManager#getHandler()}. Null
+	 * 			to open it in a new thread each time, and close it in the
+	 * 			calling thread.
+	 */
+	public LegacyCamera( int previewBufferCount, Handler cameraHandler ) {
+		if( previewBufferCount < 1 ) {
+			throw new IllegalArgumentException(
+						"Invalid preview buffer count: " + previewBufferCount );
 		}
+		mPreviewBufferCount = previewBufferCount;
+		mCameraHandler = cameraHandler;
 	}
-
+	
 	@Override
 	public void open(final int id, final CameraControllerCallback callback ) {
 		mCameraId = id;
 		mControllerCallback = callback;
 		
-    	new Thread( new Runnable(){
+		Runnable opener = new Runnable(){
 			@Override
 			public void run() {
 		        try {
-		        	mCamera = Camera.open( id );
+		        	Camera camera = Camera.open( id );
+		        	mParameters = new ParametersShadow( camera );
+		        	mCamera = camera;
 		        	mControllerCallback.onOpened(id);
 		        } catch ( Exception e ) {
 		        	mControllerCallback.onOpenFailed( id, e );
 		        }
 				
 			}
-    	} ).start();
-    	
-        mAutoFocusCallback = new Camera.AutoFocusCallback() {
-			@Override
-			public void onAutoFocus(boolean success, Camera camera) {
-				mControllerCallback.onAutoFocus(success);
-				Log.d( "Focus finished. ", "Result", success,
-					   "Focus mode", mCamera.getParameters().getFocusMode() );
-			}
-        };
+    	};
+		if( mCameraHandler == null ) {
+			new Thread( opener ).start();
+		} else {
+			mCameraHandler.post( opener );
+		}
 	}
 	
 	@Override
 	public void close() {
+		if( mCameraHandler == null ) {
+			closeCamera();
+			return;
+		}
+		// After the open posted before, if any
+		mCameraHandler.post( new Runnable() {
+			@Override
+			public void run() {
+				closeCamera();
+			}
+		} );
+	}
+	
+	private void closeCamera() {
+		stopPreviewFrameThread();
+		mRetiredRing = null;
+		mPreviewCallback = null;
+		mFrameCapture.set( null );
 		if( mCamera != null ) {
 			mCamera.setPreviewCallback(null);
 			mCamera.stopPreview();
-			mCamera.release();
-			mCamera = null;
+			synchronized( mCameraLock ) {
+				mCamera.release();
+				mCamera = null;
+			}
+			mParameters = null;
 			mSupportedPreviewSizes = null;
 			mSupportedPictureSizes = null;
 			mCameraInfo = null;
@@ -136,10 +169,29 @@ public class LegacyCamera implements CameraInterface {
 		throw new RuntimeException( "Surface not supported yet!" );
 	}
 	
+	@Override
+	public void setPreviewSize( Size size ) {
+		mRequestedPreviewSize = size;
+	}
+
+	// Staged only when the preview is to be started, as the camera refuses
+	// a new preview size while previewing
+	private void stagePreviewSize() {
+		Size size = mRequestedPreviewSize;
+		if( size == null ) {
+			return;
+		}
+		if( getSupportedPreviewSize().contains( size ) ) {
+			mParameters.setPreviewSize( size.width, size.height );
+		} else {
+			Log.w( "Preview size not supported, keep the size of the camera.", size );
+		}
+	}
+
 	@Override
 	public List<Size> getSupportedPreviewSize() {
 		if( mSupportedPreviewSizes == null ) {
-			List<Camera.Size> l = mCamera.getParameters().getSupportedPreviewSizes();
+			List<Camera.Size> l = getParameters().getSupportedPreviewSizes();
 			mSupportedPreviewSizes = convertSizeList(l);
 		}
 		return mSupportedPreviewSizes;
@@ -154,10 +206,50 @@ public class LegacyCamera implements CameraInterface {
 		return mSupportedPictureSizes;
 	}
 	
+	@Override
+	public CameraCapabilities queryCapabilities() {
+		// All from one query of the parameters
+		Camera.Parameters p = getParameters();
+		mSupportedPreviewSizes = convertSizeList( p.getSupportedPreviewSizes() );
+		mSupportedPictureSizes = convertSizeList( p.getSupportedPictureSizes() );
+		List<CameraController.FOCUS_MODE> focusModes
+			= new ArrayList<CameraController.FOCUS_MODE>();
+		List<String> supported = p.getSupportedFocusModes();
+		if( supported != null ) {
+			for( String mode : supported ) {
+				CameraController.FOCUS_MODE m = toFocusMode( mode );
+				if( m != null ) {
+					focusModes.add( m );
+				}
+			}
+		}
+		return new CameraCapabilities( getSensorOrientation(), mSupportedPreviewSizes,
+									   mSupportedPictureSizes, focusModes,
+									   p.getMaxNumFocusAreas(),
+									   p.getMaxNumMeteringAreas() );
+	}
+	
+	private static CameraController.FOCUS_MODE toFocusMode( String mode ) {
+		switch( mode ) {
+			case Camera.Parameters.FOCUS_MODE_AUTO:
+				return CameraController.FOCUS_MODE.AUTO;
+			case Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE:
+				return CameraController.FOCUS_MODE.CONTINUOUS_PICTURE;
+			case Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO:
+				return CameraController.FOCUS_MODE.CONTINUOUS_VIDEO;
+			case Camera.Parameters.FOCUS_MODE_INFINITY:
+				return CameraController.FOCUS_MODE.INFINITY;
+			case Camera.Parameters.FOCUS_MODE_MACRO:
+				return CameraController.FOCUS_MODE.MACRO;
+			default:
+				return null;
+		}
+	}
+	
 	private List<Size> convertSizeList(List<Camera.Size> l) {
 		ArrayList<Size> list = new ArrayList<Size>( l.size() );
 		for( Camera.Size size : l ) {
-			list.add( new Size( size ) );
+			list.add( new Size( size.width, size.height ) );
 		}
 		
 		return list;
@@ -187,8 +279,15 @@ public class LegacyCamera implements CameraInterface {
 	@Override
 	public void startPreview(final PREVIEW_FORMAT format, final PreviewCallback cb) {
 		
+		stagePreviewSize();
+		// Committed with the size, if the camera refuses them, the size
+		// read back is the one of the camera
 		final int cameraFormat = setPreviewFormat( format );
+		final PREVIEW_FORMAT frameFormat = filledFormat( format );
 		
+		stopPreviewFrameThread();
+		mPreviewFormat = format;
+		mPreviewCallback = cb;
 		if( cb == null ) {
 			mCamera.setPreviewCallbackWithBuffer(null);
 		} else {
@@ -198,49 +297,126 @@ public class LegacyCamera implements CameraInterface {
 					= (int) (mCameraPreviewSize.width*mCameraPreviewSize.height
 								*bytesPerPixel);
 			
-			byte[] mPreviewBuffer = new byte[bufferSize];
-			mCamera.addCallbackBuffer(mPreviewBuffer);
-			mPreviewFrameThread = new PreviewFrameThread( format, bufferSize, cb  );
+			final PreviewBufferRing ring
+				= new PreviewBufferRing( mPreviewBufferCount, bufferSize, mRetiredRing );
+			mRetiredRing = null;
+			final PreviewFrameThread frameThread
+				= new PreviewFrameThread( frameFormat, cb, mCameraPreviewSize.width,
+										  mCameraPreviewSize.height, this,
+										  mPreviewProcessing, mMetrics );
+			final PipelineMetrics metrics = mMetrics;
 			Camera.PreviewCallback ccb = new Camera.PreviewCallback() {
 
 				@Override
 				public void onPreviewFrame(byte[] data, Camera camera) {
-					mPreviewFrameThread.setFrameData(data);
-					mCamera.addCallbackBuffer(data);
+					long start = System.nanoTime();
+					if( ring.checkOut( data ) ) {
+						PreviewCallback capture = mFrameCapture.getAndSet( null );
+						if( capture != null ) {
+							capture.onPreviewFrame( frameFormat, data,
+													mCameraPreviewSize.width,
+													mCameraPreviewSize.height );
+						} else {
+							frameThread.setFrameData(data);
+						}
+					}
+					metrics.recordSince( PipelineMetrics.STAGE.CAMERA_CALLBACK, start );
 				}
 			};
 			
+			mPreviewFrameThread = frameThread;
 			mPreviewFrameThread.start();
+			// Setting the callback clears the buffer queue of the camera, so
+			// the buffers are added after that
 			mCamera.setPreviewCallbackWithBuffer(ccb);
+			mBufferRing = ring;
+			for( int i = 0; i < ring.size(); i++ ) {
+				mCamera.addCallbackBuffer( ring.getBuffer( i ) );
+			}
 			Log.d( "Preview callback installed. Preview frame format set as",
-					getParameters().getPreviewFormat() );
+					getParameters().getPreviewFormat(), "buffer count", ring.size() );
 		}
+		commitParameters();
 		mCamera.startPreview();
 	}
 
 	@Override
 	public void stopPreview() {
+		stopPreviewFrameThread();
+		mPreviewCallback = null;
+		mCamera.setPreviewCallbackWithBuffer(null);
+		mCamera.stopPreview();
+	}
+
+	private void stopPreviewFrameThread() {
+		mFrameCapture.set( null );
 		if( mPreviewFrameThread != null ) {
 			mPreviewFrameThread.stopPreviewProcess();
 			mPreviewFrameThread = null;
 		}
-		mCamera.setPreviewCallbackWithBuffer(null);
-		mCamera.stopPreview();
+		// Frames of the stopped session released later will be ignored
+		if( mBufferRing != null ) {
+			mRetiredRing = mBufferRing;
+			mBufferRing = null;
+		}
 	}
 
+	@Override
+	public void releasePreviewFrame( byte[] frameData ) {
+		PreviewBufferRing ring = mBufferRing;
+		if( ring == null || !ring.checkIn( frameData ) ) {
+			return;
+		}
+		synchronized( mCameraLock ) {
+			// Checked again under the lock, as it may be released or the
+			// preview stopped in between
+			Camera camera = mCamera;
+			if( camera != null && ring == mBufferRing ) {
+				camera.addCallbackBuffer( frameData );
+			}
+		}
+	}
+
+	@Override
+	public boolean capturePreviewFrame( PreviewCallback cb ) {
+		PreviewFrameThread frameThread = mPreviewFrameThread;
+		if( mBufferRing == null || frameThread == null ) {
+			return false;
+		}
+		if( frameThread.passLatest( cb ) ) {
+			return true;
+		}
+		mFrameCapture.set( cb );
+		return true;
+	}
+
+	@Override
+	public void setPipelineMetrics( PipelineMetrics metrics ) {
+		mMetrics = metrics;
+	}
+
+	// The parameters MUST only be read, and changed by the shadow
 	private Camera.Parameters getParameters() {
-		return mCamera.getParameters();
+		return mParameters.get();
 	}
 	
-	private void setCameraParameters(Camera.Parameters parameters) {
-		Log.d( "Camera Parameters", parameters );
-	    try {
-			mCamera.setParameters(parameters);
-   			Log.d( "Set parameter OK!");
-	    } catch(RuntimeException e) {
-	    	// just in case something has gone wrong
-   			Log.e( e, "failed to set parameters", parameters );
-	    }
+	private void commitParameters() {
+		ParametersShadow parameters = mParameters;
+		if( parameters != null ) {
+			parameters.commit();
+		}
+	}
+	
+	// Commit the parameters staged in the camera thread later, so that the
+	// changes following are committed together. They are committed before
+	// focusing or taking a picture anyway.
+	private void commitParametersLater() {
+		if( mCameraHandler == null ) {
+			commitParameters();
+			return;
+		}
+		mCameraHandler.removeCallbacks( mParametersCommitter );
+		mCameraHandler.post( mParametersCommitter );
 	}
 	
 	private List<Camera.Area> convertToCameraAreaList(
@@ -266,16 +442,8 @@ public class LegacyCamera implements CameraInterface {
 		return areas;
 	}
 
-	private String getFocusMode() {
-        Camera.Parameters parameters = getParameters();
-		String focusMode = parameters.getFocusMode();
-		
-		// getFocusMode() is documented as never returning null,
-		// however I've had null pointer exceptions reported in
-		// Google Play from the below line (v1.7),
-		// on Galaxy Tab 10.1 (GT-P7500), Android 4.0.3 - 4.0.4;
-		// HTC EVO 3D X515m (shooteru), Android 4.0.3 - 4.0.4
-		return focusMode == null ? "" : focusMode;
+	private String getCameraFocusMode() {
+		return mParameters.getFocusMode();
 	}
 	
 	@Override
@@ -302,9 +470,25 @@ public class LegacyCamera implements CameraInterface {
 				return;
 		}
 		
-		Camera.Parameters parameters = getParameters();
-		parameters.setFocusMode(cameraMode);
-		setCameraParameters(parameters);
+		mParameters.setFocusMode(cameraMode);
+		commitParametersLater();
+	}
+	
+	@Override
+	public CameraController.FOCUS_MODE getFocusMode() {
+		String focusMode = getCameraFocusMode();
+		if( Camera.Parameters.FOCUS_MODE_AUTO.equals( focusMode ) ) {
+			return CameraController.FOCUS_MODE.AUTO;
+		} else if( Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE.equals( focusMode ) ) {
+			return CameraController.FOCUS_MODE.CONTINUOUS_PICTURE;
+		} else if( Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO.equals( focusMode ) ) {
+			return CameraController.FOCUS_MODE.CONTINUOUS_VIDEO;
+		} else if( Camera.Parameters.FOCUS_MODE_INFINITY.equals( focusMode ) ) {
+			return CameraController.FOCUS_MODE.INFINITY;
+		} else if( Camera.Parameters.FOCUS_MODE_MACRO.equals( focusMode ) ) {
+			return CameraController.FOCUS_MODE.MACRO;
+		}
+		return null;
 	}
 	
 	@Override
@@ -315,29 +499,30 @@ public class LegacyCamera implements CameraInterface {
 
 	private boolean setFocusAndMeterinArea(List<Camera.Area> cameraAreas) {
 		Camera.Parameters parameters = getParameters();
-		String focusMode = getFocusMode();
+		String focusMode = getCameraFocusMode();
         if( parameters.getMaxNumFocusAreas() != 0
     		&& ( focusMode.equals(Camera.Parameters.FOCUS_MODE_AUTO) 
     			 || focusMode.equals(Camera.Parameters.FOCUS_MODE_MACRO)
     			 || focusMode.equals(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE)
     			 || focusMode.equals(Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO) ) ) {
         	
-		    parameters.setFocusAreas(cameraAreas);
+		    mParameters.setFocusAreas(cameraAreas);
 
 		    // also set metering areas
 		    if( parameters.getMaxNumMeteringAreas() == 0 ) {
        			Log.d( "Metering areas not supported" );
 		    } else {
-		    	parameters.setMeteringAreas(cameraAreas);
+		    	mParameters.setMeteringAreas(cameraAreas);
 		    }
 
-		    setCameraParameters(parameters);
+		    // Together with the focus mode staged, if any
+		    commitParameters();
 
 		    return true;
         } else if( parameters.getMaxNumMeteringAreas() != 0 ) {
-	    	parameters.setMeteringAreas(cameraAreas);
+	    	mParameters.setMeteringAreas(cameraAreas);
 
-		    setCameraParameters(parameters);
+		    commitParameters();
 		    
 		    return true;
         }
@@ -348,18 +533,13 @@ public class LegacyCamera implements CameraInterface {
 	@Override
 	public void clearFocusAndMetering() {
         Camera.Parameters parameters = getParameters();
-        boolean updateParameters = false;
         if( parameters.getMaxNumFocusAreas() > 0 ) {
-        	parameters.setFocusAreas(null);
-        	updateParameters = true;
+        	mParameters.setFocusAreas(null);
         }
         if( parameters.getMaxNumMeteringAreas() > 0 ) {
-        	parameters.setMeteringAreas(null);
-        	updateParameters = true;
-        }
-        if( updateParameters ) {
-		    setCameraParameters(parameters);
+        	mParameters.setMeteringAreas(null);
         }
+        commitParametersLater();
 	}
 	
 	@Override
@@ -378,7 +558,7 @@ public class LegacyCamera implements CameraInterface {
 
 	@Override
 	public boolean supportsAutoFocus() {
-		String focusMode = getFocusMode();
+		String focusMode = getCameraFocusMode();
         if( focusMode.equals(Camera.Parameters.FOCUS_MODE_AUTO)
         	|| focusMode.equals(Camera.Parameters.FOCUS_MODE_MACRO) ) {
         	
@@ -389,7 +569,7 @@ public class LegacyCamera implements CameraInterface {
 	
 	@Override
 	public boolean focusIsVideo() {
-		String focusMode = getFocusMode();
+		String focusMode = getCameraFocusMode();
 		boolean focusIsVideo
 			  = focusMode.equals(Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO);
 		
@@ -398,17 +578,37 @@ public class LegacyCamera implements CameraInterface {
 	}
 
 	@Override
-	public void autoFocus() {
+	public int autoFocus() {
+		final int focusId = nextFocusId();
         try {
-        	mCamera.autoFocus(mAutoFocusCallback);
+        	commitParameters();
+        	// A callback for each focus, so that its result is told from the
+        	// one of another focus
+        	mCamera.autoFocus(new Camera.AutoFocusCallback() {
+				@Override
+				public void onAutoFocus(boolean success, Camera camera) {
+					mControllerCallback.onAutoFocus(focusId, success);
+					Log.d( "Focus finished. ", "Result", success, "focus", focusId,
+						   "Focus mode", getCameraFocusMode() );
+				}
+        	});
         } catch(RuntimeException e) {
 			// just in case? We got a RuntimeException report here from 1 user on Google Play:
 			// 21 Dec 2013, Xperia Go, Android 4.1
 			Log.e(e, "Failed to start auto focus!");
 			// should call the callback, so the application isn't left waiting 
 			// (e.g., when we autofocus before trying to take a photo)
-			mControllerCallback.onAutoFocus(false);
+			mControllerCallback.onAutoFocus(focusId, false);
 		}
+		return focusId;
+	}
+
+	private int nextFocusId() {
+		int id;
+		do {
+			id = mFocusIds.incrementAndGet();
+		} while( id == 0 );
+		return id;
 	}
 	
 	@Override
@@ -423,7 +623,7 @@ public class LegacyCamera implements CameraInterface {
 	}
 	
 	@Override
-	public void startAutoFocusAt( Rect displayRect ) {
+	public int startAutoFocusAt( Rect displayRect ) {
 		Rect screenRect = new Rect();
 		screenRect.left = (int) ((((float)displayRect.left)/mPreviewViewSize.width - 0.5)*2000);
 		screenRect.right = (int) ((((float)displayRect.right)/mPreviewViewSize.width - 0.5)*2000);
@@ -435,7 +635,7 @@ public class LegacyCamera implements CameraInterface {
 		list.add(a);
 		setFocusAndMeterinArea( list );
 		
-		autoFocus();
+		return autoFocus();
 	}
 	
 	@Override
@@ -444,8 +644,11 @@ public class LegacyCamera implements CameraInterface {
         PictureCallback pictureCallback = new Camera.PictureCallback() {
 			@Override
 			public void onPictureTaken(byte[] data, Camera camera) {
+				// Restart the preview before the picture is handed over, it
+				// need not wait for the picture to be processed. The frame
+				// callback is kept, the preview stopped by the camera only.
+				startPreview(mPreviewFormat, mPreviewCallback);
 				mControllerCallback.onPictureReady(imageType, data);
-				startPreview(null, null);
 			}
 		};
 		
@@ -464,6 +667,7 @@ public class LegacyCamera implements CameraInterface {
 				return;
 		}
 		
+		commitParameters();
 		mCamera.takePicture(shutter, raw, jpeg);
 	}
 	
@@ -486,12 +690,13 @@ public class LegacyCamera implements CameraInterface {
 		}
 		
 		setPreviewFormat(format);
+		final PREVIEW_FORMAT frameFormat = filledFormat( format );
 		
+		final Camera.Size size = getParameters().getPreviewSize();
 		Camera.PreviewCallback ccb = new Camera.PreviewCallback() {
 			@Override
 			public void onPreviewFrame(byte[] data, Camera camera) {
-				Camera.Size size = getParameters().getPreviewSize();
-				cb.onPreviewFrame(format, data, size.width, size.height );
+				cb.onPreviewFrame(frameFormat, data, size.width, size.height );
 			}
 		};
 		
@@ -502,7 +707,9 @@ public class LegacyCamera implements CameraInterface {
 
 	private int setPreviewFormat(final PREVIEW_FORMAT format) {
 		int cameraFormat;
-		if( format == null || format == PREVIEW_FORMAT.NV21 ) {
+		if( format == null || format == PREVIEW_FORMAT.NV21
+			|| format == PREVIEW_FORMAT.LUMA ) {
+			
 			cameraFormat = ImageFormat.NV21;
 		} else {
 			RuntimeException e
@@ -511,17 +718,19 @@ public class LegacyCamera implements CameraInterface {
 			Log.e( e, "Unsupported preview type", format );
 			throw e;
 		}
-		final Camera.Parameters p = getParameters();
-		p.setPreviewFormat( cameraFormat );
-		setCameraParameters(p);
+		mParameters.setPreviewFormat( cameraFormat );
+		commitParameters();
 		
 		return cameraFormat;
 	}
 
+	// The camera fills the whole NV21 frame even if only the luma is asked for
+	static PREVIEW_FORMAT filledFormat( PREVIEW_FORMAT format ) {
+		return format == PREVIEW_FORMAT.LUMA ? PREVIEW_FORMAT.NV21 : format;
+	}
+
 	@Override
 	public void setPreviewFrameProcessing(boolean processing) {
-		synchronized( mPreviewProcessing ) {
-			mPreviewProcessing = processing;
-		}
+		mPreviewProcessing.set( processing );
 	}
 }
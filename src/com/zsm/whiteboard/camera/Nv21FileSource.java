@@ -0,0 +1,68 @@
+package com.zsm.whiteboard.camera;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.zsm.log.Log;
+
+/**
+ * Replay the NV21 frames recorded in a file, one after another in a loop.
+ * The file holds the raw frames of the same size back to back.
+ */
+public class Nv21FileSource implements FrameSource {
+
+	private final RandomAccessFile mFile;
+	private final FileChannel mChannel;
+	private final int mWidth;
+	private final int mHeight;
+	private final int mFrameSize;
+	private final long mFrameCount;
+
+	/**
+	 * @param file file of the frames
+	 * @param width width of the frames
+	 * @param height height of the frames
+	 * @throws IOException if the file cannot be opened, or holds no frame
+	 */
+	public Nv21FileSource( File file, int width, int height ) throws IOException {
+		mWidth = width;
+		mHeight = height;
+		mFrameSize = width*height*3/2;
+		mFile = new RandomAccessFile( file, "r" );
+		mChannel = mFile.getChannel();
+		mFrameCount = mChannel.size()/mFrameSize;
+		if( mFrameCount == 0 ) {
+			mFile.close();
+			throw new IOException( "No frame of " + width + "x" + height + " in " + file );
+		}
+	}
+
+	@Override
+	public void fill( byte[] nv21, int width, int height, long index ) {
+		if( width != mWidth || height != mHeight ) {
+			throw new IllegalArgumentException(
+						"Frames of " + mWidth + "x" + mHeight + " recorded, but "
+						+ width + "x" + height + " required" );
+		}
+		ByteBuffer buffer = ByteBuffer.wrap( nv21, 0, mFrameSize );
+		long position = ( index%mFrameCount )*mFrameSize;
+		try {
+			while( buffer.hasRemaining() ) {
+				int read = mChannel.read( buffer, position + buffer.position() );
+				if( read < 0 ) {
+					throw new IOException( "Unexpected end of the frame file" );
+				}
+			}
+		} catch( IOException e ) {
+			Log.e( e, "Read the frame failed!", index );
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		mFile.close();
+	}
+}
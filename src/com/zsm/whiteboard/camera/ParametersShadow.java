@@ -0,0 +1,131 @@
+package com.zsm.whiteboard.camera;
+
+import java.util.List;
+
+import android.hardware.Camera;
+
+import com.zsm.log.Log;
+
+/**
+ * A shadow of the parameters of a {@link Camera}. The parameters are got from
+ * the camera once, and then read from the shadow, as every
+ * {@link Camera#getParameters()} flattens and parses all of them across the
+ * process boundary. The changes are staged in the shadow, and committed to the
+ * camera by one {@link Camera#setParameters} for all of them. A change to the
+ * value the shadow already has is not staged, so committing nothing costs
+ * nothing.
+ */
+@SuppressWarnings("deprecation")
+class ParametersShadow {
+
+	private final Camera mCamera;
+	private Camera.Parameters mParameters;
+	private boolean mDirty;
+	private int mCommits;
+
+	ParametersShadow( Camera camera ) {
+		mCamera = camera;
+	}
+
+	/**
+	 * @return the parameters, including the changes staged. They MUST NOT
+	 * 			be changed directly, but by the methods of the shadow.
+	 */
+	synchronized Camera.Parameters get() {
+		if( mParameters == null ) {
+			mParameters = mCamera.getParameters();
+			mDirty = false;
+		}
+		return mParameters;
+	}
+
+	synchronized String getFocusMode() {
+		String focusMode = get().getFocusMode();
+		// getFocusMode() is documented as never returning null,
+		// however I've had null pointer exceptions reported in
+		// Google Play from the below line (v1.7),
+		// on Galaxy Tab 10.1 (GT-P7500), Android 4.0.3 - 4.0.4;
+		// HTC EVO 3D X515m (shooteru), Android 4.0.3 - 4.0.4
+		return focusMode == null ? "" : focusMode;
+	}
+
+	synchronized void setFocusMode( String mode ) {
+		if( !mode.equals( getFocusMode() ) ) {
+			get().setFocusMode( mode );
+			mDirty = true;
+		}
+	}
+
+	synchronized void setFocusAreas( List<Camera.Area> areas ) {
+		if( !sameAreas( areas, get().getFocusAreas() ) ) {
+			get().setFocusAreas( areas );
+			mDirty = true;
+		}
+	}
+
+	synchronized void setMeteringAreas( List<Camera.Area> areas ) {
+		if( !sameAreas( areas, get().getMeteringAreas() ) ) {
+			get().setMeteringAreas( areas );
+			mDirty = true;
+		}
+	}
+
+	synchronized void setPreviewFormat( int format ) {
+		if( format != get().getPreviewFormat() ) {
+			get().setPreviewFormat( format );
+			mDirty = true;
+		}
+	}
+
+	synchronized void setPreviewSize( int width, int height ) {
+		Camera.Size size = get().getPreviewSize();
+		if( size.width != width || size.height != height ) {
+			get().setPreviewSize( width, height );
+			mDirty = true;
+		}
+	}
+
+	private static boolean sameAreas( List<Camera.Area> a, List<Camera.Area> b ) {
+		return a == null ? b == null : a.equals( b );
+	}
+
+	/**
+	 * @return true, if some changes are staged and not committed
+	 */
+	synchronized boolean isDirty() {
+		return mDirty;
+	}
+
+	/**
+	 * Commit the changes staged to the camera, if any.
+	 *
+	 * @return true, if committed or nothing to commit; false, if the camera
+	 * 			refused the changes, and the shadow is dropped to be got again
+	 */
+	synchronized boolean commit() {
+		if( !mDirty ) {
+			return true;
+		}
+		try {
+			mCamera.setParameters( mParameters );
+			mDirty = false;
+			mCommits++;
+			Log.d( "Camera parameters committed.", "commits", mCommits );
+			return true;
+		} catch( RuntimeException e ) {
+			// just in case something has gone wrong
+			Log.e( e, "failed to set parameters", mParameters.flatten() );
+			invalidate();
+			return false;
+		}
+	}
+
+	/**
+	 * Drop the shadow and the changes staged, the parameters will be got
+	 * from the camera again.
+	 */
+	synchronized void invalidate() {
+		mParameters = null;
+		mDirty = false;
+	}
+}
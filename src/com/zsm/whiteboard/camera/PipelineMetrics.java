@@ -0,0 +1,207 @@
+package com.zsm.whiteboard.camera;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.zsm.log.Log;
+
+/**
+ * Counters and latency histograms of the stages of the preview pipeline.
+ * Recording is lock free and allocation free, so it can be done for every
+ * frame in any thread. The histograms have buckets of powers of 2 in
+ * microseconds, so the percentiles are estimated within a factor of 2.
+ */
+public class PipelineMetrics {
+
+	public enum STAGE {
+		/**
+		 * Camera delivering the frame and handing it off. The simulated
+		 * camera counts filling the frame in.
+		 */
+		CAMERA_CALLBACK,
+		/** From the frame handed off to it passed to the preview callback */
+		HANDOFF,
+		/** Processing of the frame in the preview callback */
+		PROCESSING,
+		/** From the result posted to the UI thread to it applied */
+		UI_POST,
+		/** Drawing of the preview overlay */
+		DRAW
+	}
+
+	public enum COUNTER {
+		/** Frames skipped as the former one is still being processed */
+		SKIPPED_BUSY,
+		/** Frames replaced by newer ones before passed to the callback */
+		SKIPPED_STALE,
+		/** UI updates merged into the one pending */
+		UI_COALESCED,
+		/** Frames not analyzed as the scene has not changed */
+		SKIPPED_UNCHANGED,
+		/** Frames not analyzed to hold the analysis down to a rate */
+		SKIPPED_THROTTLED
+	}
+
+	// Bucket i holds the latencies in [2^(i-1), 2^i) microseconds, bucket 0
+	// the ones less than 1 microsecond
+	private static final int BUCKETS = 24;
+	private static final int STAGES = STAGE.values().length;
+	private static final STAGE[] STAGE_VALUES = STAGE.values();
+	private static final COUNTER[] COUNTER_VALUES = COUNTER.values();
+
+	private final AtomicLongArray mCounts = new AtomicLongArray( STAGES );
+	private final AtomicLongArray mSums = new AtomicLongArray( STAGES );
+	private final AtomicLongArray mMaxes = new AtomicLongArray( STAGES );
+	private final AtomicLongArray mHistograms = new AtomicLongArray( STAGES*BUCKETS );
+	private final AtomicLongArray mCounters = new AtomicLongArray( COUNTER_VALUES.length );
+	private volatile long mStartTime = System.nanoTime();
+
+	/**
+	 * Record the latency of a stage.
+	 *
+	 * @param stage the stage
+	 * @param nanos latency in nanoseconds
+	 */
+	public void record( STAGE stage, long nanos ) {
+		if( nanos < 0 ) {
+			nanos = 0;
+		}
+		int s = stage.ordinal();
+		mCounts.incrementAndGet( s );
+		mSums.addAndGet( s, nanos );
+		long max;
+		while( nanos > ( max = mMaxes.get( s ) ) ) {
+			if( mMaxes.compareAndSet( s, max, nanos ) ) {
+				break;
+			}
+		}
+		mHistograms.incrementAndGet( s*BUCKETS + bucketOf( nanos/1000 ) );
+	}
+
+	/**
+	 * Record the latency of a stage from its start.
+	 *
+	 * @param stage the stage
+	 * @param startNanos start time of the stage by {@link System#nanoTime()}
+	 */
+	public void recordSince( STAGE stage, long startNanos ) {
+		record( stage, System.nanoTime() - startNanos );
+	}
+
+	public void increment( COUNTER counter ) {
+		mCounters.incrementAndGet( counter.ordinal() );
+	}
+
+	public long getCount( STAGE stage ) {
+		return mCounts.get( stage.ordinal() );
+	}
+
+	public long getCount( COUNTER counter ) {
+		return mCounters.get( counter.ordinal() );
+	}
+
+	/**
+	 * @return mean latency of the stage in nanoseconds
+	 */
+	public long getMeanNanos( STAGE stage ) {
+		long count = getCount( stage );
+		return count == 0 ? 0 : mSums.get( stage.ordinal() )/count;
+	}
+
+	/**
+	 * @return max latency of the stage in nanoseconds
+	 */
+	public long getMaxNanos( STAGE stage ) {
+		return mMaxes.get( stage.ordinal() );
+	}
+
+	/**
+	 * Estimate a percentile of the latency of the stage, as the upper bound
+	 * of the bucket it falls in.
+	 *
+	 * @param stage the stage
+	 * @param percent the percentile, 0 to 100
+	 * @return the percentile in microseconds
+	 */
+	public long getPercentileMicros( STAGE stage, int percent ) {
+		int s = stage.ordinal();
+		long count = mCounts.get( s );
+		if( count == 0 ) {
+			return 0;
+		}
+		long rank = ( count*percent + 99 )/100;
+		long seen = 0;
+		for( int b = 0; b < BUCKETS; b++ ) {
+			seen += mHistograms.get( s*BUCKETS + b );
+			if( seen >= rank ) {
+				return 1L << b;
+			}
+		}
+		return 1L << ( BUCKETS - 1 );
+	}
+
+	/**
+	 * @return frames per second of the stage since reset
+	 */
+	public float getRate( STAGE stage ) {
+		long elapsed = System.nanoTime() - mStartTime;
+		return elapsed <= 0 ? 0 : getCount( stage )*1e9f/elapsed;
+	}
+
+	public void reset() {
+		for( int i = 0; i < STAGES; i++ ) {
+			mCounts.set( i, 0 );
+			mSums.set( i, 0 );
+			mMaxes.set( i, 0 );
+		}
+		for( int i = 0; i < mHistograms.length(); i++ ) {
+			mHistograms.set( i, 0 );
+		}
+		for( int i = 0; i < mCounters.length(); i++ ) {
+			mCounters.set( i, 0 );
+		}
+		mStartTime = System.nanoTime();
+	}
+
+	/**
+	 * Format the metrics, a line for each stage and a line of the counters.
+	 * It allocates, so should not be invoked for every frame.
+	 *
+	 * @param builder builder to append to
+	 * @return the builder
+	 */
+	public StringBuilder format( StringBuilder builder ) {
+		for( STAGE stage : STAGE_VALUES ) {
+			builder.append( stage ).append( ": n=" ).append( getCount( stage ) )
+				.append( ' ' ).append( Math.round( getRate( stage ) ) ).append( "fps" )
+				.append( " mean=" ).append( micros( getMeanNanos( stage ) ) )
+				.append( "us p50<" ).append( getPercentileMicros( stage, 50 ) )
+				.append( "us p99<" ).append( getPercentileMicros( stage, 99 ) )
+				.append( "us max=" ).append( micros( getMaxNanos( stage ) ) )
+				.append( "us\n" );
+		}
+		for( int i = 0; i < COUNTER_VALUES.length; i++ ) {
+			if( i > 0 ) {
+				builder.append( ' ' );
+			}
+			builder.append( COUNTER_VALUES[i] ).append( '=' )
+				.append( mCounters.get( i ) );
+		}
+		return builder;
+	}
+
+	/**
+	 * Write the metrics into the log.
+	 */
+	public void dump() {
+		Log.i( "Preview pipeline metrics\n", format( new StringBuilder() ) );
+	}
+
+	private static long micros( long nanos ) {
+		return nanos/1000;
+	}
+
+	private static int bucketOf( long micros ) {
+		int bucket = 64 - Long.numberOfLeadingZeros( micros );
+		return bucket < BUCKETS ? bucket : BUCKETS - 1;
+	}
+}
@@ -0,0 +1,127 @@
+package com.zsm.whiteboard.camera;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A fixed set of preview buffers shared between the camera and the preview
+ * callback. A buffer is either queued in the camera to be filled, or checked
+ * out to the application. It can only be queued again after it is checked
+ * out, so a buffer released twice, or a buffer from a former preview session,
+ * will never be given back to the camera while someone is still reading it.
+ * <p>When the preview is restarted, the buffers queued of the former ring
+ * are retired from it and reused by the new one, so restarting the preview,
+ * such as after each picture taken, does not allocate them again.
+ */
+class PreviewBufferRing {
+
+	private static final int STATE_QUEUED = 0;
+	private static final int STATE_CHECKED_OUT = 1;
+	private static final int STATE_RETIRED = 2;
+
+	private final byte[][] mBuffers;
+	private final AtomicIntegerArray mStates;
+
+	/**
+	 * Allocate the buffers. All of them are in the state of queued, so they
+	 * MUST be all handed to the camera at once.
+	 *
+	 * @param count number of the buffers
+	 * @param bufferSize size of each buffer in bytes
+	 */
+	PreviewBufferRing( int count, int bufferSize ) {
+		this( count, bufferSize, null );
+	}
+
+	/**
+	 * Allocate the buffers, reusing the buffers of the former ring that are
+	 * still queued and in the same size. The reused buffers are retired from
+	 * the former ring, so they cannot be checked out or in by it any more.
+	 * The buffers checked out of the former ring are not reused, as they may
+	 * be still being read. All of the buffers are in the state of queued, so
+	 * they MUST be all handed to the camera at once.
+	 *
+	 * @param count number of the buffers
+	 * @param bufferSize size of each buffer in bytes
+	 * @param former ring of the former preview session, or null
+	 */
+	PreviewBufferRing( int count, int bufferSize, PreviewBufferRing former ) {
+		if( count < 1 ) {
+			throw new IllegalArgumentException( "At least one buffer needed: " + count );
+		}
+		mBuffers = new byte[count][];
+		int reused = 0;
+		if( former != null ) {
+			for( int i = 0; i < former.mBuffers.length && reused < count; i++ ) {
+				if( former.mBuffers[i].length == bufferSize
+					&& former.mStates.compareAndSet( i, STATE_QUEUED, STATE_RETIRED ) ) {
+					
+					mBuffers[reused++] = former.mBuffers[i];
+				}
+			}
+		}
+		for( int i = reused; i < count; i++ ) {
+			mBuffers[i] = new byte[bufferSize];
+		}
+		mStates = new AtomicIntegerArray( count );
+	}
+
+	int size() {
+		return mBuffers.length;
+	}
+
+	byte[] getBuffer( int index ) {
+		return mBuffers[index];
+	}
+
+	/**
+	 * Mark the buffer filled by the camera as owned by the application.
+	 *
+	 * @param buffer buffer filled by the camera
+	 * @return true, the buffer belongs to this ring and was queued;
+	 * 			false, otherwise
+	 */
+	boolean checkOut( byte[] buffer ) {
+		int index = indexOf( buffer );
+		return index >= 0
+				&& mStates.compareAndSet( index, STATE_QUEUED, STATE_CHECKED_OUT );
+	}
+
+	/**
+	 * Check out any queued buffer, for a camera that does not fill the
+	 * buffers itself but has the frames copied into them, such as
+	 * {@link Camera2Camera}. A queued buffer is free to be filled then.
+	 *
+	 * @return the buffer checked out, or null if all are checked out
+	 */
+	byte[] checkOutQueued() {
+		for( int i = 0; i < mBuffers.length; i++ ) {
+			if( mStates.compareAndSet( i, STATE_QUEUED, STATE_CHECKED_OUT ) ) {
+				return mBuffers[i];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Mark the buffer released by the application as queued in the camera.
+	 * Only when true returned, the buffer can be given back to the camera.
+	 *
+	 * @param buffer buffer released by the application
+	 * @return true, the buffer belongs to this ring and was checked out;
+	 * 			false, otherwise
+	 */
+	boolean checkIn( byte[] buffer ) {
+		int index = indexOf( buffer );
+		return index >= 0
+				&& mStates.compareAndSet( index, STATE_CHECKED_OUT, STATE_QUEUED );
+	}
+
+	private int indexOf( byte[] buffer ) {
+		for( int i = 0; i < mBuffers.length; i++ ) {
+			if( mBuffers[i] == buffer ) {
+				return i;
+			}
+		}
+		return -1;
+	}
+}
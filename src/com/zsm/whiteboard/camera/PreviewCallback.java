@@ -8,6 +8,11 @@ public interface PreviewCallback {
 	 * before the frame to be processed in the same thread of processing.  When
 	 * the process finished, {@link CameraController.setPreviewFrameProcessing} MUST
 	 * be invoked in the same thread. It is to notify.
+	 * <p>The frame data is not copied, it is the buffer filled by the camera.
+	 * The callback owns it from now on, and MUST give it back by
+	 * {@link CameraController.releasePreviewFrame} when it is not used any more,
+	 * in any thread. Otherwise the camera will run out of buffers and stop
+	 * delivering frames.
 	 * 
 	 * @param format format of the frame
 	 * @param frameData data of the frame
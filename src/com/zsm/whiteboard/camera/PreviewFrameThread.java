@@ -0,0 +1,154 @@
+package com.zsm.whiteboard.camera;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.zsm.log.Log;
+import com.zsm.whiteboard.camera.CameraController.PREVIEW_FORMAT;
+
+/**
+ * Pass the preview frames filled by the camera to the preview callback in a
+ * thread of its own, for a preview session of a camera. Frames arriving while
+ * the callback is still processing, or replaced by newer ones before taken,
+ * are skipped, and given back to the camera at once.
+ * <p>The newest frame skipped as the callback is busy is held back from the
+ * camera until a newer frame arrives, so that the frame on the screen can be
+ * taken as a snapshot by {@link #passLatest}.
+ */
+class PreviewFrameThread extends Thread {
+	
+	private final PreviewCallback mCallback;
+	private final PREVIEW_FORMAT mFrameFormat;
+	private final int mWidth;
+	private final int mHeight;
+	private final CameraInterface mCamera;
+	private final AtomicBoolean mProcessing;
+	private final FrameMailbox<byte[]> mMailbox;
+	// The newest frame skipped as busy, newer than the one in the mailbox
+	private final AtomicReference<byte[]> mLatest = new AtomicReference<byte[]>();
+	private final PipelineMetrics mMetrics;
+	// Counted by the camera thread and this thread
+	private final AtomicLong mSkippedFrames = new AtomicLong();
+	// When the frame in the mailbox was posted
+	private volatile long mPostTime;
+	
+	/**
+	 * @param format format of the frames
+	 * @param cb callback to pass the frames to
+	 * @param width width of the frames
+	 * @param height height of the frames
+	 * @param camera camera to release the frames skipped to
+	 * @param processing flag set while the callback is processing a frame,
+	 * 			it is cleared when the thread created
+	 * @param metrics metrics to record the handoff into
+	 */
+	PreviewFrameThread( PREVIEW_FORMAT format, PreviewCallback cb, int width,
+						int height, CameraInterface camera,
+						AtomicBoolean processing, PipelineMetrics metrics ) {
+		
+		super( "PreviewFrameThread" );
+		mFrameFormat = format;
+		mCallback = cb;
+		mWidth = width;
+		mHeight = height;
+		mCamera = camera;
+		mProcessing = processing;
+		mMetrics = metrics;
+		mMailbox = new FrameMailbox<byte[]>();
+		mProcessing.set( false );
+	}
+
+	@Override
+	public void run() {
+		byte[] frame;
+		while( ( frame = mMailbox.take() ) != null ) {
+			if( mProcessing.get() ) {
+				skip( frame, PipelineMetrics.COUNTER.SKIPPED_BUSY );
+			} else {
+				mMetrics.recordSince( PipelineMetrics.STAGE.HANDOFF, mPostTime );
+				// The callback owns the frame from now on, until it releases
+				// the frame
+				mCallback.onPreviewFrame( mFrameFormat, frame, mWidth, mHeight );
+			}
+		}
+		Log.d( "Preview frame thread stopped." );
+	}
+	
+	/**
+	 * Hand the frame to the processing thread without copying. The frame
+	 * is given back to the camera at once when the previous one is still
+	 * being processed. An unprocessed frame in the mailbox is replaced by
+	 * the newer one, and given back to the camera.
+	 * 
+	 * @param data frame data filled by the camera
+	 */
+	void setFrameData( byte[] data ) {
+		if( mMailbox.isClosed() ) {
+			skip( data, PipelineMetrics.COUNTER.SKIPPED_BUSY );
+			return;
+		}
+		if( mProcessing.get() ) {
+			mSkippedFrames.incrementAndGet();
+			mMetrics.increment( PipelineMetrics.COUNTER.SKIPPED_BUSY );
+			release( mLatest.getAndSet( data ) );
+			if( mMailbox.isClosed() ) {
+				// Stopped while it was being held
+				release( mLatest.getAndSet( null ) );
+			}
+			return;
+		}
+		
+		// Older than the one posted
+		release( mLatest.getAndSet( null ) );
+		mPostTime = System.nanoTime();
+		byte[] stale = mMailbox.post( data );
+		if( stale != null ) {
+			skip( stale, PipelineMetrics.COUNTER.SKIPPED_STALE );
+		}
+	}
+	
+	/**
+	 * Pass the newest frame arrived, if it is still held and not taken by the
+	 * callback, to the callback given, in the invoking thread. The callback
+	 * owns the frame then, and MUST release it.
+	 * 
+	 * @param cb callback to pass the frame to
+	 * @return true, if the frame is passed
+	 */
+	boolean passLatest( PreviewCallback cb ) {
+		byte[] frame = mLatest.getAndSet( null );
+		if( frame == null ) {
+			frame = mMailbox.poll();
+		}
+		if( frame == null ) {
+			return false;
+		}
+		cb.onPreviewFrame( mFrameFormat, frame, mWidth, mHeight );
+		return true;
+	}
+	
+	void stopPreviewProcess() {
+		release( mMailbox.close() );
+		release( mLatest.getAndSet( null ) );
+	}
+	
+	/**
+	 * @return number of the frames skipped, not passed to the callback
+	 */
+	long getSkippedFrames() {
+		return mSkippedFrames.get();
+	}
+	
+	private void release( byte[] frame ) {
+		if( frame != null ) {
+			mCamera.releasePreviewFrame( frame );
+		}
+	}
+	
+	private void skip( byte[] frame, PipelineMetrics.COUNTER reason ) {
+		mSkippedFrames.incrementAndGet();
+		mMetrics.increment( reason );
+		mCamera.releasePreviewFrame( frame );
+	}
+}
@@ -0,0 +1,128 @@
+package com.zsm.whiteboard.camera;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.zsm.log.Log;
+import com.zsm.whiteboard.camera.CameraController.PREVIEW_FORMAT;
+
+/**
+ * Capture a picture from the preview stream, without stopping the preview.
+ * The frame on the screen is captured if it is still held, otherwise the
+ * next one. The frame captured is copied in the encoding thread and released
+ * to the camera at once, then encoded by a {@link FrameEncoder}. Only one
+ * snapshot is taken at a time.
+ */
+class PreviewSnapshot implements PreviewCallback {
+
+	private static final byte[] END = new byte[0];
+
+	private final CameraInterface mCamera;
+	private final FrameEncoder mEncoder;
+	private final CameraUserInterface mUserInterface;
+	private final BlockingQueue<byte[]> mQueue = new LinkedBlockingQueue<byte[]>();
+	private final AtomicBoolean mPending = new AtomicBoolean( false );
+	private final Thread mThread;
+	private volatile boolean mStopped;
+
+	// Set by the thread passing the frame before the frame queued
+	private PREVIEW_FORMAT mFormat;
+	private int mWidth;
+	private int mHeight;
+	private byte[] mCopy;
+
+	PreviewSnapshot( CameraInterface camera, FrameEncoder encoder,
+					 CameraUserInterface userInterface ) {
+		mCamera = camera;
+		mEncoder = encoder;
+		mUserInterface = userInterface;
+		mThread = new Thread( new Runnable() {
+			@Override
+			public void run() {
+				encodeLoop();
+			}
+		}, "PreviewSnapshot" );
+		mThread.start();
+	}
+
+	/**
+	 * Request to capture the preview frame on the screen. The picture is
+	 * passed to {@link CameraUserInterface#savePicture} in the encoding thread.
+	 * 
+	 * @return true, if the request is accepted; false, if a snapshot is
+	 * 			being taken, or the preview frames are not available
+	 */
+	boolean take() {
+		if( mStopped || !mPending.compareAndSet( false, true ) ) {
+			return false;
+		}
+		if( !mCamera.capturePreviewFrame( this ) ) {
+			mPending.set( false );
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Drop the request not served yet, as the preview stops, so that a
+	 * snapshot can be taken again.
+	 */
+	void cancel() {
+		mPending.set( false );
+	}
+
+	void stop() {
+		mStopped = true;
+		mQueue.add( END );
+	}
+
+	@Override
+	public void onPreviewFrame( PREVIEW_FORMAT format, byte[] data, int width,
+								int height ) {
+		if( mStopped || !mPending.get() ) {
+			mCamera.releasePreviewFrame( data );
+			return;
+		}
+		mFormat = format;
+		mWidth = width;
+		mHeight = height;
+		// Happens-before the encoding thread takes it
+		mQueue.add( data );
+	}
+
+	private void encodeLoop() {
+		while( true ) {
+			byte[] frame;
+			try {
+				frame = mQueue.take();
+			} catch (InterruptedException e) {
+				Log.w( e, "Preview snapshot thread interrupted." );
+				return;
+			}
+			if( frame == END ) {
+				Log.d( "Preview snapshot thread stopped." );
+				return;
+			}
+
+			long start = System.nanoTime();
+			if( mCopy == null || mCopy.length != frame.length ) {
+				mCopy = new byte[frame.length];
+			}
+			System.arraycopy( frame, 0, mCopy, 0, frame.length );
+			mCamera.releasePreviewFrame( frame );
+			try {
+				byte[] picture = mEncoder.encode( mFormat, mCopy, mWidth, mHeight );
+				Log.d( "Snapshot encoded.", "size", mWidth, mHeight,
+					   "bytes", picture.length,
+					   "ms", ( System.nanoTime() - start )/1000000 );
+				mPending.set( false );
+				mUserInterface.savePicture( mEncoder.getPictureType(), picture );
+			} catch (IOException | RuntimeException e) {
+				mPending.set( false );
+				Log.e( e, "Encode the snapshot failed!" );
+			}
+		}
+	}
+}
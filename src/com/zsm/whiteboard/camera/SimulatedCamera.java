@@ -0,0 +1,629 @@
+package com.zsm.whiteboard.camera;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import android.graphics.Rect;
+import android.graphics.SurfaceTexture;
+import android.view.Surface;
+
+import com.zsm.log.Log;
+import com.zsm.whiteboard.camera.CameraController.PREVIEW_FORMAT;
+import com.zsm.whiteboard.util.Size;
+
+/**
+ * A camera without hardware, to measure the throughput and the latency of the
+ * preview pipeline anywhere. The frames are produced from a
+ * {@link FrameSource} at a fixed rate, and passed to the preview callback
+ * through the same buffer ring and frame thread as {@link LegacyCamera} does.
+ * The auto focus and the still capture are completed after the delays set,
+ * and reported to the {@link CameraControllerCallback} as {@link LegacyCamera}
+ * does. The still pictures asked for in JPEG are encoded from a frame.
+ * <p>It can stand for the camera of a device or an emulator without one, such
+ * as by the activity switched to it.
+ * <p>A frame is dropped when no buffer is given back by the application in
+ * time, as the real camera does. The latency of a frame is measured from it
+ * being filled until it is released after passed to the callback.
+ */
+public class SimulatedCamera implements CameraInterface {
+
+	private static final int SENSOR_ORIENTATION = 90;
+	private static final long DEFAULT_OPEN_DELAY_MS = 100;
+	private static final long DEFAULT_FOCUS_DELAY_MS = 300;
+	private static final long DEFAULT_STILL_DELAY_MS = 400;
+
+	// Buffers and the frame thread of a preview session
+	private static class PreviewSession {
+		final PreviewBufferRing mRing;
+		final PreviewFrameThread mFrameThread;
+		// Buffers queued to be filled, as the callback buffers of the camera
+		final ConcurrentLinkedQueue<byte[]> mQueued = new ConcurrentLinkedQueue<byte[]>();
+		final long[] mFillTimes;
+		// Set when the frame is passed to the callback
+		final AtomicBoolean[] mDelivered;
+
+		PreviewSession( PreviewBufferRing ring, PreviewFrameThread frameThread ) {
+			mRing = ring;
+			mFrameThread = frameThread;
+			mFillTimes = new long[ring.size()];
+			mDelivered = new AtomicBoolean[ring.size()];
+			for( int i = 0; i < ring.size(); i++ ) {
+				mDelivered[i] = new AtomicBoolean();
+				mQueued.add( ring.getBuffer( i ) );
+			}
+		}
+
+		int indexOf( byte[] buffer ) {
+			for( int i = 0; i < mRing.size(); i++ ) {
+				if( mRing.getBuffer( i ) == buffer ) {
+					return i;
+				}
+			}
+			return -1;
+		}
+	}
+
+	private final FrameSource mSource;
+	private final int mWidth;
+	private final int mHeight;
+	private final int mFps;
+	private final int mPreviewBufferCount;
+	private long mOpenDelayMs = DEFAULT_OPEN_DELAY_MS;
+	private long mFocusDelayMs = DEFAULT_FOCUS_DELAY_MS;
+	private long mStillDelayMs = DEFAULT_STILL_DELAY_MS;
+	private boolean mFocusSucceeds = true;
+	private FrameEncoder mStillEncoder = new YuvJpegEncoder();
+
+	private CameraControllerCallback mControllerCallback;
+	private volatile boolean mOpened;
+	private ScheduledExecutorService mEvents;
+	private Thread mProducer;
+	private volatile boolean mProducing;
+	private volatile boolean mPreviewing;
+	// The preview is paused while a still picture is being taken
+	private volatile boolean mPaused;
+	private volatile PreviewSession mSession;
+	private final AtomicBoolean mPreviewProcessing = new AtomicBoolean( false );
+	private final AtomicReference<PreviewCallback> mFrameCapture
+		= new AtomicReference<PreviewCallback>();
+	private PREVIEW_FORMAT mPreviewFormat;
+	private PreviewCallback mPreviewCallback;
+	private volatile long mFrameIndex;
+	private ScheduledFuture<?> mFocusFuture;
+	private CameraController.FOCUS_MODE mFocusMode = CameraController.FOCUS_MODE.AUTO;
+	private List<CameraController.Area> mFocusAreas;
+	private PipelineMetrics mMetrics = new PipelineMetrics();
+	private final AtomicInteger mFocusIds = new AtomicInteger();
+
+	private final AtomicLong mProducedFrames = new AtomicLong();
+	private final AtomicLong mDroppedFrames = new AtomicLong();
+	private final AtomicLong mSkippedFrames = new AtomicLong();
+	private final Object mLatencyLock = new Object();
+	private long mProcessedFrames;
+	private long mLatencySum;
+	private long mLatencyMax;
+
+	/**
+	 * @param source source of the frames
+	 * @param width width of the frames
+	 * @param height height of the frames
+	 * @param fps frames produced per second
+	 */
+	public SimulatedCamera( FrameSource source, int width, int height, int fps ) {
+		this( source, width, height, fps, LegacyCamera.DEFAULT_PREVIEW_BUFFER_COUNT );
+	}
+
+	/**
+	 * @param source source of the frames
+	 * @param width width of the frames, even
+	 * @param height height of the frames, even
+	 * @param fps frames produced per second
+	 * @param previewBufferCount number of the preview buffers, as
+	 * 			{@link LegacyCamera#LegacyCamera(int)}
+	 */
+	public SimulatedCamera( FrameSource source, int width, int height, int fps,
+							int previewBufferCount ) {
+		if( width <= 0 || height <= 0 || width%2 != 0 || height%2 != 0 ) {
+			throw new IllegalArgumentException( "Invalid size: " + width + "x" + height );
+		}
+		if( fps <= 0 ) {
+			throw new IllegalArgumentException( "Invalid fps: " + fps );
+		}
+		if( previewBufferCount < 1 ) {
+			throw new IllegalArgumentException(
+						"Invalid preview buffer count: " + previewBufferCount );
+		}
+		mSource = source;
+		mWidth = width;
+		mHeight = height;
+		mFps = fps;
+		mPreviewBufferCount = previewBufferCount;
+	}
+
+	public void setOpenDelay( long ms ) {
+		mOpenDelayMs = ms;
+	}
+
+	public void setAutoFocusDelay( long ms ) {
+		mFocusDelayMs = ms;
+	}
+
+	/**
+	 * @param succeeds result of the auto focus to report
+	 */
+	public void setAutoFocusResult( boolean succeeds ) {
+		mFocusSucceeds = succeeds;
+	}
+
+	public void setStillCaptureDelay( long ms ) {
+		mStillDelayMs = ms;
+	}
+
+	/**
+	 * @param encoder encoder of the still pictures in JPEG, a
+	 * 			{@link YuvJpegEncoder} by default. If it is null, the still
+	 * 			pictures are passed as the raw frames in NV21, of
+	 * 			{@link CameraController.PICTURE_TYPE#RAW}.
+	 */
+	public void setStillEncoder( FrameEncoder encoder ) {
+		mStillEncoder = encoder;
+	}
+
+	@Override
+	public void open( final int id, final CameraControllerCallback callback ) {
+		mControllerCallback = callback;
+		mEvents = Executors.newSingleThreadScheduledExecutor();
+		mEvents.schedule( new Runnable() {
+			@Override
+			public void run() {
+				mOpened = true;
+				startProducer();
+				mControllerCallback.onOpened( id );
+			}
+		}, mOpenDelayMs, TimeUnit.MILLISECONDS );
+	}
+
+	@Override
+	public void close() {
+		stopPreview();
+		mOpened = false;
+		mProducing = false;
+		if( mProducer != null ) {
+			LockSupport.unpark( mProducer );
+			mProducer = null;
+		}
+		if( mEvents != null ) {
+			mEvents.shutdownNow();
+			mEvents = null;
+		}
+		mFrameCapture.set( null );
+		mPreviewCallback = null;
+	}
+
+	@Override
+	public List<Size> getSupportedCaptureSize() {
+		return Collections.singletonList( new Size( mWidth, mHeight ) );
+	}
+
+	@Override
+	public CameraCapabilities queryCapabilities() {
+		return new CameraCapabilities( SENSOR_ORIENTATION, getSupportedPreviewSize(),
+									   getSupportedCaptureSize(),
+									   Arrays.asList( CameraController.FOCUS_MODE.values() ),
+									   1, 1 );
+	}
+
+	@Override
+	public List<Size> getSupportedPreviewSize() {
+		return Collections.singletonList( new Size( mWidth, mHeight ) );
+	}
+
+	@Override
+	public void setPreviewSize( Size size ) {
+		if( size.width != mWidth || size.height != mHeight ) {
+			Log.w( "Preview size not supported, keep the size of the simulated camera.",
+				   size, "size", mWidth, mHeight );
+		}
+	}
+
+	@Override
+	public int getSensorOrientation() {
+		return SENSOR_ORIENTATION;
+	}
+
+	@Override
+	public void setPreviewSurface( Surface s ) {
+		// Nothing to display
+	}
+
+	@Override
+	public void setPreviewTexture( SurfaceTexture texture, Size previewViewSize )
+				throws IOException {
+		// Nothing to display
+	}
+
+	@Override
+	public void startPreview( PREVIEW_FORMAT format, PreviewCallback cb ) {
+		checkOpened();
+		installCallback( format, cb );
+		mPaused = false;
+		mPreviewing = true;
+	}
+
+	@Override
+	public void stopPreview() {
+		mPreviewing = false;
+		installCallback( null, null );
+	}
+
+	@Override
+	public void setPreviewCallback( PREVIEW_FORMAT format, PreviewCallback cb ) {
+		checkOpened();
+		installCallback( format, cb );
+	}
+
+	private void installCallback( PREVIEW_FORMAT format, PreviewCallback cb ) {
+		if( format != null && format != PREVIEW_FORMAT.NV21
+			&& format != PREVIEW_FORMAT.LUMA ) {
+			throw new IllegalArgumentException( "Preview type is not supported:" + format );
+		}
+		PreviewSession old = mSession;
+		mSession = null;
+		mFrameCapture.set( null );
+		if( old != null ) {
+			old.mFrameThread.stopPreviewProcess();
+			mSkippedFrames.addAndGet( old.mFrameThread.getSkippedFrames() );
+		}
+		mPreviewFormat = LegacyCamera.filledFormat( format );
+		mPreviewCallback = cb;
+		if( cb == null ) {
+			return;
+		}
+
+		PreviewBufferRing ring
+			= new PreviewBufferRing( mPreviewBufferCount, mWidth*mHeight*3/2 );
+		final PreviewSession[] holder = new PreviewSession[1];
+		final PreviewCallback userCallback = cb;
+		PreviewCallback delivering = new PreviewCallback() {
+			@Override
+			public void onPreviewFrame( PREVIEW_FORMAT f, byte[] data, int width,
+										int height ) {
+				markDelivered( holder[0], data );
+				userCallback.onPreviewFrame( f, data, width, height );
+			}
+		};
+		PreviewFrameThread frameThread
+			= new PreviewFrameThread( mPreviewFormat, delivering, mWidth, mHeight, this,
+									  mPreviewProcessing, mMetrics );
+		PreviewSession session = new PreviewSession( ring, frameThread );
+		holder[0] = session;
+		frameThread.start();
+		mSession = session;
+		Log.d( "Simulated preview callback installed.", "size", mWidth, mHeight,
+			   "fps", mFps );
+	}
+
+	@Override
+	public boolean focusIsVideo() {
+		return mFocusMode == CameraController.FOCUS_MODE.CONTINUOUS_VIDEO;
+	}
+
+	@Override
+	public boolean supportsAutoFocus() {
+		return mFocusMode == CameraController.FOCUS_MODE.AUTO
+				|| mFocusMode == CameraController.FOCUS_MODE.MACRO;
+	}
+
+	@Override
+	public List<CameraController.Area> getMeteringAreas() {
+		return mFocusAreas;
+	}
+
+	@Override
+	public List<CameraController.Area> getFocusAreas() {
+		return mFocusAreas;
+	}
+
+	@Override
+	public void clearFocusAndMetering() {
+		mFocusAreas = null;
+	}
+
+	@Override
+	public boolean setFocusAndMeteringArea( List<CameraController.Area> areas ) {
+		mFocusAreas = areas;
+		return true;
+	}
+
+	@Override
+	public synchronized void cancelAutoFocus() {
+		if( mFocusFuture != null ) {
+			mFocusFuture.cancel( false );
+			mFocusFuture = null;
+		}
+	}
+
+	@Override
+	public synchronized int autoFocus() {
+		cancelAutoFocus();
+		final int focusId = nextFocusId();
+		if( !mOpened ) {
+			Log.e( "Failed to start auto focus, the camera is not opened!" );
+			mControllerCallback.onAutoFocus( focusId, false );
+			return focusId;
+		}
+		final boolean success = mFocusSucceeds;
+		mFocusFuture = mEvents.schedule( new Runnable() {
+			@Override
+			public void run() {
+				mControllerCallback.onAutoFocus( focusId, success );
+			}
+		}, mFocusDelayMs, TimeUnit.MILLISECONDS );
+		return focusId;
+	}
+
+	private int nextFocusId() {
+		int id;
+		do {
+			id = mFocusIds.incrementAndGet();
+		} while( id == 0 );
+		return id;
+	}
+
+	@Override
+	public int startAutoFocusAt( Rect displayRect ) {
+		List<CameraController.Area> areas = new ArrayList<CameraController.Area>();
+		areas.add( new CameraController.Area( displayRect, 1000 ) );
+		setFocusAndMeteringArea( areas );
+		return autoFocus();
+	}
+
+	@Override
+	public void takePicture( final CameraController.PICTURE_TYPE imageType ) {
+		checkOpened();
+		// The preview is stopped by the still capture, as the real camera does
+		mPaused = true;
+		mEvents.schedule( new Runnable() {
+			@Override
+			public void run() {
+				byte[] frame = new byte[mWidth*mHeight*3/2];
+				mSource.fill( frame, mWidth, mHeight, mFrameIndex );
+				byte[] picture = frame;
+				CameraController.PICTURE_TYPE type = CameraController.PICTURE_TYPE.RAW;
+				FrameEncoder encoder = mStillEncoder;
+				if( imageType == CameraController.PICTURE_TYPE.JPEG ) {
+					if( encoder == null ) {
+						Log.w( "No still encoder, pass the picture in NV21 as raw." );
+					} else {
+						try {
+							picture = encoder.encode( PREVIEW_FORMAT.NV21, frame,
+													  mWidth, mHeight );
+							type = encoder.getPictureType();
+						} catch( IOException e ) {
+							Log.e( e, "Encode the still picture failed, pass it as raw!" );
+						}
+					}
+				}
+				// Restart the preview before the picture is handed over, as
+				// LegacyCamera does
+				startPreview( mPreviewFormat, mPreviewCallback );
+				mControllerCallback.onPictureReady( type, picture );
+			}
+		}, mStillDelayMs, TimeUnit.MILLISECONDS );
+	}
+
+	@Override
+	public void soundShutter( boolean sound ) {
+		// No shutter to sound
+	}
+
+	@Override
+	public void setFocusMode( CameraController.FOCUS_MODE mode ) {
+		mFocusMode = mode;
+	}
+
+	@Override
+	public CameraController.FOCUS_MODE getFocusMode() {
+		return mFocusMode;
+	}
+
+	@Override
+	public void setPreviewFrameProcessing( boolean processing ) {
+		mPreviewProcessing.set( processing );
+	}
+
+	@Override
+	public void releasePreviewFrame( byte[] frameData ) {
+		PreviewSession session = mSession;
+		if( session == null || !session.mRing.checkIn( frameData ) ) {
+			return;
+		}
+		int index = session.indexOf( frameData );
+		if( session.mDelivered[index].getAndSet( false ) ) {
+			recordLatency( System.nanoTime() - session.mFillTimes[index] );
+		}
+		session.mQueued.add( frameData );
+	}
+
+	@Override
+	public boolean capturePreviewFrame( PreviewCallback cb ) {
+		PreviewSession session = mSession;
+		if( session == null ) {
+			return false;
+		}
+		if( session.mFrameThread.passLatest( cb ) ) {
+			return true;
+		}
+		mFrameCapture.set( cb );
+		return true;
+	}
+
+	@Override
+	public void setPipelineMetrics( PipelineMetrics metrics ) {
+		mMetrics = metrics;
+	}
+
+	/**
+	 * @return number of the frames produced and passed on to the preview
+	 * 			callback or the frame capture
+	 */
+	public long getProducedFrames() {
+		return mProducedFrames.get();
+	}
+
+	/**
+	 * @return number of the frames dropped, as no buffer was given back in
+	 * 			time, or the producer fell behind
+	 */
+	public long getDroppedFrames() {
+		return mDroppedFrames.get();
+	}
+
+	/**
+	 * @return number of the frames skipped by the frame thread, as the
+	 * 			callback was still processing the former one
+	 */
+	public long getSkippedFrames() {
+		PreviewSession session = mSession;
+		return mSkippedFrames.get()
+				+ ( session == null ? 0 : session.mFrameThread.getSkippedFrames() );
+	}
+
+	/**
+	 * @return number of the frames passed to the callback and released
+	 */
+	public long getProcessedFrames() {
+		synchronized( mLatencyLock ) {
+			return mProcessedFrames;
+		}
+	}
+
+	/**
+	 * @return mean latency of the frames processed, from filled to released,
+	 * 			in nanoseconds
+	 */
+	public long getMeanLatencyNanos() {
+		synchronized( mLatencyLock ) {
+			return mProcessedFrames == 0 ? 0 : mLatencySum/mProcessedFrames;
+		}
+	}
+
+	/**
+	 * @return max latency of the frames processed in nanoseconds
+	 */
+	public long getMaxLatencyNanos() {
+		synchronized( mLatencyLock ) {
+			return mLatencyMax;
+		}
+	}
+
+	public void resetStatistics() {
+		mProducedFrames.set( 0 );
+		mDroppedFrames.set( 0 );
+		// The frame thread of the session keeps its count, offset it here
+		PreviewSession session = mSession;
+		mSkippedFrames.set(
+			session == null ? 0 : -session.mFrameThread.getSkippedFrames() );
+		synchronized( mLatencyLock ) {
+			mProcessedFrames = 0;
+			mLatencySum = 0;
+			mLatencyMax = 0;
+		}
+	}
+
+	private void checkOpened() {
+		if( !mOpened ) {
+			throw new IllegalStateException( "Camera is not opened!" );
+		}
+	}
+
+	private void markDelivered( PreviewSession session, byte[] frame ) {
+		int index = session.indexOf( frame );
+		if( index >= 0 ) {
+			session.mDelivered[index].set( true );
+		}
+	}
+
+	private void recordLatency( long latency ) {
+		synchronized( mLatencyLock ) {
+			mProcessedFrames++;
+			mLatencySum += latency;
+			mLatencyMax = Math.max( mLatencyMax, latency );
+		}
+	}
+
+	private void startProducer() {
+		mProducing = true;
+		mProducer = new Thread( new Runnable() {
+			@Override
+			public void run() {
+				produceLoop();
+			}
+		}, "SimulatedCamera" );
+		mProducer.start();
+	}
+
+	private void produceLoop() {
+		long period = TimeUnit.SECONDS.toNanos( 1 )/mFps;
+		long next = System.nanoTime();
+		while( mProducing ) {
+			if( mPreviewing && !mPaused ) {
+				produceFrame( mFrameIndex );
+			}
+			mFrameIndex++;
+			next += period;
+			long wait = next - System.nanoTime();
+			if( wait > 0 ) {
+				LockSupport.parkNanos( wait );
+			} else if( -wait >= period ) {
+				// Fell behind, the frames missed are dropped as the sensor does
+				long missed = -wait/period;
+				if( mPreviewing && !mPaused ) {
+					mDroppedFrames.addAndGet( missed );
+				}
+				mFrameIndex += missed;
+				next += missed*period;
+			}
+		}
+		Log.d( "Simulated camera stopped producing frames." );
+	}
+
+	private void produceFrame( long index ) {
+		PreviewSession session = mSession;
+		if( session == null ) {
+			return;
+		}
+		byte[] buffer = session.mQueued.poll();
+		if( buffer == null ) {
+			mDroppedFrames.incrementAndGet();
+			return;
+		}
+		long fillStart = System.nanoTime();
+		mSource.fill( buffer, mWidth, mHeight, index );
+		session.mFillTimes[session.indexOf( buffer )] = System.nanoTime();
+		mProducedFrames.incrementAndGet();
+		if( !session.mRing.checkOut( buffer ) ) {
+			return;
+		}
+		PreviewCallback capture = mFrameCapture.getAndSet( null );
+		if( capture != null ) {
+			capture.onPreviewFrame( mPreviewFormat, buffer, mWidth, mHeight );
+		} else {
+			session.mFrameThread.setFrameData( buffer );
+		}
+		mMetrics.recordSince( PipelineMetrics.STAGE.CAMERA_CALLBACK, fillStart );
+	}
+}
@@ -0,0 +1,75 @@
+package com.zsm.whiteboard.camera;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import com.zsm.whiteboard.util.Size;
+
+/**
+ * Choose the sizes of the streams of a camera. It depends on nothing of
+ * Android, so it can be run on any JVM.
+ */
+final class SizeChooser {
+
+	static final Comparator<Size> BY_AREA = new Comparator<Size>() {
+		@Override
+		public int compare(Size s1, Size s2) {
+			return s1.area() - s2.area();
+		}
+	};
+
+	private SizeChooser() {
+	}
+
+	/**
+	 * Given {@code choices} of {@code Size}s supported by a camera, choose the smallest one that
+	 * is at least as large as the respective texture view size, and that is at most as large as the
+	 * respective max size, and whose aspect ratio matches with the specified value. If such size
+	 * doesn't exist, choose the largest one that is at most as large as the respective max size,
+	 * and whose aspect ratio matches with the specified value.
+	 *
+	 * @param choices           The list of sizes that the camera supports for the intended output
+	 *                          class
+	 * @param viewWidth  The width of the texture view relative to sensor coordinate
+	 * @param viewHeight The height of the texture view relative to sensor coordinate
+	 * @param maxWidth          The maximum width that can be chosen
+	 * @param maxHeight         The maximum height that can be chosen
+	 * @param aspectRatio       The aspect ratio
+	 * @return The optimal {@code Size}, or null if none matches the aspect ratio within the max
+	 *         size
+	 */
+	static Size chooseOptimalSize(List<Size> choices, int viewWidth,
+								  int viewHeight, int maxWidth,
+								  int maxHeight, Size aspectRatio) {
+
+		// Collect the supported resolutions that are at least as big as the preview Surface
+		List<Size> bigEnough = new ArrayList<>();
+		// Collect the supported resolutions that are smaller than the preview Surface
+		List<Size> notBigEnough = new ArrayList<>();
+		int w = aspectRatio.getWidth();
+		int h = aspectRatio.getHeight();
+		for (Size option : choices) {
+			if (option.getWidth() <= maxWidth && option.getHeight() <= maxHeight &&
+					option.getHeight() == option.getWidth() * h / w) {
+				if (option.getWidth() >= viewWidth &&
+					option.getHeight() >= viewHeight) {
+					bigEnough.add(option);
+				} else {
+					notBigEnough.add(option);
+				}
+			}
+		}
+
+		// Pick the smallest of those big enough. If there is no one big enough, pick the
+		// largest of those not big enough.
+		if (bigEnough.size() > 0) {
+			return Collections.min(bigEnough, BY_AREA);
+		} else if (notBigEnough.size() > 0) {
+			return Collections.max(notBigEnough, BY_AREA);
+		} else {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,167 @@
+package com.zsm.whiteboard.camera;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Generate a whiteboard scene: a bright board unevenly lit, seen in
+ * perspective on a darker wall. A pen keeps writing strokes on it, and the
+ * board is erased periodically, so the content changes like in a meeting.
+ * <p>The board is shared with the benchmarks, by {@link #boardQuad} and
+ * {@link #drawBoard}.
+ */
+public class SyntheticBoardSource implements FrameSource {
+
+	private static final int WALL_LUMA = 70;
+	private static final int BOARD_LUMA = 210;
+	public static final int STROKE_LUMA = 40;
+	private static final int CHROMA = 128;
+	// Corners of the board, normalized, clockwise from the top left
+	private static final float[] BOARD_QUAD
+		= { 0.16f, 0.14f, 0.86f, 0.19f, 0.82f, 0.85f, 0.12f, 0.80f };
+	// Pen moving distance for each frame, as the fraction of the width
+	private static final float PEN_SPEED = 0.004f;
+	private static final int DEFAULT_ERASE_FRAMES = 1800;
+
+	private final int mEraseFrames;
+	private final Random mRandom;
+	private int mWidth;
+	private int mHeight;
+	private byte[] mBoard;
+	private byte[] mScene;
+	private long mDrawnIndex = -1;
+	private float mPenX;
+	private float mPenY;
+	private float mPenDx;
+	private float mPenDy;
+
+	public SyntheticBoardSource() {
+		this( DEFAULT_ERASE_FRAMES, 1 );
+	}
+
+	/**
+	 * @param eraseFrames the board is erased every so many frames
+	 * @param seed seed of the pen moving
+	 */
+	public SyntheticBoardSource( int eraseFrames, long seed ) {
+		if( eraseFrames < 1 ) {
+			throw new IllegalArgumentException( "Invalid erase frames: " + eraseFrames );
+		}
+		mEraseFrames = eraseFrames;
+		mRandom = new Random( seed );
+	}
+
+	/**
+	 * Corners of the board in the frames, normalized, top left, top right,
+	 * bottom right and bottom left.
+	 */
+	public static float[] boardQuad() {
+		return BOARD_QUAD.clone();
+	}
+
+	/**
+	 * Draw the board without strokes on the wall.
+	 *
+	 * @param luma luma of the frame to draw into, of at least width*height
+	 * @param width width of the frame
+	 * @param height height of the frame
+	 */
+	public static void drawBoard( byte[] luma, int width, int height ) {
+		float[] quad = new float[BOARD_QUAD.length];
+		for( int i = 0; i < quad.length; i += 2 ) {
+			quad[i] = BOARD_QUAD[i]*width;
+			quad[i+1] = BOARD_QUAD[i+1]*height;
+		}
+		for( int y = 0; y < height; y++ ) {
+			for( int x = 0; x < width; x++ ) {
+				// Lit from the top left
+				int l = inside( quad, x + 0.5f, y + 0.5f )
+							? BOARD_LUMA - 40*( x + y )/( width + height )
+							: WALL_LUMA;
+				luma[y*width + x] = (byte)l;
+			}
+		}
+	}
+
+	@Override
+	public synchronized void fill( byte[] nv21, int width, int height, long index ) {
+		if( width != mWidth || height != mHeight ) {
+			prepare( width, height );
+		}
+		for( long i = mDrawnIndex + 1; i <= index; i++ ) {
+			if( i%mEraseFrames == 0 ) {
+				System.arraycopy( mBoard, 0, mScene, 0, mScene.length );
+				movePenTo( 0.3f, 0.3f );
+			}
+			drawPen();
+		}
+		mDrawnIndex = Math.max( mDrawnIndex, index );
+
+		System.arraycopy( mScene, 0, nv21, 0, mScene.length );
+		Arrays.fill( nv21, mScene.length, width*height*3/2, (byte)CHROMA );
+	}
+
+	@Override
+	public void close() {
+	}
+
+	private void prepare( int width, int height ) {
+		mWidth = width;
+		mHeight = height;
+		mBoard = new byte[width*height];
+		drawBoard( mBoard, width, height );
+		mScene = mBoard.clone();
+		mDrawnIndex = -1;
+		movePenTo( 0.3f, 0.3f );
+	}
+
+	private void movePenTo( float x, float y ) {
+		mPenX = x*mWidth;
+		mPenY = y*mHeight;
+		turnPen();
+	}
+
+	private void turnPen() {
+		double angle = mRandom.nextDouble()*Math.PI*2;
+		mPenDx = (float)Math.cos( angle )*PEN_SPEED*mWidth;
+		mPenDy = (float)Math.sin( angle )*PEN_SPEED*mWidth;
+	}
+
+	private void drawPen() {
+		float x = mPenX + mPenDx;
+		float y = mPenY + mPenDy;
+		// Keep writing in the middle of the board
+		if( x < mWidth*0.25f || x > mWidth*0.75f
+			|| y < mHeight*0.25f || y > mHeight*0.7f || mRandom.nextInt( 20 ) == 0 ) {
+			turnPen();
+			return;
+		}
+		int thickness = Math.max( 2, mWidth/320 );
+		int steps = (int)Math.ceil( Math.max( Math.abs( mPenDx ), Math.abs( mPenDy ) ) );
+		for( int s = 0; s <= steps; s++ ) {
+			int px = (int)( mPenX + mPenDx*s/steps );
+			int py = (int)( mPenY + mPenDy*s/steps );
+			for( int dy = 0; dy < thickness; dy++ ) {
+				int row = ( py + dy )*mWidth;
+				for( int dx = 0; dx < thickness; dx++ ) {
+					mScene[row + px + dx] = (byte)STROKE_LUMA;
+				}
+			}
+		}
+		mPenX = x;
+		mPenY = y;
+	}
+
+	// Inside the convex quadrilateral, whose corners are clockwise on screen
+	private static boolean inside( float[] quad, float x, float y ) {
+		for( int i = 0; i < 4; i++ ) {
+			int j = ( i + 1 )%4;
+			float ex = quad[j*2] - quad[i*2];
+			float ey = quad[j*2+1] - quad[i*2+1];
+			if( ex*( y - quad[i*2+1] ) - ey*( x - quad[i*2] ) < 0 ) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
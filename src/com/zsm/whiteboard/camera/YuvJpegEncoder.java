@@ -0,0 +1,61 @@
+package com.zsm.whiteboard.camera;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+
+import com.zsm.whiteboard.camera.CameraController.PREVIEW_FORMAT;
+
+/**
+ * Encode NV21 preview frames into JPEG by {@link YuvImage}.
+ */
+public class YuvJpegEncoder implements FrameEncoder {
+
+	private static final int DEFAULT_QUALITY = 90;
+
+	private final int mQuality;
+	private final Rect mRect = new Rect();
+	private ByteArrayOutputStream mOutput;
+
+	public YuvJpegEncoder() {
+		this( DEFAULT_QUALITY );
+	}
+
+	/**
+	 * @param quality quality of the JPEG, 0 to 100
+	 */
+	public YuvJpegEncoder( int quality ) {
+		if( quality < 0 || quality > 100 ) {
+			throw new IllegalArgumentException( "Invalid JPEG quality: " + quality );
+		}
+		mQuality = quality;
+	}
+
+	@Override
+	public byte[] encode( PREVIEW_FORMAT format, byte[] frame, int width, int height )
+				throws IOException {
+
+		if( format != null && format != PREVIEW_FORMAT.NV21 ) {
+			throw new IOException( "Unsupported frame format: " + format );
+		}
+		if( mOutput == null ) {
+			// A JPEG of a board is usually far smaller than the frame
+			mOutput = new ByteArrayOutputStream( width*height/4 );
+		}
+		mOutput.reset();
+		mRect.set( 0, 0, width, height );
+		YuvImage image = new YuvImage( frame, ImageFormat.NV21, width, height, null );
+		if( !image.compressToJpeg( mRect, mQuality, mOutput ) ) {
+			throw new IOException( "Encode the frame failed!" );
+		}
+		return mOutput.toByteArray();
+	}
+
+	@Override
+	public CameraController.PICTURE_TYPE getPictureType() {
+		return CameraController.PICTURE_TYPE.JPEG;
+	}
+}
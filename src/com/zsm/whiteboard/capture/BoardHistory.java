@@ -0,0 +1,493 @@
+package com.zsm.whiteboard.capture;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.zsm.log.Log;
+
+/**
+ * Keep the history of a board in one file. The first picture is kept whole
+ * as a keyframe, and each of the following ones only by the tiles changed
+ * from the former, so a long session of a board written little by little
+ * takes little storage. Each record is deflated, and stamped with the time
+ * it is taken.
+ * <p>The file is only appended to, by a {@link FileChannel}, and each record
+ * can be synced to the storage device as it is appended. When it is
+ * opened, the records are indexed by their headers, and a record cut short,
+ * such as by a crash, is dropped. The board at any time is rebuilt from the
+ * keyframe before it and the deltas after, and a keyframe is written again
+ * every {@link #KEYFRAME_INTERVAL} deltas, so that a rebuild never applies
+ * many of them.
+ * <p>The tiles changed are told by a signature of each tile, the mean luma
+ * of its cells, so the pixels of the former picture are not held. It depends
+ * on nothing of Android, so it can be run on any JVM.
+ */
+public class BoardHistory implements Closeable {
+
+	public static final int TILE_SIZE = 32;
+	public static final int KEYFRAME_INTERVAL = 30;
+
+	private static final int MAGIC = 0x57424831;	// "WBH1"
+	private static final int VERSION = 1;
+	private static final int FILE_HEADER_SIZE = 12;
+	// type, time, width, height, raw length, compressed length
+	private static final int RECORD_HEADER_SIZE = 1 + 8 + 4*4;
+	private static final byte TYPE_KEYFRAME = 1;
+	private static final byte TYPE_DELTA = 2;
+
+	// Cells along each side of a tile for its signature
+	private static final int SIGNATURE_CELLS = 4;
+	private static final int SIGNATURE_SIZE = SIGNATURE_CELLS*SIGNATURE_CELLS;
+	// Difference of a cell, in the levels of luma, from which the tile changed
+	private static final int CELL_THRESHOLD = 12;
+	// A picture with more tiles changed than the ratio is kept as a keyframe
+	private static final float MAX_DELTA_RATIO = .5f;
+
+	private static class Entry {
+		final byte mType;
+		final long mTime;
+		final int mWidth;
+		final int mHeight;
+		final int mRawLength;
+		final int mCompressedLength;
+		final long mPosition;
+
+		Entry( ByteBuffer header, long position ) {
+			mType = header.get();
+			mTime = header.getLong();
+			mWidth = header.getInt();
+			mHeight = header.getInt();
+			mRawLength = header.getInt();
+			mCompressedLength = header.getInt();
+			mPosition = position;
+		}
+	}
+
+	private final File mFile;
+	private final List<Entry> mEntries = new ArrayList<Entry>();
+	private final FileOutputStream mOutput;
+	private final FileChannel mAppendChannel;
+	private final boolean mSync;
+	private RandomAccessFile mReadFile;
+	private final Deflater mDeflater = new Deflater( Deflater.BEST_SPEED );
+	private final Inflater mInflater = new Inflater();
+	private final ByteArrayOutputStream mRecord = new ByteArrayOutputStream();
+	private final byte[] mChunk = new byte[64*1024];
+	private byte[] mRow = new byte[0];
+
+	// Signatures of the tiles of the last picture, null if a keyframe is due
+	private byte[] mSignatures;
+	private final byte[] mTileSignature = new byte[SIGNATURE_SIZE];
+	private int mDeltasSinceKeyframe;
+	private boolean mClosed;
+
+	/**
+	 * Open the history in the file, or create it if not exist.
+	 *
+	 * @param file file of the history
+	 * @param sync true, to sync each record to the storage device before
+	 * 			{@link #append} returns
+	 * @throws IOException if the file cannot be opened, or is not a history
+	 */
+	public BoardHistory( File file, boolean sync ) throws IOException {
+		mFile = file;
+		mSync = sync;
+		long end = scan();
+		mOutput = new FileOutputStream( file, true );
+		mAppendChannel = mOutput.getChannel();
+		if( end == 0 ) {
+			ByteBuffer header = ByteBuffer.allocate( FILE_HEADER_SIZE );
+			header.putInt( MAGIC ).putInt( VERSION ).putInt( TILE_SIZE ).flip();
+			write( header );
+		}
+	}
+
+	// Index the records, drop the one cut short, and return the end of the
+	// records
+	private long scan() throws IOException {
+		if( !mFile.exists() || mFile.length() == 0 ) {
+			return 0;
+		}
+		try( RandomAccessFile raf = new RandomAccessFile( mFile, "rw" ) ) {
+			FileChannel channel = raf.getChannel();
+			ByteBuffer header = ByteBuffer.allocate( FILE_HEADER_SIZE );
+			readFully( channel, header, 0 );
+			if( header.getInt() != MAGIC || header.getInt() != VERSION
+				|| header.getInt() != TILE_SIZE ) {
+				throw new IOException( "Not a board history: " + mFile );
+			}
+			long size = channel.size();
+			long position = FILE_HEADER_SIZE;
+			ByteBuffer recordHeader = ByteBuffer.allocate( RECORD_HEADER_SIZE );
+			while( position + RECORD_HEADER_SIZE <= size ) {
+				recordHeader.clear();
+				readFully( channel, recordHeader, position );
+				Entry entry = new Entry( recordHeader, position + RECORD_HEADER_SIZE );
+				long next = entry.mPosition + entry.mCompressedLength;
+				if( next > size ) {
+					break;
+				}
+				mEntries.add( entry );
+				position = next;
+			}
+			if( position < size ) {
+				Log.w( "Board history cut short, the broken record dropped.", mFile,
+					   "size", size, "valid", position );
+				channel.truncate( position );
+			}
+			Log.d( "Board history opened.", mFile, "records", mEntries.size() );
+			return position;
+		}
+	}
+
+	/**
+	 * @return the file of the history
+	 */
+	public File getFile() {
+		return mFile;
+	}
+
+	/**
+	 * @return number of the pictures in the history
+	 */
+	public synchronized int size() {
+		return mEntries.size();
+	}
+
+	/**
+	 * @return time of the picture, in milliseconds since the epoch
+	 */
+	public synchronized long getTime( int index ) {
+		return mEntries.get( index ).mTime;
+	}
+
+	/**
+	 * Get the size of the board kept, so that the following pictures can be
+	 * rectified in the same size to be kept by the tiles changed.
+	 *
+	 * @param size array of 2 to store the width and height
+	 * @return true, if there is any picture kept
+	 */
+	public synchronized boolean getBoardSize( int[] size ) {
+		if( mEntries.isEmpty() ) {
+			return false;
+		}
+		Entry last = mEntries.get( mEntries.size() - 1 );
+		size[0] = last.mWidth;
+		size[1] = last.mHeight;
+		return true;
+	}
+
+	/**
+	 * Append a picture of the board. Only the tiles changed from the former
+	 * picture are kept, unless a keyframe is due.
+	 *
+	 * @param argb pixels of the board in ARGB, row by row
+	 * @param width width of the picture
+	 * @param height height of the picture
+	 * @param time time of the picture, in milliseconds since the epoch
+	 * @return number of the tiles kept, -1 if kept as a keyframe
+	 * @throws IOException if the history cannot be written
+	 */
+	public synchronized int append( int[] argb, int width, int height, long time )
+					throws IOException {
+
+		if( mClosed ) {
+			throw new IOException( "Board history closed: " + mFile );
+		}
+		int columns = ( width + TILE_SIZE - 1 )/TILE_SIZE;
+		int rows = ( height + TILE_SIZE - 1 )/TILE_SIZE;
+		int tiles = columns*rows;
+		if( mRow.length < width*3 ) {
+			mRow = new byte[width*3];
+		}
+
+		boolean keyframe
+			= mSignatures == null || mSignatures.length != tiles*SIGNATURE_SIZE
+			  || lastSizeDiffers( width, height )
+			  || mDeltasSinceKeyframe >= KEYFRAME_INTERVAL;
+		List<Integer> changed = new ArrayList<Integer>();
+		if( !keyframe ) {
+			for( int t = 0; t < tiles; t++ ) {
+				signTile( argb, width, height, t % columns, t / columns );
+				if( tileChanged( t ) ) {
+					changed.add( t );
+				}
+			}
+			keyframe = changed.size() > tiles*MAX_DELTA_RATIO;
+		}
+
+		mRecord.reset();
+		mDeflater.reset();
+		int rawLength;
+		if( keyframe ) {
+			rawLength = width*height*3;
+			for( int y = 0; y < height; y++ ) {
+				deflateRow( argb, y*width, width );
+			}
+		} else {
+			rawLength = 4;
+			ByteBuffer count = ByteBuffer.allocate( 4 );
+			count.putInt( changed.size() );
+			deflate( count.array(), 4 );
+			for( int t : changed ) {
+				int x0 = ( t % columns )*TILE_SIZE;
+				int y0 = ( t / columns )*TILE_SIZE;
+				int w = Math.min( TILE_SIZE, width - x0 );
+				int h = Math.min( TILE_SIZE, height - y0 );
+				ByteBuffer index = ByteBuffer.allocate( 4 );
+				index.putInt( t );
+				deflate( index.array(), 4 );
+				for( int y = y0; y < y0 + h; y++ ) {
+					deflateRow( argb, y*width + x0, w );
+				}
+				rawLength += 4 + w*h*3;
+			}
+		}
+		mDeflater.finish();
+		while( !mDeflater.finished() ) {
+			drainDeflater();
+		}
+
+		ByteBuffer header = ByteBuffer.allocate( RECORD_HEADER_SIZE );
+		header.put( keyframe ? TYPE_KEYFRAME : TYPE_DELTA ).putLong( time )
+			  .putInt( width ).putInt( height ).putInt( rawLength )
+			  .putInt( mRecord.size() ).flip();
+		long position = mAppendChannel.size();
+		write( header );
+		write( ByteBuffer.wrap( mRecord.toByteArray() ) );
+		if( mSync ) {
+			mAppendChannel.force( false );
+		}
+		header.rewind();
+		mEntries.add( new Entry( header, position + RECORD_HEADER_SIZE ) );
+
+		if( keyframe ) {
+			mSignatures = new byte[tiles*SIGNATURE_SIZE];
+			for( int t = 0; t < tiles; t++ ) {
+				signTile( argb, width, height, t % columns, t / columns );
+				System.arraycopy( mTileSignature, 0, mSignatures, t*SIGNATURE_SIZE,
+								  SIGNATURE_SIZE );
+			}
+			mDeltasSinceKeyframe = 0;
+		} else {
+			for( int t : changed ) {
+				signTile( argb, width, height, t % columns, t / columns );
+				System.arraycopy( mTileSignature, 0, mSignatures, t*SIGNATURE_SIZE,
+								  SIGNATURE_SIZE );
+			}
+			mDeltasSinceKeyframe++;
+		}
+		Log.d( "Board appended to the history.", "keyframe", keyframe,
+			   "tiles", changed.size(), "of", tiles, "bytes", mRecord.size() );
+		return keyframe ? -1 : changed.size();
+	}
+
+	private boolean lastSizeDiffers( int width, int height ) {
+		if( mEntries.isEmpty() ) {
+			return true;
+		}
+		Entry last = mEntries.get( mEntries.size() - 1 );
+		return last.mWidth != width || last.mHeight != height;
+	}
+
+	/**
+	 * Rebuild the board at the time, as the last picture taken not after it.
+	 *
+	 * @param time the time, in milliseconds since the epoch
+	 * @param argb array to store the pixels in ARGB, at least of the size of
+	 * 			the board, got by {@link #getTime} and {@link #getBoardSize}
+	 * @param size array of 2 to store the width and height of the board
+	 * @return index of the picture rebuilt, or -1 if none taken before the time
+	 * @throws IOException if the history cannot be read
+	 */
+	public synchronized int rebuild( long time, int[] argb, int[] size ) throws IOException {
+		if( mClosed ) {
+			throw new IOException( "Board history closed: " + mFile );
+		}
+		int last = -1;
+		for( int i = 0; i < mEntries.size() && mEntries.get( i ).mTime <= time; i++ ) {
+			last = i;
+		}
+		if( last < 0 ) {
+			return -1;
+		}
+		int first = last;
+		while( mEntries.get( first ).mType != TYPE_KEYFRAME ) {
+			first--;
+			if( first < 0 ) {
+				throw new IOException( "No keyframe before the record " + last );
+			}
+		}
+		Entry keyframe = mEntries.get( first );
+		int width = keyframe.mWidth;
+		int height = keyframe.mHeight;
+		if( argb.length < width*height ) {
+			throw new IllegalArgumentException(
+						"Output too small: " + argb.length + " < " + width*height );
+		}
+		FileChannel channel = getReadChannel();
+		byte[] raw = inflate( channel, keyframe );
+		for( int i = 0, p = 0; i < width*height; i++, p += 3 ) {
+			argb[i] = 0xFF000000 | ( ( raw[p] & 0xFF ) << 16 )
+					  | ( ( raw[p+1] & 0xFF ) << 8 ) | ( raw[p+2] & 0xFF );
+		}
+
+		int columns = ( width + TILE_SIZE - 1 )/TILE_SIZE;
+		for( int e = first + 1; e <= last; e++ ) {
+			ByteBuffer delta = ByteBuffer.wrap( inflate( channel, mEntries.get( e ) ) );
+			int count = delta.getInt();
+			for( int c = 0; c < count; c++ ) {
+				int t = delta.getInt();
+				int x0 = ( t % columns )*TILE_SIZE;
+				int y0 = ( t / columns )*TILE_SIZE;
+				int w = Math.min( TILE_SIZE, width - x0 );
+				int h = Math.min( TILE_SIZE, height - y0 );
+				for( int y = y0; y < y0 + h; y++ ) {
+					for( int i = y*width + x0; i < y*width + x0 + w; i++ ) {
+						argb[i] = 0xFF000000 | ( ( delta.get() & 0xFF ) << 16 )
+								  | ( ( delta.get() & 0xFF ) << 8 ) | ( delta.get() & 0xFF );
+					}
+				}
+			}
+		}
+		size[0] = width;
+		size[1] = height;
+		return last;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if( mClosed ) {
+			return;
+		}
+		mClosed = true;
+		try {
+			mAppendChannel.force( false );
+			mOutput.close();
+		} finally {
+			if( mReadFile != null ) {
+				mReadFile.close();
+				mReadFile = null;
+			}
+			mDeflater.end();
+			mInflater.end();
+		}
+	}
+
+	private FileChannel getReadChannel() throws IOException {
+		if( mReadFile == null ) {
+			mReadFile = new RandomAccessFile( mFile, "r" );
+		}
+		return mReadFile.getChannel();
+	}
+
+	private byte[] inflate( FileChannel channel, Entry entry ) throws IOException {
+		ByteBuffer compressed = ByteBuffer.allocate( entry.mCompressedLength );
+		readFully( channel, compressed, entry.mPosition );
+		byte[] raw = new byte[entry.mRawLength];
+		mInflater.reset();
+		mInflater.setInput( compressed.array() );
+		try {
+			int length = 0;
+			while( length < raw.length ) {
+				int n = mInflater.inflate( raw, length, raw.length - length );
+				if( n == 0 && ( mInflater.finished() || mInflater.needsInput() ) ) {
+					throw new EOFException( "Record broken at " + entry.mPosition );
+				}
+				length += n;
+			}
+		} catch( DataFormatException e ) {
+			throw new IOException( "Record broken at " + entry.mPosition, e );
+		}
+		return raw;
+	}
+
+	private void deflateRow( int[] argb, int offset, int count ) {
+		for( int i = 0, p = 0; i < count; i++ ) {
+			int c = argb[offset + i];
+			mRow[p++] = (byte)( c >> 16 );
+			mRow[p++] = (byte)( c >> 8 );
+			mRow[p++] = (byte)c;
+		}
+		deflate( mRow, count*3 );
+	}
+
+	private void deflate( byte[] data, int length ) {
+		mDeflater.setInput( data, 0, length );
+		while( !mDeflater.needsInput() ) {
+			drainDeflater();
+		}
+	}
+
+	private void drainDeflater() {
+		int n = mDeflater.deflate( mChunk );
+		mRecord.write( mChunk, 0, n );
+	}
+
+	// Mean luma of the cells of the tile, into mTileSignature
+	private void signTile( int[] argb, int width, int height, int column, int row ) {
+		int x0 = column*TILE_SIZE;
+		int y0 = row*TILE_SIZE;
+		int w = Math.min( TILE_SIZE, width - x0 );
+		int h = Math.min( TILE_SIZE, height - y0 );
+		for( int cy = 0; cy < SIGNATURE_CELLS; cy++ ) {
+			int ys = y0 + cy*h/SIGNATURE_CELLS;
+			int ye = Math.max( ys + 1, y0 + ( cy + 1 )*h/SIGNATURE_CELLS );
+			for( int cx = 0; cx < SIGNATURE_CELLS; cx++ ) {
+				int xs = x0 + cx*w/SIGNATURE_CELLS;
+				int xe = Math.max( xs + 1, x0 + ( cx + 1 )*w/SIGNATURE_CELLS );
+				int sum = 0;
+				for( int y = ys; y < ye; y++ ) {
+					for( int i = y*width + xs; i < y*width + xe; i++ ) {
+						int p = argb[i];
+						sum += ( ( ( p >> 16 ) & 0xFF )*77 + ( ( p >> 8 ) & 0xFF )*150
+								 + ( p & 0xFF )*29 ) >> 8;
+					}
+				}
+				mTileSignature[cy*SIGNATURE_CELLS + cx]
+					= (byte)( sum/( ( ye - ys )*( xe - xs ) ) );
+			}
+		}
+	}
+
+	private boolean tileChanged( int tile ) {
+		int base = tile*SIGNATURE_SIZE;
+		for( int i = 0; i < SIGNATURE_SIZE; i++ ) {
+			int d = ( mTileSignature[i] & 0xFF ) - ( mSignatures[base + i] & 0xFF );
+			if( Math.abs( d ) >= CELL_THRESHOLD ) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void write( ByteBuffer buffer ) throws IOException {
+		while( buffer.hasRemaining() ) {
+			mAppendChannel.write( buffer );
+		}
+	}
+
+	private static void readFully( FileChannel channel, ByteBuffer buffer, long position )
+					throws IOException {
+		while( buffer.hasRemaining() ) {
+			int n = channel.read( buffer, position + buffer.position() );
+			if( n < 0 ) {
+				throw new EOFException( "Unexpected end of the history at " + position );
+			}
+		}
+		buffer.flip();
+	}
+}
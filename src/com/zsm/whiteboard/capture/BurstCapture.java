@@ -0,0 +1,209 @@
+package com.zsm.whiteboard.capture;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import com.zsm.log.Log;
+import com.zsm.whiteboard.image.Sharpness;
+
+/**
+ * Score the pictures of a burst by their sharpness in a scoring thread, while
+ * the camera is taking the following ones. Either the sharpest picture is
+ * kept, or all of them are.
+ * <p>A picture is decoded downsampled for scoring, so scoring takes much less
+ * time than taking a picture. Only the sharpest picture so far is held in the
+ * mode of {@link MODE#SHARPEST}.
+ */
+public class BurstCapture {
+
+	public enum MODE {
+		SHARPEST,
+		ALL
+	}
+
+	/**
+	 * Notified in the scoring thread.
+	 */
+	public interface Listener {
+		/**
+		 * A picture of the burst is kept.
+		 *
+		 * @param jpeg the picture
+		 * @param sharpness sharpness of the picture
+		 */
+		void onBurstPicture( byte[] jpeg, double sharpness );
+
+		/**
+		 * The burst finished, and all the pictures kept have been notified.
+		 *
+		 * @param captured number of the pictures taken
+		 * @param kept number of the pictures kept
+		 */
+		void onBurstFinished( int captured, int kept );
+	}
+
+	// Width the pictures are decoded in for scoring, at least
+	private static final int SCORE_WIDTH = 480;
+
+	private static final byte[] END_OF_BURST = new byte[0];
+	private static final byte[] END_OF_THREAD = new byte[0];
+
+	private final Listener mListener;
+	private final BlockingQueue<byte[]> mQueue = new LinkedBlockingQueue<byte[]>();
+	private final Thread mScorer;
+
+	// Accessed by the scoring thread only
+	private final BitmapFactory.Options mOptions = new BitmapFactory.Options();
+	private int[] mPixels;
+	private byte[] mLuma;
+	private MODE mRunningMode;
+	private int mCaptured;
+	private int mKept;
+	private byte[] mSharpest;
+	private double mSharpestScore;
+
+	private volatile MODE mMode;
+	private volatile boolean mRunning;
+
+	public BurstCapture( Listener listener ) {
+		mListener = listener;
+		mOptions.inPreferredConfig = Bitmap.Config.ARGB_8888;
+		mScorer = new Thread( new Runnable() {
+			@Override
+			public void run() {
+				scoreLoop();
+			}
+		}, "BurstScorer" );
+		mScorer.start();
+	}
+
+	/**
+	 * Start a burst. The pictures taken should be added by {@link #add}, and
+	 * the burst be finished by {@link #finish}.
+	 *
+	 * @param mode to keep the sharpest picture or all
+	 */
+	public void start( MODE mode ) {
+		mMode = mode;
+		mRunning = true;
+	}
+
+	/**
+	 * @return true, if a burst started and not finished
+	 */
+	public boolean isRunning() {
+		return mRunning;
+	}
+
+	/**
+	 * Add a picture taken in the burst to be scored. It returns at once.
+	 *
+	 * @param jpeg the picture in JPEG
+	 */
+	public void add( byte[] jpeg ) {
+		mQueue.add( jpeg );
+	}
+
+	/**
+	 * Finish the burst. The pictures kept and the end of the burst are notified
+	 * after all the pictures added scored.
+	 */
+	public void finish() {
+		mRunning = false;
+		mQueue.add( END_OF_BURST );
+	}
+
+	/**
+	 * Stop the scoring thread, and the pictures not scored are dropped.
+	 */
+	public void stop() {
+		mRunning = false;
+		mQueue.clear();
+		mQueue.add( END_OF_THREAD );
+	}
+
+	private void scoreLoop() {
+		while( true ) {
+			byte[] jpeg;
+			try {
+				jpeg = mQueue.take();
+			} catch (InterruptedException e) {
+				Log.w( e, "Burst scorer interrupted." );
+				return;
+			}
+			if( jpeg == END_OF_THREAD ) {
+				Log.d( "Burst scorer stopped." );
+				return;
+			}
+			if( jpeg == END_OF_BURST ) {
+				endBurst();
+				continue;
+			}
+			if( mRunningMode == null ) {
+				mRunningMode = mMode;
+			}
+			mCaptured++;
+			if( mRunningMode == MODE.ALL ) {
+				mKept++;
+				mListener.onBurstPicture( jpeg, score( jpeg ) );
+				continue;
+			}
+
+			double score = score( jpeg );
+			Log.d( "Burst picture scored.", "index", mCaptured, "sharpness", score );
+			if( mSharpest == null || score > mSharpestScore ) {
+				mSharpest = jpeg;
+				mSharpestScore = score;
+			}
+		}
+	}
+
+	private void endBurst() {
+		if( mSharpest != null ) {
+			mKept++;
+			mListener.onBurstPicture( mSharpest, mSharpestScore );
+		}
+		if( mCaptured > 0 ) {
+			Log.d( "Burst finished.", "captured", mCaptured, "kept", mKept );
+			mListener.onBurstFinished( mCaptured, mKept );
+		}
+		mSharpest = null;
+		mRunningMode = null;
+		mCaptured = 0;
+		mKept = 0;
+	}
+
+	private double score( byte[] jpeg ) {
+		mOptions.inJustDecodeBounds = true;
+		mOptions.inSampleSize = 1;
+		BitmapFactory.decodeByteArray( jpeg, 0, jpeg.length, mOptions );
+		int sampleSize = 1;
+		while( mOptions.outWidth/( sampleSize*2 ) >= SCORE_WIDTH ) {
+			sampleSize *= 2;
+		}
+		mOptions.inJustDecodeBounds = false;
+		mOptions.inSampleSize = sampleSize;
+		Bitmap bitmap = BitmapFactory.decodeByteArray( jpeg, 0, jpeg.length, mOptions );
+		if( bitmap == null ) {
+			Log.w( "Decode the burst picture failed." );
+			return 0;
+		}
+		try {
+			int width = bitmap.getWidth();
+			int height = bitmap.getHeight();
+			int count = width*height;
+			if( mPixels == null || mPixels.length < count ) {
+				mPixels = new int[count];
+				mLuma = new byte[count];
+			}
+			bitmap.getPixels( mPixels, 0, width, 0, 0, width, height );
+			Sharpness.argbToLuma( mPixels, count, mLuma );
+			return Sharpness.measure( mLuma, width, height );
+		} finally {
+			bitmap.recycle();
+		}
+	}
+}
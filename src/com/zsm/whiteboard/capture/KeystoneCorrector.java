@@ -0,0 +1,260 @@
+package com.zsm.whiteboard.capture;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+
+import com.zsm.log.Log;
+import com.zsm.whiteboard.image.BoardEnhancer;
+import com.zsm.whiteboard.image.Homography;
+import com.zsm.whiteboard.image.ParallelExecutor;
+import com.zsm.whiteboard.image.PerspectiveWarper;
+
+/**
+ * Rectify the board in a captured JPEG by its corners detected in the preview.
+ * <p>The JPEG is decoded strip by strip into one array of pixels, so there is
+ * only one decoded copy of the picture. The output is warped band by band
+ * into the output bitmap, so besides the source only the output and a band
+ * are held. When an enhancer is set, the whole output is held to be enhanced
+ * before encoded, so the picture is decoded and encoded only once for both.
+ * <p>A board recorded into a {@link BoardHistory} is rectified into the size
+ * of the board kept, if its shape is nearly the same, so that its tiles line
+ * up with the tiles kept, and it is never encoded.
+ */
+public class KeystoneCorrector {
+
+	private static final int DECODE_STRIP_ROWS = 256;
+	private static final int WARP_BAND_ROWS = 64;
+	private static final int JPEG_QUALITY = 95;
+	// Max difference of the aspect ratio of the board from the one kept in the
+	// history to be rectified into the size kept
+	private static final float HISTORY_ASPECT_TOLERANCE = .05f;
+
+	private final PerspectiveWarper mWarper;
+	private volatile BoardEnhancer mEnhancer;
+
+	public KeystoneCorrector( ParallelExecutor executor ) {
+		mWarper = new PerspectiveWarper( executor );
+	}
+
+	/**
+	 * @param enhancer enhancer to enhance the board rectified, or null
+	 */
+	public void setEnhancer( BoardEnhancer enhancer ) {
+		mEnhancer = enhancer;
+	}
+
+	/**
+	 * Rectify the board in the picture.
+	 *
+	 * @param jpeg picture in JPEG
+	 * @param quad corners of the board, normalized by the size of the
+	 * 			picture, as {@link com.zsm.whiteboard.image.QuadDetector#detect}
+	 * 			returns
+	 * @return the rectified picture in JPEG
+	 * @throws IOException if the picture cannot be decoded or encoded
+	 */
+	public byte[] correct( byte[] jpeg, float[] quad ) throws IOException {
+		long start = System.nanoTime();
+		BitmapRegionDecoder decoder
+			= BitmapRegionDecoder.newInstance( jpeg, 0, jpeg.length, false );
+		int width = decoder.getWidth();
+		int height = decoder.getHeight();
+		int[] source;
+		try {
+			source = decode( decoder, width, height );
+		} finally {
+			decoder.recycle();
+		}
+
+		int[] size = new int[2];
+		Homography.rectifiedSize( quad, width, height, (long)width*height, size );
+		int outWidth = size[0];
+		int outHeight = size[1];
+		Homography homography
+			= Homography.rectToQuad( outWidth, outHeight, quad, width, height );
+
+		BoardEnhancer enhancer = mEnhancer;
+		int[] pixels = null;
+		if( enhancer != null ) {
+			pixels = warp( source, width, height, homography, outWidth, outHeight );
+			// Let the source be collected before enhancing
+			source = null;
+			enhancer.enhance( pixels, outWidth, outHeight );
+		}
+		// Allocated after enhancing, as enhance() does, so that it is not
+		// held along with the source and the pixels
+		Bitmap output = Bitmap.createBitmap( outWidth, outHeight, Bitmap.Config.ARGB_8888 );
+		try {
+			if( pixels == null ) {
+				int[] band = new int[outWidth*Math.min( WARP_BAND_ROWS, outHeight )];
+				for( int y = 0; y < outHeight; y += WARP_BAND_ROWS ) {
+					int rows = Math.min( WARP_BAND_ROWS, outHeight - y );
+					mWarper.warp( source, width, height, homography, band, outWidth, y, rows );
+					output.setPixels( band, 0, outWidth, 0, y, outWidth, rows );
+				}
+			} else {
+				output.setPixels( pixels, 0, outWidth, 0, 0, outWidth, outHeight );
+				pixels = null;
+			}
+			// Let the source be collected before encoding
+			source = null;
+
+			byte[] result = encode( output, jpeg.length );
+			Log.d( "Picture rectified.", "source", width, height,
+				   "output", outWidth, outHeight, "enhanced", enhancer != null,
+				   "ms", ( System.nanoTime() - start )/1000000 );
+			return result;
+		} finally {
+			output.recycle();
+		}
+	}
+
+	/**
+	 * Rectify the board in the picture, enhance it if an enhancer set, and
+	 * append it to the history, instead of encoding it.
+	 *
+	 * @param jpeg picture in JPEG
+	 * @param quad corners of the board, normalized by the size of the
+	 * 			picture
+	 * @param history history to append the board to
+	 * @param time time the picture taken, in milliseconds since the epoch
+	 * @throws IOException if the picture cannot be decoded, or the history
+	 * 			cannot be written
+	 */
+	public void record( byte[] jpeg, float[] quad, BoardHistory history, long time )
+					throws IOException {
+
+		long start = System.nanoTime();
+		BitmapRegionDecoder decoder
+			= BitmapRegionDecoder.newInstance( jpeg, 0, jpeg.length, false );
+		int width = decoder.getWidth();
+		int height = decoder.getHeight();
+		int[] source;
+		try {
+			source = decode( decoder, width, height );
+		} finally {
+			decoder.recycle();
+		}
+
+		int[] size = new int[2];
+		Homography.rectifiedSize( quad, width, height, (long)width*height, size );
+		int[] kept = new int[2];
+		if( history.getBoardSize( kept ) ) {
+			float aspect = (float)size[0]/size[1];
+			float keptAspect = (float)kept[0]/kept[1];
+			if( Math.abs( aspect - keptAspect ) <= keptAspect*HISTORY_ASPECT_TOLERANCE ) {
+				size[0] = kept[0];
+				size[1] = kept[1];
+			}
+		}
+		int outWidth = size[0];
+		int outHeight = size[1];
+		Homography homography
+			= Homography.rectToQuad( outWidth, outHeight, quad, width, height );
+		int[] pixels = warp( source, width, height, homography, outWidth, outHeight );
+		source = null;
+		BoardEnhancer enhancer = mEnhancer;
+		if( enhancer != null ) {
+			enhancer.enhance( pixels, outWidth, outHeight );
+		}
+		int tiles = history.append( pixels, outWidth, outHeight, time );
+		Log.d( "Picture recorded into the history.", "source", width, height,
+			   "output", outWidth, outHeight, "tiles", tiles,
+			   "ms", ( System.nanoTime() - start )/1000000 );
+	}
+
+	/**
+	 * Enhance the picture as it is, for the one without a board detected.
+	 *
+	 * @param jpeg picture in JPEG
+	 * @return the enhanced picture in JPEG, or the picture itself if no
+	 * 			enhancer set
+	 * @throws IOException if the picture cannot be decoded or encoded
+	 */
+	public byte[] enhance( byte[] jpeg ) throws IOException {
+		BoardEnhancer enhancer = mEnhancer;
+		if( enhancer == null ) {
+			return jpeg;
+		}
+		long start = System.nanoTime();
+		BitmapRegionDecoder decoder
+			= BitmapRegionDecoder.newInstance( jpeg, 0, jpeg.length, false );
+		int width = decoder.getWidth();
+		int height = decoder.getHeight();
+		int[] pixels;
+		try {
+			pixels = decode( decoder, width, height );
+		} finally {
+			decoder.recycle();
+		}
+		enhancer.enhance( pixels, width, height );
+
+		Bitmap output = Bitmap.createBitmap( width, height, Bitmap.Config.ARGB_8888 );
+		try {
+			output.setPixels( pixels, 0, width, 0, 0, width, height );
+			pixels = null;
+			byte[] result = encode( output, jpeg.length );
+			Log.d( "Picture enhanced.", width, height,
+				   "ms", ( System.nanoTime() - start )/1000000 );
+			return result;
+		} finally {
+			output.recycle();
+		}
+	}
+
+	private int[] warp( int[] source, int width, int height, Homography homography,
+						int outWidth, int outHeight ) {
+
+		int[] pixels = new int[outWidth*outHeight];
+		mWarper.warp( source, width, height, homography, pixels, outWidth, 0, outHeight );
+		return pixels;
+	}
+
+	private static byte[] encode( Bitmap bitmap, int sizeHint ) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream( sizeHint );
+		if( !bitmap.compress( Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out ) ) {
+			throw new IOException( "Encode the picture failed!" );
+		}
+		return out.toByteArray();
+	}
+
+	private static int[] decode( BitmapRegionDecoder decoder, int width, int height )
+					throws IOException {
+
+		int[] pixels = new int[width*height];
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+		// Only a mutable bitmap can be decoded into again
+		options.inMutable = true;
+		Rect region = new Rect();
+		Bitmap strip = null;
+		try {
+			for( int y = 0; y < height; y += DECODE_STRIP_ROWS ) {
+				int rows = Math.min( DECODE_STRIP_ROWS, height - y );
+				region.set( 0, y, width, y + rows );
+				// Reuse the strip bitmap, the last shorter strip fits into it too
+				options.inBitmap = strip;
+				Bitmap decoded = decoder.decodeRegion( region, options );
+				if( strip != null && decoded != strip ) {
+					// Not reused by the decoder
+					strip.recycle();
+				}
+				strip = decoded;
+				if( strip == null ) {
+					throw new IOException( "Decode the picture failed at row " + y );
+				}
+				strip.getPixels( pixels, y*width, width, 0, 0, width, rows );
+			}
+		} finally {
+			if( strip != null ) {
+				strip.recycle();
+			}
+		}
+		return pixels;
+	}
+}
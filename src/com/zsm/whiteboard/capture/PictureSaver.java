@@ -0,0 +1,276 @@
+package com.zsm.whiteboard.capture;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import android.os.Handler;
+
+import com.zsm.log.Log;
+
+/**
+ * Save the pictures in a dedicated writer thread, so that the camera and the
+ * UI are never held up by the disk. The pictures are queued in a bounded
+ * queue. When it is full, a new picture is refused, and the caller should
+ * not take more pictures until {@link #hasCapacity()} is true again.
+ * <p>Each picture is saved into a new file named by the time it is taken,
+ * unless it is kept by its processor in a file of the processor, such as a
+ * {@link BoardHistory}.
+ * It is written into a temporary file first by a {@link FileChannel}, then
+ * renamed, so that an incomplete file is never seen.
+ */
+public class PictureSaver {
+
+	/**
+	 * Process the picture in the writer thread before it is saved.
+	 */
+	public interface Processor {
+		/**
+		 * @param data the picture
+		 * @return the processed picture, or null if it has been kept
+		 * 			elsewhere, such as in a {@link BoardHistory}, and no file
+		 * 			is written
+		 * @throws IOException if the picture cannot be processed
+		 */
+		byte[] process( byte[] data ) throws IOException;
+	}
+
+	/**
+	 * Notified in the thread of the handler given when a picture saved or
+	 * failed to be saved.
+	 */
+	public interface Listener {
+		void onPictureSaved( File file );
+
+		void onPictureSaveFailed( File file, Exception e );
+	}
+
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	private static class Job {
+		final byte[] mData;
+		final Processor mProcessor;
+		final File mFile;
+		// True, if kept by the processor in mFile, not written into it
+		final boolean mKept;
+
+		Job( byte[] data, Processor processor, File file, boolean kept ) {
+			mData = data;
+			mProcessor = processor;
+			mFile = file;
+			mKept = kept;
+		}
+	}
+
+	// Marks the end of the queue
+	private static final Job END = new Job( null, null, null, false );
+
+	private final File mDirectory;
+	private final String mSuffix;
+	private final boolean mSync;
+	private final Handler mHandler;
+	private final Listener mListener;
+	private final BlockingQueue<Job> mQueue;
+	private final Thread mWriter;
+	private final SimpleDateFormat mNameFormat
+		= new SimpleDateFormat( "'WB_'yyyyMMdd_HHmmss_SSS", Locale.US );
+	private String mLastName;
+	private int mSameNameCount;
+	private volatile boolean mStopped;
+
+	/**
+	 * @param directory directory to save the pictures into
+	 * @param suffix suffix of the file names, such as ".jpg"
+	 * @param capacity max number of the pictures waiting to be saved
+	 * @param sync true, to sync each file to the storage device before it
+	 * 			is reported as saved
+	 * @param handler handler to notify the listener in
+	 * @param listener listener to notify
+	 */
+	public PictureSaver( File directory, String suffix, int capacity, boolean sync,
+						 Handler handler, Listener listener ) {
+
+		mDirectory = directory;
+		mSuffix = suffix;
+		mSync = sync;
+		mHandler = handler;
+		mListener = listener;
+		// One more for the end mark
+		mQueue = new ArrayBlockingQueue<Job>( capacity + 1 );
+		mWriter = new Thread( new Runnable() {
+			@Override
+			public void run() {
+				writerLoop();
+			}
+		}, "PictureSaver" );
+		mWriter.start();
+	}
+
+	/**
+	 * @return true, if a picture can be queued now
+	 */
+	public boolean hasCapacity() {
+		// The slot for the end mark is not counted
+		return !mStopped && mQueue.remainingCapacity() > 1;
+	}
+
+	/**
+	 * Queue the picture to be saved. It returns at once.
+	 *
+	 * @param data the picture
+	 * @param processor processor to process the picture before saved, or null
+	 * @return the file the picture will be saved into, or null if the queue is
+	 * 			full or the saver stopped, and the picture is dropped
+	 */
+	public File save( byte[] data, Processor processor ) {
+		if( !hasCapacity() ) {
+			Log.w( "Picture dropped, too many pictures are waiting to be saved." );
+			return null;
+		}
+		return queue( new Job( data, processor, newFile(), false ) );
+	}
+
+	/**
+	 * Queue the picture to be kept by the processor in its file, such as a
+	 * {@link BoardHistory}. It is reported as saved into that file. If the
+	 * processor cannot keep it and returns the picture, it is saved into a
+	 * new file of its own, as {@link #save} does, and reported so. It
+	 * returns at once.
+	 *
+	 * @param data the picture
+	 * @param processor processor to keep the picture, returning null when
+	 * 			kept
+	 * @param file the file the processor keeps the picture in
+	 * @return the file, or null if the queue is full or the saver stopped,
+	 * 			and the picture is dropped
+	 */
+	public File keep( byte[] data, Processor processor, File file ) {
+		if( !hasCapacity() ) {
+			Log.w( "Picture dropped, too many pictures are waiting to be saved." );
+			return null;
+		}
+		return queue( new Job( data, processor, file, true ) );
+	}
+
+	private File queue( Job job ) {
+		if( !mQueue.offer( job ) ) {
+			Log.w( "Picture dropped, too many pictures are waiting to be saved." );
+			return null;
+		}
+		return job.mFile;
+	}
+
+	/**
+	 * Stop the writer thread after the pictures queued saved. No picture can
+	 * be queued any more.
+	 */
+	public void stop() {
+		mStopped = true;
+		while( true ) {
+			try {
+				mQueue.put( END );
+				return;
+			} catch (InterruptedException e) {
+				Log.w( e, "Interrupted when stopping the picture saver, retry." );
+			}
+		}
+	}
+
+	private synchronized File newFile() {
+		String name = mNameFormat.format( new Date() );
+		if( name.equals( mLastName ) ) {
+			name = name + "_" + ( ++mSameNameCount );
+		} else {
+			mLastName = name;
+			mSameNameCount = 0;
+		}
+		return new File( mDirectory, name + mSuffix );
+	}
+
+	private void writerLoop() {
+		while( true ) {
+			Job job;
+			try {
+				job = mQueue.take();
+			} catch (InterruptedException e) {
+				Log.w( e, "Picture saver interrupted." );
+				return;
+			}
+			if( job == END ) {
+				Log.d( "Picture saver stopped." );
+				return;
+			}
+
+			File file = job.mFile;
+			try {
+				byte[] data = job.mData;
+				if( job.mProcessor != null ) {
+					data = job.mProcessor.process( data );
+					if( data == null ) {
+						Log.d( "Picture kept by the processor, no file written.", file );
+						if( job.mKept ) {
+							notifySaved( file );
+						}
+						continue;
+					}
+				}
+				if( job.mKept ) {
+					// Not kept, never written over the file of the processor
+					file = newFile();
+					Log.w( "Picture not kept by the processor, save it.", job.mFile, file );
+				}
+				write( data, file );
+				notifySaved( file );
+			} catch (IOException | RuntimeException e) {
+				Log.e( e, "Save picture to file failed!", file );
+				notifyFailed( file, e );
+			}
+		}
+	}
+
+	private void write( byte[] data, File file ) throws IOException {
+		if( !mDirectory.isDirectory() && !mDirectory.mkdirs() ) {
+			throw new IOException( "Cannot create the directory: " + mDirectory );
+		}
+		File temp = new File( file.getPath() + TEMP_SUFFIX );
+		try( FileOutputStream out = new FileOutputStream( temp ) ) {
+			FileChannel channel = out.getChannel();
+			ByteBuffer buffer = ByteBuffer.wrap( data );
+			while( buffer.hasRemaining() ) {
+				channel.write( buffer );
+			}
+			if( mSync ) {
+				channel.force( true );
+			}
+		}
+		if( !temp.renameTo( file ) ) {
+			temp.delete();
+			throw new IOException( "Cannot rename " + temp + " to " + file );
+		}
+	}
+
+	private void notifySaved( final File file ) {
+		mHandler.post( new Runnable() {
+			@Override
+			public void run() {
+				mListener.onPictureSaved( file );
+			}
+		} );
+	}
+
+	private void notifyFailed( final File file, final Exception e ) {
+		mHandler.post( new Runnable() {
+			@Override
+			public void run() {
+				mListener.onPictureSaveFailed( file, e );
+			}
+		} );
+	}
+}
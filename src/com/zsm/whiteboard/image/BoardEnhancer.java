@@ -0,0 +1,407 @@
+package com.zsm.whiteboard.image;
+
+import java.util.Arrays;
+
+/**
+ * Enhance a picture of a board for reading. The background of the board,
+ * with its uneven lighting and glare, is estimated in a downsampled image by
+ * a max filter erasing the strokes and a box blur, and divided out of the
+ * picture. Then the levels of the strokes are stretched by the darkest ink
+ * found, and the strokes are mapped to a clean palette of the marker colors.
+ * <p>The filters are separable and run over the rows, and the passes over the
+ * picture stream it row by row, with the background of a row interpolated
+ * once for the row. All the passes are run in parallel by a
+ * {@link ParallelExecutor}. It depends on nothing of Android, so it can be run
+ * on any JVM.
+ * <p>The background estimated can be reused for the following pictures of
+ * the same scene in the same size, then only the two passes over the picture
+ * are run.
+ */
+public class BoardEnhancer {
+
+	/** Colors the strokes are mapped to: black, red, green and blue */
+	public static final int[] PALETTE
+		= { 0xFF202020, 0xFFD32F2F, 0xFF2E7D32, 0xFF1565C0 };
+	private static final int WHITE = 0xFFFFFFFF;
+
+	// Long side of the downsampled image the background is estimated in
+	private static final int BACKGROUND_SIZE = 256;
+	// Radius of the max filter erasing the strokes from the background, in
+	// the pixels of the downsampled image
+	private static final int STROKE_RADIUS = 3;
+	private static final int BLUR_RADIUS = 4;
+	// Max gain of the flattening, not to amplify the noise in the dark
+	private static final int MAX_GAIN = 4;
+	// Fraction of the pixels taken as the darkest ink
+	private static final float INK_BLACK_FRACTION = .005f;
+	// Luma of the flattened pixels from which they are the board
+	private static final int BOARD_WHITE = 220;
+	// The darkest ink is not stretched from lighter than this
+	private static final int MAX_INK_BLACK = BOARD_WHITE - 64;
+	// Chroma of the strokes from which they are colored
+	private static final int MIN_CHROMA = 40;
+
+	private enum PASS { DOWNSAMPLE, MAX_ROWS, MAX_COLUMNS, BLUR_ROWS, BLUR_COLUMNS,
+						RECIPROCAL, FLATTEN, FINISH }
+
+	private final ParallelExecutor mExecutor;
+	private final int[][] mHistograms;
+	private final int[] mLevels = new int[256];
+	private boolean mPaletteEnabled = true;
+
+	// Parameters of the running enhancement
+	private PASS mPass;
+	private int[] mPixels;
+	private int mWidth;
+	private int mHeight;
+	private int mFactor;
+	private int mSmallWidth;
+	private int mSmallHeight;
+	// Downsampled image and the temporary of the filters, three planes each
+	private int[] mSmall;
+	private int[] mTemp;
+	// Column of the downsampled image left to each column of the picture,
+	// and the weight of the right one in 8 bits, packed as (column << 8 | weight)
+	private int[] mColumns;
+	// Gains of the row being flattened, three planes, one for each band
+	private int[][] mGains;
+	// Size of the picture the background in mSmall is estimated for
+	private int mBackgroundWidth;
+	private int mBackgroundHeight;
+
+	private final ParallelExecutor.BandKernel mKernel
+		= new ParallelExecutor.BandKernel() {
+			@Override
+			public void processBand( int band, int startRow, int endRow ) {
+				switch( mPass ) {
+					case DOWNSAMPLE:
+						downsample( startRow, endRow );
+						break;
+					case MAX_ROWS:
+						filterRows( mSmall, mTemp, STROKE_RADIUS, true, startRow, endRow );
+						break;
+					case MAX_COLUMNS:
+						filterColumns( mTemp, mSmall, STROKE_RADIUS, true, startRow, endRow );
+						break;
+					case BLUR_ROWS:
+						filterRows( mSmall, mTemp, BLUR_RADIUS, false, startRow, endRow );
+						break;
+					case BLUR_COLUMNS:
+						filterColumns( mTemp, mSmall, BLUR_RADIUS, false, startRow, endRow );
+						break;
+					case RECIPROCAL:
+						reciprocal( startRow, endRow );
+						break;
+					case FLATTEN:
+						flatten( mHistograms[band], mGains[band], startRow, endRow );
+						break;
+					case FINISH:
+						finish( startRow, endRow );
+						break;
+				}
+			}
+		};
+
+	public BoardEnhancer( ParallelExecutor executor ) {
+		mExecutor = executor;
+		mHistograms = new int[executor.getMaxBands()][256];
+	}
+
+	/**
+	 * @param enabled true to map the strokes to the {@link #PALETTE}, false
+	 * 			to keep their colors stretched
+	 */
+	public synchronized void setPaletteEnabled( boolean enabled ) {
+		mPaletteEnabled = enabled;
+	}
+
+	/**
+	 * Enhance the picture in place.
+	 *
+	 * @param argb pixels in ARGB, row by row
+	 * @param width width of the picture
+	 * @param height height of the picture
+	 */
+	public void enhance( int[] argb, int width, int height ) {
+		enhance( argb, width, height, false );
+	}
+
+	/**
+	 * Enhance the picture in place.
+	 *
+	 * @param argb pixels in ARGB, row by row
+	 * @param width width of the picture
+	 * @param height height of the picture
+	 * @param reuseBackground true to reuse the background estimated for the
+	 * 			former picture, if it is in the same size
+	 * @return true, if the background is estimated for this picture
+	 */
+	public synchronized boolean enhance( int[] argb, int width, int height,
+										 boolean reuseBackground ) {
+		if( width < 1 || height < 1 || argb.length < width*height ) {
+			throw new IllegalArgumentException(
+						"Invalid picture: " + width + "x" + height );
+		}
+		mPixels = argb;
+		boolean estimate
+			= !reuseBackground || width != mBackgroundWidth || height != mBackgroundHeight;
+		try {
+			if( estimate ) {
+				estimateBackground( width, height );
+			}
+			for( int[] histogram : mHistograms ) {
+				Arrays.fill( histogram, 0 );
+			}
+			run( PASS.FLATTEN, height );
+			buildLevels( (long)width*height );
+			run( PASS.FINISH, height );
+		} finally {
+			mPixels = null;
+		}
+		return estimate;
+	}
+
+	private void estimateBackground( int width, int height ) {
+		// Dropped until estimated, in case of failure
+		mBackgroundWidth = 0;
+		mBackgroundHeight = 0;
+		mWidth = width;
+		mHeight = height;
+		mFactor = Math.max( 1, ( Math.max( width, height ) + BACKGROUND_SIZE - 1 )
+								/BACKGROUND_SIZE );
+		mSmallWidth = ( width + mFactor - 1 )/mFactor;
+		mSmallHeight = ( height + mFactor - 1 )/mFactor;
+		int planes = mSmallWidth*mSmallHeight*3;
+		if( mSmall == null || mSmall.length < planes ) {
+			mSmall = new int[planes];
+			mTemp = new int[planes];
+		}
+		if( mColumns == null || mColumns.length != width ) {
+			mColumns = new int[width];
+		}
+		if( mGains == null || mGains[0].length < mSmallWidth*3 ) {
+			mGains = new int[mHistograms.length][mSmallWidth*3];
+		}
+		for( int x = 0; x < width; x++ ) {
+			// In the centers of the blocks
+			mColumns[x] = Math.max( 0, ( ( 2*x + 1 - mFactor ) << 7 )/mFactor );
+		}
+		run( PASS.DOWNSAMPLE, mSmallHeight );
+		run( PASS.MAX_ROWS, mSmallHeight );
+		run( PASS.MAX_COLUMNS, mSmallHeight );
+		run( PASS.BLUR_ROWS, mSmallHeight );
+		run( PASS.BLUR_COLUMNS, mSmallHeight );
+		run( PASS.RECIPROCAL, mSmallHeight );
+		mBackgroundWidth = width;
+		mBackgroundHeight = height;
+	}
+
+	private void run( PASS pass, int rows ) {
+		mPass = pass;
+		mExecutor.run( rows, mKernel );
+	}
+
+	// Average the blocks of the picture into the planes of mSmall
+	private void downsample( int startRow, int endRow ) {
+		int plane = mSmallWidth*mSmallHeight;
+		for( int sy = startRow; sy < endRow; sy++ ) {
+			int y0 = sy*mFactor;
+			int y1 = Math.min( mHeight, y0 + mFactor );
+			for( int sx = 0; sx < mSmallWidth; sx++ ) {
+				int x0 = sx*mFactor;
+				int x1 = Math.min( mWidth, x0 + mFactor );
+				int r = 0, g = 0, b = 0;
+				for( int y = y0; y < y1; y++ ) {
+					int i = y*mWidth;
+					for( int x = x0; x < x1; x++ ) {
+						int p = mPixels[i + x];
+						r += ( p >> 16 ) & 0xFF;
+						g += ( p >> 8 ) & 0xFF;
+						b += p & 0xFF;
+					}
+				}
+				int count = ( y1 - y0 )*( x1 - x0 );
+				int s = sy*mSmallWidth + sx;
+				mSmall[s] = r/count;
+				mSmall[plane + s] = g/count;
+				mSmall[2*plane + s] = b/count;
+			}
+		}
+	}
+
+	// Max or mean of the pixels within the radius along the rows
+	private void filterRows( int[] source, int[] output, int radius, boolean max,
+							 int startRow, int endRow ) {
+		int w = mSmallWidth;
+		int plane = w*mSmallHeight;
+		for( int c = 0; c < 3; c++ ) {
+			for( int y = startRow; y < endRow; y++ ) {
+				int row = c*plane + y*w;
+				for( int x = 0; x < w; x++ ) {
+					int x0 = Math.max( 0, x - radius );
+					int x1 = Math.min( w - 1, x + radius );
+					int v = 0;
+					for( int i = row + x0; i <= row + x1; i++ ) {
+						v = max ? Math.max( v, source[i] ) : v + source[i];
+					}
+					output[row + x] = max ? v : v/( x1 - x0 + 1 );
+				}
+			}
+		}
+	}
+
+	// Max or mean of the pixels within the radius along the columns. Each
+	// output row is accumulated from the source rows one after another, so
+	// the source is read along the rows.
+	private void filterColumns( int[] source, int[] output, int radius, boolean max,
+								int startRow, int endRow ) {
+		int w = mSmallWidth;
+		int plane = w*mSmallHeight;
+		for( int c = 0; c < 3; c++ ) {
+			for( int y = startRow; y < endRow; y++ ) {
+				int y0 = Math.max( 0, y - radius );
+				int y1 = Math.min( mSmallHeight - 1, y + radius );
+				int out = c*plane + y*w;
+				System.arraycopy( source, c*plane + y0*w, output, out, w );
+				for( int sy = y0 + 1; sy <= y1; sy++ ) {
+					int in = c*plane + sy*w;
+					for( int x = 0; x < w; x++ ) {
+						output[out + x]
+							= max ? Math.max( output[out + x], source[in + x] )
+								  : output[out + x] + source[in + x];
+					}
+				}
+				if( !max ) {
+					int count = y1 - y0 + 1;
+					for( int x = 0; x < w; x++ ) {
+						output[out + x] /= count;
+					}
+				}
+			}
+		}
+	}
+
+	// Turn the background into the gains in 8 bit fixed point, so the
+	// flattening multiplies instead of dividing
+	private void reciprocal( int startRow, int endRow ) {
+		int plane = mSmallWidth*mSmallHeight;
+		int minBackground = 255/MAX_GAIN;
+		for( int c = 0; c < 3; c++ ) {
+			for( int i = c*plane + startRow*mSmallWidth;
+				 i < c*plane + endRow*mSmallWidth; i++ ) {
+
+				mSmall[i] = ( 255 << 8 )/Math.max( minBackground, mSmall[i] );
+			}
+		}
+	}
+
+	// Divide the background out of the rows, and count the luma flattened
+	private void flatten( int[] histogram, int[] gains, int startRow, int endRow ) {
+		int sw = mSmallWidth;
+		int plane = sw*mSmallHeight;
+		for( int y = startRow; y < endRow; y++ ) {
+			// Interpolate the gains of the row between the rows of the
+			// downsampled image, in the centers of its blocks
+			int fy = Math.max( 0, ( ( 2*y + 1 - mFactor ) << 7 )/mFactor );
+			int sy0 = Math.min( mSmallHeight - 1, fy >> 8 );
+			int sy1 = Math.min( mSmallHeight - 1, sy0 + 1 );
+			int wy = fy & 0xFF;
+			for( int c = 0; c < 3; c++ ) {
+				int r0 = c*plane + sy0*sw;
+				int r1 = c*plane + sy1*sw;
+				for( int sx = 0; sx < sw; sx++ ) {
+					gains[c*sw + sx]
+						= ( mSmall[r0 + sx]*( 256 - wy ) + mSmall[r1 + sx]*wy ) >> 8;
+				}
+			}
+
+			int i = y*mWidth;
+			for( int x = 0; x < mWidth; x++, i++ ) {
+				int fx = mColumns[x];
+				int sx0 = Math.min( sw - 1, fx >> 8 );
+				int sx1 = Math.min( sw - 1, sx0 + 1 );
+				int wx = fx & 0xFF;
+				int p = mPixels[i];
+				int r = scale( ( p >> 16 ) & 0xFF, gains, sx0, sx1, wx );
+				int g = scale( ( p >> 8 ) & 0xFF, gains, sw + sx0, sw + sx1, wx );
+				int b = scale( p & 0xFF, gains, 2*sw + sx0, 2*sw + sx1, wx );
+				mPixels[i] = 0xFF000000 | ( r << 16 ) | ( g << 8 ) | b;
+				histogram[luma( r, g, b )]++;
+			}
+		}
+	}
+
+	private static int scale( int v, int[] gains, int i0, int i1, int w ) {
+		int gain = ( gains[i0]*( 256 - w ) + gains[i1]*w ) >> 8;
+		return Math.min( 255, ( v*gain ) >> 8 );
+	}
+
+	private static int luma( int r, int g, int b ) {
+		return ( r*77 + g*150 + b*29 ) >> 8;
+	}
+
+	// Stretch the levels from the darkest ink to the white of the board
+	private void buildLevels( long pixels ) {
+		long threshold = (long)( pixels*INK_BLACK_FRACTION );
+		long seen = 0;
+		int black = 0;
+		for( ; black < MAX_INK_BLACK; black++ ) {
+			for( int[] histogram : mHistograms ) {
+				seen += histogram[black];
+			}
+			if( seen > threshold ) {
+				break;
+			}
+		}
+		for( int v = 0; v < 256; v++ ) {
+			if( v <= black ) {
+				mLevels[v] = 0;
+			} else if( v >= BOARD_WHITE ) {
+				mLevels[v] = 255;
+			} else {
+				mLevels[v] = ( v - black )*255/( BOARD_WHITE - black );
+			}
+		}
+	}
+
+	private void finish( int startRow, int endRow ) {
+		int[] levels = mLevels;
+		for( int i = startRow*mWidth; i < endRow*mWidth; i++ ) {
+			int p = mPixels[i];
+			int r = levels[( p >> 16 ) & 0xFF];
+			int g = levels[( p >> 8 ) & 0xFF];
+			int b = levels[p & 0xFF];
+			if( !mPaletteEnabled ) {
+				mPixels[i] = 0xFF000000 | ( r << 16 ) | ( g << 8 ) | b;
+				continue;
+			}
+			int ink = 255 - luma( r, g, b );
+			if( ink <= 0 ) {
+				mPixels[i] = WHITE;
+				continue;
+			}
+			// Blend the color of the palette by the strength of the ink, so
+			// the edges of the strokes stay smooth
+			int color = PALETTE[paletteIndex( r, g, b )];
+			int rest = 255 - ink;
+			mPixels[i]
+				= 0xFF000000
+				  | ( ( ( ( ( color >> 16 ) & 0xFF )*ink + 255*rest )/255 ) << 16 )
+				  | ( ( ( ( ( color >> 8 ) & 0xFF )*ink + 255*rest )/255 ) << 8 )
+				  | ( ( ( color & 0xFF )*ink + 255*rest )/255 );
+		}
+	}
+
+	// Index of the palette by the dominant channel of a colored stroke
+	private static int paletteIndex( int r, int g, int b ) {
+		int max = Math.max( r, Math.max( g, b ) );
+		int min = Math.min( r, Math.min( g, b ) );
+		if( max - min < MIN_CHROMA ) {
+			return 0;
+		}
+		if( max == r ) {
+			return 1;
+		}
+		return max == g ? 2 : 3;
+	}
+}
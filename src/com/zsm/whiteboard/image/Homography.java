@@ -0,0 +1,128 @@
+package com.zsm.whiteboard.image;
+
+/**
+ * Projective mapping from the pixels of a rectangle to a quadrilateral,
+ * x' = (a*x + b*y + c)/(g*x + h*y + 1), y' = (d*x + e*y + f)/(g*x + h*y + 1).
+ * It is used to warp backward, mapping each pixel of the rectified output to
+ * the position to sample in the source.
+ */
+public class Homography {
+
+	final double a, b, c;
+	final double d, e, f;
+	final double g, h;
+
+	private Homography( double a, double b, double c,
+						double d, double e, double f,
+						double g, double h ) {
+		this.a = a; this.b = b; this.c = c;
+		this.d = d; this.e = e; this.f = f;
+		this.g = g; this.h = h;
+	}
+
+	/**
+	 * Create the mapping from the pixels of a rectangle to a quadrilateral.
+	 * The center of the pixel (x, y) of the rectangle, which is
+	 * (x + 0.5, y + 0.5), is mapped into the quadrilateral.
+	 *
+	 * @param width width of the rectangle
+	 * @param height height of the rectangle
+	 * @param quad corners of the quadrilateral, top left, top right, bottom
+	 * 			right and bottom left, as {@link QuadDetector#detect} returns
+	 * @param scaleX factor to scale the x of the corners by
+	 * @param scaleY factor to scale the y of the corners by
+	 * @return the mapping
+	 * @throws IllegalArgumentException if the quadrilateral is degenerate
+	 */
+	public static Homography rectToQuad( int width, int height, float[] quad,
+										 float scaleX, float scaleY ) {
+
+		double x0 = quad[0]*scaleX, y0 = quad[1]*scaleY;
+		double x1 = quad[2]*scaleX, y1 = quad[3]*scaleY;
+		double x2 = quad[4]*scaleX, y2 = quad[5]*scaleY;
+		double x3 = quad[6]*scaleX, y3 = quad[7]*scaleY;
+
+		// Unit square to the quadrilateral, Heckbert, "Fundamentals of Texture
+		// Mapping and Image Warping"
+		double a, b, c, d, e, f, g, h;
+		double dx3 = x0 - x1 + x2 - x3;
+		double dy3 = y0 - y1 + y2 - y3;
+		if( dx3 == 0 && dy3 == 0 ) {
+			a = x1 - x0; b = x2 - x1; c = x0;
+			d = y1 - y0; e = y2 - y1; f = y0;
+			g = 0; h = 0;
+		} else {
+			double dx1 = x1 - x2, dx2 = x3 - x2;
+			double dy1 = y1 - y2, dy2 = y3 - y2;
+			double det = dx1*dy2 - dx2*dy1;
+			if( det == 0 ) {
+				throw new IllegalArgumentException( "Degenerate quadrilateral" );
+			}
+			g = ( dx3*dy2 - dx2*dy3 )/det;
+			h = ( dx1*dy3 - dx3*dy1 )/det;
+			a = x1 - x0 + g*x1; b = x3 - x0 + h*x3; c = x0;
+			d = y1 - y0 + g*y1; e = y3 - y0 + h*y3; f = y0;
+		}
+
+		// Pixel (x, y) to the unit square is u = (x + 0.5)/width,
+		// v = (y + 0.5)/height
+		double sx = 1.0/width, sy = 1.0/height;
+		double c2 = c + ( a*sx + b*sy )*0.5;
+		double f2 = f + ( d*sx + e*sy )*0.5;
+		double w2 = 1 + ( g*sx + h*sy )*0.5;
+		return new Homography( a*sx/w2, b*sy/w2, c2/w2,
+							   d*sx/w2, e*sy/w2, f2/w2,
+							   g*sx/w2, h*sy/w2 );
+	}
+
+	/**
+	 * Map a point.
+	 *
+	 * @param x x of the point
+	 * @param y y of the point
+	 * @param out array of 2 to store the x and y mapped
+	 */
+	public void map( double x, double y, double[] out ) {
+		double w = g*x + h*y + 1;
+		out[0] = ( a*x + b*y + c )/w;
+		out[1] = ( d*x + e*y + f )/w;
+	}
+
+	/**
+	 * Estimate the size of the rectangle the quadrilateral is rectified to,
+	 * as the longer one of the opposite sides. It is scaled down to keep the
+	 * area not larger than the max area.
+	 *
+	 * @param quad corners of the quadrilateral, as {@link QuadDetector#detect}
+	 * 			returns
+	 * @param scaleX factor to scale the x of the corners by
+	 * @param scaleY factor to scale the y of the corners by
+	 * @param maxArea max area of the rectangle
+	 * @param size array of 2 to store the width and height
+	 */
+	public static void rectifiedSize( float[] quad, float scaleX, float scaleY,
+									  long maxArea, int[] size ) {
+
+		double top = distance( quad, 0, 1, scaleX, scaleY );
+		double bottom = distance( quad, 3, 2, scaleX, scaleY );
+		double left = distance( quad, 0, 3, scaleX, scaleY );
+		double right = distance( quad, 1, 2, scaleX, scaleY );
+		double width = Math.max( top, bottom );
+		double height = Math.max( left, right );
+		double area = width*height;
+		if( area > maxArea ) {
+			double s = Math.sqrt( maxArea/area );
+			width *= s;
+			height *= s;
+		}
+		size[0] = Math.max( 1, (int)Math.round( width ) );
+		size[1] = Math.max( 1, (int)Math.round( height ) );
+	}
+
+	private static double distance( float[] quad, int p1, int p2,
+									float scaleX, float scaleY ) {
+		double dx = ( quad[p1*2] - quad[p2*2] )*scaleX;
+		double dy = ( quad[p1*2+1] - quad[p2*2+1] )*scaleY;
+		return Math.sqrt( dx*dx + dy*dy );
+	}
+}
@@ -0,0 +1,217 @@
+package com.zsm.whiteboard.image;
+
+/**
+ * Convert NV21 frames to ARGB_8888 pixels with integer arithmetic only. The
+ * chroma contributions of BT.601 (full range, as the camera delivers) are
+ * looked up from tables computed once, and the results are saturated by a
+ * table too, so there is neither multiplication nor branch for a pixel.
+ * <p>The frame can be downsampled by 2 or 4 while being converted. Only the
+ * pixels needed are converted then, each output pixel taking the top left
+ * pixel of its block. It is fit for an overlay smaller than the frame.
+ * <p>The pixels are written into the array supplied by the caller, so
+ * nothing is allocated for a frame.
+ */
+public class Nv21Converter {
+
+	private static final int CLAMP_OFFSET = 384;
+	private static final int[] CLAMP = new int[CLAMP_OFFSET*3];
+
+	private static final int[] R_V = new int[256];
+	private static final int[] G_U = new int[256];
+	private static final int[] G_V = new int[256];
+	private static final int[] B_U = new int[256];
+
+	static {
+		for( int i = 0; i < CLAMP.length; i++ ) {
+			int v = i - CLAMP_OFFSET;
+			CLAMP[i] = v < 0 ? 0 : ( v > 0xFF ? 0xFF : v );
+		}
+		// Coefficients scaled by 2^16, rounded
+		for( int i = 0; i < 256; i++ ) {
+			int c = i - 128;
+			R_V[i] = ( 91881*c + 32768 ) >> 16;
+			G_U[i] = ( 22554*c + 32768 ) >> 16;
+			G_V[i] = ( 46802*c + 32768 ) >> 16;
+			B_U[i] = ( 116130*c + 32768 ) >> 16;
+		}
+	}
+
+	private final ParallelExecutor mExecutor;
+
+	// Parameters of the running conversion
+	private byte[] mSource;
+	private int mWidth;
+	private int mHeight;
+	private int mFactor;
+	private int[] mOutput;
+
+	private final ParallelExecutor.BandKernel mKernel
+		= new ParallelExecutor.BandKernel() {
+			@Override
+			public void processBand( int band, int startRow, int endRow ) {
+				convertRows( mSource, mWidth, mHeight, mFactor, mOutput,
+							 startRow, endRow );
+			}
+		};
+
+	/**
+	 * Create a converter running in the calling thread.
+	 */
+	public Nv21Converter() {
+		this( null );
+	}
+
+	/**
+	 * @param executor executor to convert the rows in parallel, or null to
+	 * 			convert in the calling thread
+	 */
+	public Nv21Converter( ParallelExecutor executor ) {
+		mExecutor = executor;
+	}
+
+	/**
+	 * @return width of the output for the frame width and the factor
+	 */
+	public static int outputWidth( int width, int factor ) {
+		return width/factor;
+	}
+
+	/**
+	 * @return height of the output for the frame height and the factor
+	 */
+	public static int outputHeight( int height, int factor ) {
+		return height/factor;
+	}
+
+	/**
+	 * Convert the frame.
+	 *
+	 * @param nv21 frame
+	 * @param width width of the frame, MUST be even
+	 * @param height height of the frame, MUST be even
+	 * @param factor factor to downsample, 1, 2 or 4
+	 * @param argb array to store the pixels, at least of
+	 * 			{@link #outputWidth} * {@link #outputHeight}, row by row
+	 */
+	public synchronized void convert( byte[] nv21, int width, int height, int factor,
+									  int[] argb ) {
+
+		checkArguments( nv21, width, height, factor, argb );
+		int outHeight = outputHeight( height, factor );
+		if( mExecutor == null ) {
+			convertRows( nv21, width, height, factor, argb, 0, outHeight );
+			return;
+		}
+
+		mSource = nv21;
+		mWidth = width;
+		mHeight = height;
+		mFactor = factor;
+		mOutput = argb;
+		try {
+			mExecutor.run( outHeight, mKernel );
+		} finally {
+			mSource = null;
+			mOutput = null;
+		}
+	}
+
+	/**
+	 * Convert the rows of the output. The arguments are not checked, so
+	 * {@link #convert} should be used unless the rows are scheduled by the
+	 * caller.
+	 *
+	 * @param nv21 frame
+	 * @param width width of the frame
+	 * @param height height of the frame
+	 * @param factor factor to downsample, 1, 2 or 4
+	 * @param argb array to store the pixels
+	 * @param startRow first row of the output, inclusive
+	 * @param endRow last row of the output, exclusive
+	 */
+	public static void convertRows( byte[] nv21, int width, int height, int factor,
+									int[] argb, int startRow, int endRow ) {
+
+		if( factor == 1 ) {
+			convertFullRows( nv21, width, height, argb, startRow, endRow );
+		} else {
+			convertSampledRows( nv21, width, height, factor, argb, startRow, endRow );
+		}
+	}
+
+	private static void convertFullRows( byte[] nv21, int width, int height,
+										 int[] argb, int startRow, int endRow ) {
+
+		final int[] clamp = CLAMP;
+		int frameSize = width*height;
+		for( int y = startRow; y < endRow; y++ ) {
+			int yIndex = y*width;
+			int uvIndex = frameSize + ( y >> 1 )*width;
+			int rowEnd = yIndex + width;
+			while( yIndex < rowEnd ) {
+				int v = nv21[uvIndex++] & 0xFF;
+				int u = nv21[uvIndex++] & 0xFF;
+				int rv = R_V[v] + CLAMP_OFFSET;
+				int guv = CLAMP_OFFSET - G_U[u] - G_V[v];
+				int bu = B_U[u] + CLAMP_OFFSET;
+
+				int c = nv21[yIndex] & 0xFF;
+				argb[yIndex++] = 0xFF000000 | ( clamp[c + rv] << 16 )
+								 | ( clamp[c + guv] << 8 ) | clamp[c + bu];
+				c = nv21[yIndex] & 0xFF;
+				argb[yIndex++] = 0xFF000000 | ( clamp[c + rv] << 16 )
+								 | ( clamp[c + guv] << 8 ) | clamp[c + bu];
+			}
+		}
+	}
+
+	private static void convertSampledRows( byte[] nv21, int width, int height,
+											int factor, int[] argb,
+											int startRow, int endRow ) {
+
+		final int[] clamp = CLAMP;
+		int frameSize = width*height;
+		int outWidth = width/factor;
+		for( int oy = startRow; oy < endRow; oy++ ) {
+			int y = oy*factor;
+			int yIndex = y*width;
+			int uvIndex = frameSize + ( y >> 1 )*width;
+			int outIndex = oy*outWidth;
+			int outEnd = outIndex + outWidth;
+			while( outIndex < outEnd ) {
+				int v = nv21[uvIndex] & 0xFF;
+				int u = nv21[uvIndex+1] & 0xFF;
+				int c = nv21[yIndex] & 0xFF;
+				argb[outIndex++]
+					= 0xFF000000
+					  | ( clamp[c + R_V[v] + CLAMP_OFFSET] << 16 )
+					  | ( clamp[c - G_U[u] - G_V[v] + CLAMP_OFFSET] << 8 )
+					  | clamp[c + B_U[u] + CLAMP_OFFSET];
+				yIndex += factor;
+				// x is even for factor 2 and 4, so the chroma sample of the
+				// pixel sampled is at x of the chroma row
+				uvIndex += factor;
+			}
+		}
+	}
+
+	private static void checkArguments( byte[] nv21, int width, int height,
+										int factor, int[] argb ) {
+
+		if( factor != 1 && factor != 2 && factor != 4 ) {
+			throw new IllegalArgumentException( "Unsupported factor: " + factor );
+		}
+		if( width <= 0 || height <= 0 || ( width & 1 ) != 0 || ( height & 1 ) != 0
+			|| nv21.length < width*height*3/2 ) {
+
+			throw new IllegalArgumentException(
+						"Invalid NV21 frame: " + nv21.length + " bytes for "
+						+ width + "x" + height );
+		}
+		int required = outputWidth( width, factor )*outputHeight( height, factor );
+		if( argb.length < required ) {
+			throw new IllegalArgumentException(
+						"Output too small: " + argb.length + " < " + required );
+		}
+	}
+}
@@ -0,0 +1,309 @@
+package com.zsm.whiteboard.image;
+
+import java.util.Arrays;
+
+/**
+ * Kernels on NV21 frames, run in parallel by a {@link ParallelExecutor}.
+ * A frame is the Y plane of width*height bytes, followed by the interleaved
+ * V and U plane of width*height/2 bytes, which is the format of the preview
+ * frames.
+ * <p>The kernels and the partial results of the bands are allocated once,
+ * so nothing is allocated for a frame. The methods are synchronized, as the
+ * kernels share them.
+ */
+public class Nv21Processor {
+
+	public static final int HISTOGRAM_BINS = 256;
+
+	// Bytes scanned for a chunk max before locating the position
+	private static final int SCAN_CHUNK = 64;
+
+	private final ParallelExecutor mExecutor;
+
+	private final int[][] mBandHistograms;
+	private final int[] mBandMaxValues;
+	private final int[] mBandMaxIndices;
+
+	// Parameters of the running kernel
+	private byte[] mSource;
+	private int mWidth;
+	private int mHeight;
+	private int mFactor;
+	private int mThreshold;
+	private byte[] mByteOutput;
+	private int[] mIntOutput;
+
+	private final ParallelExecutor.BandKernel mHistogramKernel
+		= new ParallelExecutor.BandKernel() {
+			@Override
+			public void processBand( int band, int startRow, int endRow ) {
+				int[] histogram = mBandHistograms[band];
+				Arrays.fill( histogram, 0 );
+				byte[] source = mSource;
+				int end = endRow*mWidth;
+				for( int i = startRow*mWidth; i < end; i++ ) {
+					histogram[ source[i] & 0xFF ]++;
+				}
+			}
+		};
+
+	private final ParallelExecutor.BandKernel mThresholdKernel
+		= new ParallelExecutor.BandKernel() {
+			@Override
+			public void processBand( int band, int startRow, int endRow ) {
+				byte[] source = mSource;
+				byte[] output = mByteOutput;
+				int threshold = mThreshold;
+				int end = endRow*mWidth;
+				for( int i = startRow*mWidth; i < end; i++ ) {
+					output[i] = ( source[i] & 0xFF ) >= threshold ? (byte)0xFF : 0;
+				}
+			}
+		};
+
+	private final ParallelExecutor.BandKernel mDownscaleKernel
+		= new ParallelExecutor.BandKernel() {
+			@Override
+			public void processBand( int band, int startRow, int endRow ) {
+				downscaleRows( mSource, mWidth, mFactor, mByteOutput, startRow, endRow );
+			}
+		};
+
+	private final ParallelExecutor.BandKernel mArgbKernel
+		= new ParallelExecutor.BandKernel() {
+			@Override
+			public void processBand( int band, int startRow, int endRow ) {
+				Nv21Converter.convertRows( mSource, mWidth, mHeight, 1, mIntOutput,
+											startRow, endRow );
+			}
+		};
+
+	private final ParallelExecutor.BandKernel mMaxLumaKernel
+		= new ParallelExecutor.BandKernel() {
+			@Override
+			public void processBand( int band, int startRow, int endRow ) {
+				int index = findMaxLumaIndex( mSource, startRow*mWidth, endRow*mWidth );
+				mBandMaxIndices[band] = index;
+				mBandMaxValues[band] = mSource[index] & 0xFF;
+			}
+		};
+
+	public Nv21Processor( ParallelExecutor executor ) {
+		mExecutor = executor;
+		int bands = executor.getMaxBands();
+		mBandHistograms = new int[bands][HISTOGRAM_BINS];
+		mBandMaxValues = new int[bands];
+		mBandMaxIndices = new int[bands];
+	}
+
+	public ParallelExecutor getExecutor() {
+		return mExecutor;
+	}
+
+	/**
+	 * Count the pixels for each luma value.
+	 *
+	 * @param nv21 frame
+	 * @param width width of the frame
+	 * @param height height of the frame
+	 * @param histogram array of {@link #HISTOGRAM_BINS} to store the result
+	 * @return histogram
+	 */
+	public synchronized int[] lumaHistogram( byte[] nv21, int width, int height,
+											 int[] histogram ) {
+		checkFrame( nv21, width, height );
+		setSource( nv21, width, height );
+		mExecutor.run( height, mHistogramKernel );
+
+		int bands = Math.min( height, mExecutor.getMaxBands() );
+		for( int v = 0; v < HISTOGRAM_BINS; v++ ) {
+			int sum = 0;
+			for( int b = 0; b < bands; b++ ) {
+				sum += mBandHistograms[b][v];
+			}
+			histogram[v] = sum;
+		}
+		mSource = null;
+		return histogram;
+	}
+
+	/**
+	 * Find the first brightest pixel.
+	 *
+	 * @param nv21 frame
+	 * @param width width of the frame
+	 * @param height height of the frame
+	 * @return index of the pixel in the Y plane
+	 */
+	public synchronized int maxLumaIndex( byte[] nv21, int width, int height ) {
+		checkFrame( nv21, width, height );
+		setSource( nv21, width, height );
+		mExecutor.run( height, mMaxLumaKernel );
+
+		// Bands are in the order of rows, so the first one of the max wins
+		int bands = Math.min( height, mExecutor.getMaxBands() );
+		int best = 0;
+		for( int b = 1; b < bands; b++ ) {
+			if( mBandMaxValues[b] > mBandMaxValues[best] ) {
+				best = b;
+			}
+		}
+		mSource = null;
+		return mBandMaxIndices[best];
+	}
+
+	/**
+	 * Binarize the Y plane. A pixel is 0xFF if its luma is not less than the
+	 * threshold, 0 otherwise.
+	 *
+	 * @param nv21 frame
+	 * @param width width of the frame
+	 * @param height height of the frame
+	 * @param threshold threshold of the luma, 0 to 256
+	 * @param output array of width*height to store the result
+	 */
+	public synchronized void threshold( byte[] nv21, int width, int height,
+										int threshold, byte[] output ) {
+		checkFrame( nv21, width, height );
+		checkOutput( output.length, width*height );
+		setSource( nv21, width, height );
+		mThreshold = threshold;
+		mByteOutput = output;
+		mExecutor.run( height, mThresholdKernel );
+		mByteOutput = null;
+		mSource = null;
+	}
+
+	/**
+	 * Downscale the Y plane by averaging each factor*factor block. The
+	 * remaining pixels on the right and the bottom are discarded.
+	 *
+	 * @param nv21 frame
+	 * @param width width of the frame
+	 * @param height height of the frame
+	 * @param factor factor to downscale
+	 * @param output array of (width/factor)*(height/factor) to store the result
+	 */
+	public synchronized void downscaleLuma( byte[] nv21, int width, int height,
+											int factor, byte[] output ) {
+		checkFrame( nv21, width, height );
+		if( factor < 1 ) {
+			throw new IllegalArgumentException( "Invalid factor: " + factor );
+		}
+		checkOutput( output.length, (width/factor)*(height/factor) );
+		setSource( nv21, width, height );
+		mFactor = factor;
+		mByteOutput = output;
+		mExecutor.run( height/factor, mDownscaleKernel );
+		mByteOutput = null;
+		mSource = null;
+	}
+
+	/**
+	 * Convert the frame to ARGB_8888 pixels.
+	 *
+	 * @param nv21 frame
+	 * @param width width of the frame, MUST be even
+	 * @param height height of the frame, MUST be even
+	 * @param argb array of width*height to store the result
+	 * @see Nv21Converter
+	 */
+	public synchronized void toArgb( byte[] nv21, int width, int height, int[] argb ) {
+		checkFrame( nv21, width, height );
+		if( ( width & 1 ) != 0 || ( height & 1 ) != 0 ) {
+			throw new IllegalArgumentException(
+						"Size of NV21 frame must be even: " + width + "x" + height );
+		}
+		checkOutput( argb.length, width*height );
+		setSource( nv21, width, height );
+		mIntOutput = argb;
+		mExecutor.run( height, mArgbKernel );
+		mIntOutput = null;
+		mSource = null;
+	}
+
+	/**
+	 * Find the first brightest byte in the range. The range is scanned chunk
+	 * by chunk, and the position is only looked for in a chunk whose max is
+	 * larger than the max found so far. The scan stops as soon as a saturated
+	 * byte found.
+	 *
+	 * @param data data to scan
+	 * @param from first index, inclusive
+	 * @param to last index, exclusive
+	 * @return index of the first brightest byte, or from if the range is empty
+	 */
+	public static int findMaxLumaIndex( byte[] data, int from, int to ) {
+		int max = -1;
+		int pos = from;
+
+		for( int chunkStart = from; chunkStart < to; chunkStart += SCAN_CHUNK ) {
+			int chunkEnd = Math.min( chunkStart + SCAN_CHUNK, to );
+			int chunkMax = 0;
+			int i = chunkStart;
+			for( ; i + 3 < chunkEnd; i += 4 ) {
+				int m01 = Math.max( data[i] & 0xFF, data[i+1] & 0xFF );
+				int m23 = Math.max( data[i+2] & 0xFF, data[i+3] & 0xFF );
+				chunkMax = Math.max( chunkMax, Math.max( m01, m23 ) );
+			}
+			for( ; i < chunkEnd; i++ ) {
+				chunkMax = Math.max( chunkMax, data[i] & 0xFF );
+			}
+
+			if( chunkMax > max ) {
+				max = chunkMax;
+				for( i = chunkStart; ( data[i] & 0xFF ) != chunkMax; i++ );
+				pos = i;
+				if( max == 0xFF ) {
+					break;
+				}
+			}
+		}
+		return pos;
+	}
+
+	private static void downscaleRows( byte[] source, int width, int factor,
+									   byte[] output, int startRow, int endRow ) {
+
+		int outWidth = width/factor;
+		int area = factor*factor;
+		int half = area/2;
+		for( int oy = startRow; oy < endRow; oy++ ) {
+			int outIndex = oy*outWidth;
+			int rowStart = oy*factor*width;
+			for( int ox = 0; ox < outWidth; ox++ ) {
+				int sum = 0;
+				int blockStart = rowStart + ox*factor;
+				for( int dy = 0; dy < factor; dy++ ) {
+					int i = blockStart + dy*width;
+					int end = i + factor;
+					for( ; i < end; i++ ) {
+						sum += source[i] & 0xFF;
+					}
+				}
+				output[outIndex + ox] = (byte)( ( sum + half )/area );
+			}
+		}
+	}
+
+	private void setSource( byte[] nv21, int width, int height ) {
+		mSource = nv21;
+		mWidth = width;
+		mHeight = height;
+	}
+
+	private static void checkFrame( byte[] nv21, int width, int height ) {
+		if( width <= 0 || height <= 0 || nv21.length < width*height ) {
+			throw new IllegalArgumentException(
+						"Invalid frame: " + nv21.length + " bytes for "
+						+ width + "x" + height );
+		}
+	}
+
+	private static void checkOutput( int length, int required ) {
+		if( length < required ) {
+			throw new IllegalArgumentException(
+						"Output too small: " + length + " < " + required );
+		}
+	}
+}
@@ -0,0 +1,228 @@
+package com.zsm.whiteboard.image;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Run a kernel over the rows of an image in parallel. The rows are split
+ * into bands, which are taken by the worker threads and the calling thread
+ * one by one until all done, so a slow band does not hold the others up.
+ * The worker threads are created once and parked between the jobs, and
+ * nothing is allocated for a job.
+ * <p>It depends on nothing of Android, so it can be run on any JVM.
+ */
+public class ParallelExecutor {
+
+	/**
+	 * Kernel processing a band of rows. Bands are processed concurrently,
+	 * so a kernel writing results shared by bands MUST write them into
+	 * the slot of the band, and merge them after {@link ParallelExecutor#run}
+	 * returned.
+	 */
+	public interface BandKernel {
+		/**
+		 * @param band index of the band, from 0 to {@link #getMaxBands()} - 1
+		 * @param startRow first row of the band, inclusive
+		 * @param endRow last row of the band, exclusive
+		 */
+		void processBand( int band, int startRow, int endRow );
+	}
+
+	// Bands for each thread, so that the threads can balance the load
+	private static final int BANDS_PER_THREAD = 2;
+
+	private final Thread[] mWorkers;
+	private final int mMaxBands;
+	private final Object mLock = new Object();
+	private final Object mRunLock = new Object();
+
+	// Job, guarded by mLock
+	private BandKernel mKernel;
+	private int mRows;
+	private int mBands;
+	private int mGeneration;
+	private int mPendingBands;
+	private Throwable mFailure;
+	private boolean mShutdown;
+
+	// Generation of the job in the high 32 bits, and the next band in the low
+	private final AtomicLong mCursor = new AtomicLong();
+
+	/**
+	 * Create an executor with a thread for each available processor.
+	 */
+	public ParallelExecutor() {
+		this( Runtime.getRuntime().availableProcessors() );
+	}
+
+	/**
+	 * @param parallelism number of the threads running the kernel, including
+	 * 			the calling thread
+	 */
+	public ParallelExecutor( int parallelism ) {
+		if( parallelism < 1 ) {
+			throw new IllegalArgumentException( "Invalid parallelism: " + parallelism );
+		}
+		mMaxBands = parallelism == 1 ? 1 : parallelism*BANDS_PER_THREAD;
+		mWorkers = new Thread[parallelism-1];
+		for( int i = 0; i < mWorkers.length; i++ ) {
+			mWorkers[i] = new Thread( new Runnable() {
+				@Override
+				public void run() {
+					workerLoop();
+				}
+			}, "ParallelExecutor-" + i );
+			mWorkers[i].setDaemon( true );
+			mWorkers[i].start();
+		}
+	}
+
+	/**
+	 * @return number of the threads running the kernel, including the
+	 * 			calling thread
+	 */
+	public int getParallelism() {
+		return mWorkers.length + 1;
+	}
+
+	/**
+	 * @return max number of the bands a job split into. Results for each
+	 * 			band should be allocated in this size.
+	 */
+	public int getMaxBands() {
+		return mMaxBands;
+	}
+
+	/**
+	 * Run the kernel over the rows, and return when all the bands done.
+	 * Jobs from different threads are run one after another.
+	 *
+	 * @param rows number of the rows
+	 * @param kernel kernel to process the bands
+	 * @throws RuntimeException when the kernel failed in any band
+	 */
+	public void run( int rows, BandKernel kernel ) {
+		if( rows <= 0 ) {
+			return;
+		}
+		synchronized( mRunLock ) {
+			int bands = Math.min( rows, mMaxBands );
+			if( bands == 1 || mWorkers.length == 0 ) {
+				kernel.processBand( 0, 0, rows );
+				return;
+			}
+
+			int generation;
+			synchronized( mLock ) {
+				if( mShutdown ) {
+					throw new IllegalStateException( "Executor has been shut down" );
+				}
+				mKernel = kernel;
+				mRows = rows;
+				mBands = bands;
+				mPendingBands = bands;
+				mFailure = null;
+				generation = ++mGeneration;
+				mCursor.set( ( (long)generation ) << 32 );
+				mLock.notifyAll();
+			}
+
+			processBands( generation, kernel, rows, bands );
+
+			Throwable failure;
+			synchronized( mLock ) {
+				while( mPendingBands > 0 ) {
+					try {
+						mLock.wait();
+					} catch (InterruptedException e) {
+						// The bands taken by the workers are still being
+						// processed, so wait for them anyway
+						Thread.currentThread().interrupt();
+					}
+				}
+				failure = mFailure;
+				mKernel = null;
+			}
+			if( failure != null ) {
+				throw new RuntimeException( "Kernel failed!", failure );
+			}
+		}
+	}
+
+	/**
+	 * Stop the worker threads. The executor can not be used any more.
+	 */
+	public void shutdown() {
+		synchronized( mLock ) {
+			mShutdown = true;
+			mLock.notifyAll();
+		}
+	}
+
+	private void workerLoop() {
+		int seen = 0;
+		while( true ) {
+			int generation;
+			BandKernel kernel;
+			int rows;
+			int bands;
+			synchronized( mLock ) {
+				while( mGeneration == seen && !mShutdown ) {
+					try {
+						mLock.wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if( mShutdown ) {
+					return;
+				}
+				generation = mGeneration;
+				kernel = mKernel;
+				rows = mRows;
+				bands = mBands;
+			}
+			seen = generation;
+			processBands( generation, kernel, rows, bands );
+		}
+	}
+
+	private void processBands( int generation, BandKernel kernel, int rows, int bands ) {
+		int band;
+		while( ( band = nextBand( generation, bands ) ) >= 0 ) {
+			int startRow = (int)( (long)rows*band/bands );
+			int endRow = (int)( (long)rows*(band+1)/bands );
+			Throwable failure = null;
+			try {
+				kernel.processBand( band, startRow, endRow );
+			} catch( Throwable t ) {
+				failure = t;
+			}
+			synchronized( mLock ) {
+				if( failure != null && mFailure == null ) {
+					mFailure = failure;
+				}
+				if( --mPendingBands == 0 ) {
+					mLock.notifyAll();
+				}
+			}
+		}
+	}
+
+	// A thread late for a finished job must not take a band of the next one,
+	// so the band is only taken when the generation matches.
+	private int nextBand( int generation, int bands ) {
+		while( true ) {
+			long cursor = mCursor.get();
+			if( (int)( cursor >>> 32 ) != generation ) {
+				return -1;
+			}
+			int band = (int)cursor;
+			if( band >= bands ) {
+				return -1;
+			}
+			if( mCursor.compareAndSet( cursor, cursor + 1 ) ) {
+				return band;
+			}
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package com.zsm.whiteboard.image;
+
+/**
+ * Warp an ARGB image by a {@link Homography}, sampling the source bilinearly.
+ * The output rows are warped in parallel by a {@link ParallelExecutor}, and
+ * the output can be produced band by band, so that only a band of the output
+ * needs to be held besides the source.
+ * <p>Along a row, the numerators and the denominator of the mapping are
+ * increased by constants, so there is only one division for a pixel. The
+ * samples are interpolated in 8 bit fixed point, two channels at a time.
+ */
+public class PerspectiveWarper {
+
+	private final ParallelExecutor mExecutor;
+
+	// Parameters of the running warp
+	private int[] mSource;
+	private int mSourceWidth;
+	private int mSourceHeight;
+	private Homography mHomography;
+	private int[] mOutput;
+	private int mOutputWidth;
+	private int mFirstRow;
+
+	private final ParallelExecutor.BandKernel mKernel
+		= new ParallelExecutor.BandKernel() {
+			@Override
+			public void processBand( int band, int startRow, int endRow ) {
+				warpRows( mSource, mSourceWidth, mSourceHeight, mHomography,
+						  mOutput, mOutputWidth, mFirstRow, startRow, endRow );
+			}
+		};
+
+	public PerspectiveWarper( ParallelExecutor executor ) {
+		mExecutor = executor;
+	}
+
+	/**
+	 * Warp rows of the output.
+	 *
+	 * @param source source pixels in ARGB, row by row
+	 * @param sourceWidth width of the source
+	 * @param sourceHeight height of the source
+	 * @param homography mapping from the output pixels to the source
+	 * @param output array to store the rows warped, from its start
+	 * @param outputWidth width of the output
+	 * @param firstRow first row of the output to warp
+	 * @param rowCount number of the rows to warp
+	 */
+	public synchronized void warp( int[] source, int sourceWidth, int sourceHeight,
+								   Homography homography, int[] output,
+								   int outputWidth, int firstRow, int rowCount ) {
+
+		if( sourceWidth < 2 || sourceHeight < 2
+			|| source.length < sourceWidth*sourceHeight ) {
+			throw new IllegalArgumentException(
+						"Invalid source: " + sourceWidth + "x" + sourceHeight );
+		}
+		if( output.length < outputWidth*rowCount ) {
+			throw new IllegalArgumentException(
+						"Output too small: " + output.length + " < "
+						+ outputWidth*rowCount );
+		}
+		mSource = source;
+		mSourceWidth = sourceWidth;
+		mSourceHeight = sourceHeight;
+		mHomography = homography;
+		mOutput = output;
+		mOutputWidth = outputWidth;
+		mFirstRow = firstRow;
+		try {
+			mExecutor.run( rowCount, mKernel );
+		} finally {
+			mSource = null;
+			mOutput = null;
+			mHomography = null;
+		}
+	}
+
+	private static void warpRows( int[] source, int sourceWidth, int sourceHeight,
+								  Homography m, int[] output, int outputWidth,
+								  int firstRow, int startRow, int endRow ) {
+
+		int maxX = sourceWidth - 2;
+		int maxY = sourceHeight - 2;
+		for( int row = startRow; row < endRow; row++ ) {
+			double y = firstRow + row;
+			// The numerators and the denominator at x = 0, and their steps
+			double nx = m.b*y + m.c;
+			double ny = m.e*y + m.f;
+			double nw = m.h*y + 1;
+			int out = row*outputWidth;
+			for( int x = 0; x < outputWidth; x++ ) {
+				double w = 1/nw;
+				// Sample positions are pixel centers, so shifted by half a pixel
+				double sx = nx*w - 0.5;
+				double sy = ny*w - 0.5;
+				nx += m.a;
+				ny += m.d;
+				nw += m.g;
+
+				int ix, iy, fx, fy;
+				if( sx <= 0 ) {
+					ix = 0; fx = 0;
+				} else if( sx >= maxX + 1 ) {
+					ix = maxX; fx = 256;
+				} else {
+					ix = (int)sx;
+					fx = (int)( ( sx - ix )*256 );
+					if( ix > maxX ) {
+						ix = maxX; fx = 256;
+					}
+				}
+				if( sy <= 0 ) {
+					iy = 0; fy = 0;
+				} else if( sy >= maxY + 1 ) {
+					iy = maxY; fy = 256;
+				} else {
+					iy = (int)sy;
+					fy = (int)( ( sy - iy )*256 );
+					if( iy > maxY ) {
+						iy = maxY; fy = 256;
+					}
+				}
+
+				int i = iy*sourceWidth + ix;
+				int top = lerp( source[i], source[i+1], fx );
+				int bottom = lerp( source[i+sourceWidth], source[i+sourceWidth+1], fx );
+				output[out + x] = lerp( top, bottom, fy );
+			}
+		}
+	}
+
+	// Interpolate two ARGB pixels, weight from 0 to 256 for p1
+	private static int lerp( int p0, int p1, int weight ) {
+		int w0 = 256 - weight;
+		int rb = ( ( p0 & 0xFF00FF )*w0 + ( p1 & 0xFF00FF )*weight ) >>> 8;
+		int ag = ( ( p0 >>> 8 ) & 0xFF00FF )*w0 + ( ( p1 >>> 8 ) & 0xFF00FF )*weight;
+		return ( rb & 0xFF00FF ) | ( ag & 0xFF00FF00 );
+	}
+}
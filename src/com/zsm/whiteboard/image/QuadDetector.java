@@ -0,0 +1,379 @@
+package com.zsm.whiteboard.image;
+
+import java.util.Arrays;
+
+/**
+ * Detect the dominant quadrilateral, for example a whiteboard or a document,
+ * in a small luma image. The edges are found by the Sobel operator, and voted
+ * into a Hough accumulator in the direction of their gradient only. Then the
+ * best pair of near horizontal lines and the best pair of near vertical lines
+ * are intersected as the corners.
+ * <p>The detection is given a time budget. It is given up when the budget
+ * runs out between two stages, so the caller is never held up for long.
+ * The buffers are allocated for the first image, and reused as long as the
+ * size does not change. An instance MUST be used by one thread at a time.
+ */
+public class QuadDetector {
+
+	/** Number of the values of a result, x and y of the 4 corners */
+	public static final int QUAD_SIZE = 8;
+
+	private static final int THETA_BINS = 90;
+	// Bins of theta on each side of the gradient direction to vote into
+	private static final int THETA_WINDOW = 5;
+	private static final int MIN_EDGE_MAGNITUDE = 48;
+	// Edge threshold as the fraction of the max gradient magnitude, in percent
+	private static final int EDGE_THRESHOLD_PERCENT = 20;
+	private static final int MAX_PEAKS = 24;
+	// Lines within this angle from the horizontal or vertical are candidates
+	private static final int MAX_TILT_BINS = THETA_BINS*35/180;
+	// Min distance between the two lines of a pair, as the fraction of the size
+	private static final float MIN_SEPARATION = 0.25f;
+	private static final float MIN_AREA = 0.1f;
+	// How far outside the image a corner may be, as the fraction of the size
+	private static final float CORNER_MARGIN = 0.1f;
+
+	private static final float[] COS = new float[THETA_BINS];
+	private static final float[] SIN = new float[THETA_BINS];
+
+	static {
+		for( int t = 0; t < THETA_BINS; t++ ) {
+			double theta = Math.PI*t/THETA_BINS;
+			COS[t] = (float)Math.cos( theta );
+			SIN[t] = (float)Math.sin( theta );
+		}
+	}
+
+	private final long mBudgetNanos;
+
+	private int mWidth;
+	private int mHeight;
+	private int mRhoBins;
+	private int mRhoOffset;
+	private int[] mMagnitude;
+	private byte[] mDirection;
+	private int[] mAccumulator;
+	private final int[] mPeakTheta = new int[MAX_PEAKS];
+	private final int[] mPeakRho = new int[MAX_PEAKS];
+	private final int[] mPeakVotes = new int[MAX_PEAKS];
+	private int mPeakCount;
+	private final int[] mLines = new int[4];
+	private final float[] mCorners = new float[QUAD_SIZE];
+	private boolean mTimedOut;
+
+	/**
+	 * @param budgetNanos time budget for a detection in nanoseconds
+	 */
+	public QuadDetector( long budgetNanos ) {
+		mBudgetNanos = budgetNanos;
+	}
+
+	/**
+	 * @return true, if the last detection was given up as running out of
+	 * 			the time budget
+	 */
+	public boolean isTimedOut() {
+		return mTimedOut;
+	}
+
+	/**
+	 * Detect the quadrilateral.
+	 *
+	 * @param luma luma image, row by row
+	 * @param width width of the image
+	 * @param height height of the image
+	 * @param quad array of {@link #QUAD_SIZE} to store the corners, in the
+	 * 			order of top left, top right, bottom right and bottom left.
+	 * 			They are normalized by the width and height, so they are in
+	 * 			0 to 1, except the corners a little outside the image.
+	 * @return true, if a quadrilateral found; false, if not found or the
+	 * 			budget run out, and quad is not changed
+	 */
+	public boolean detect( byte[] luma, int width, int height, float[] quad ) {
+		long deadline = System.nanoTime() + mBudgetNanos;
+		mTimedOut = false;
+		if( width < 8 || height < 8 ) {
+			return false;
+		}
+		prepare( width, height );
+
+		int maxMagnitude = computeGradient( luma );
+		if( outOfBudget( deadline ) ) {
+			return false;
+		}
+
+		int threshold
+			= Math.max( MIN_EDGE_MAGNITUDE,
+						maxMagnitude*EDGE_THRESHOLD_PERCENT/100 );
+		vote( threshold );
+		if( outOfBudget( deadline ) ) {
+			return false;
+		}
+
+		findPeaks();
+		if( !choosePairs() ) {
+			return false;
+		}
+
+		return intersect( quad );
+	}
+
+	private void prepare( int width, int height ) {
+		if( width == mWidth && height == mHeight ) {
+			return;
+		}
+		mWidth = width;
+		mHeight = height;
+		int diagonal = (int)Math.ceil( Math.sqrt( width*width + height*height ) );
+		mRhoOffset = diagonal;
+		mRhoBins = diagonal*2 + 1;
+		mMagnitude = new int[width*height];
+		mDirection = new byte[width*height];
+		mAccumulator = new int[THETA_BINS*mRhoBins];
+	}
+
+	private boolean outOfBudget( long deadline ) {
+		if( System.nanoTime() > deadline ) {
+			mTimedOut = true;
+			return true;
+		}
+		return false;
+	}
+
+	// Sobel operator. The magnitude is |gx| + |gy|, and the direction is the
+	// theta bin of the gradient, which is the normal of the edge.
+	private int computeGradient( byte[] luma ) {
+		int width = mWidth;
+		int height = mHeight;
+		int[] magnitude = mMagnitude;
+		byte[] direction = mDirection;
+		Arrays.fill( magnitude, 0 );
+		int max = 0;
+		for( int y = 1; y < height - 1; y++ ) {
+			int i = y*width + 1;
+			int end = y*width + width - 1;
+			for( ; i < end; i++ ) {
+				int tl = luma[i-width-1] & 0xFF, t = luma[i-width] & 0xFF;
+				int tr = luma[i-width+1] & 0xFF, l = luma[i-1] & 0xFF;
+				int r = luma[i+1] & 0xFF, bl = luma[i+width-1] & 0xFF;
+				int b = luma[i+width] & 0xFF, br = luma[i+width+1] & 0xFF;
+				int gx = ( tr + 2*r + br ) - ( tl + 2*l + bl );
+				int gy = ( bl + 2*b + br ) - ( tl + 2*t + tr );
+				int m = Math.abs( gx ) + Math.abs( gy );
+				magnitude[i] = m;
+				if( m >= MIN_EDGE_MAGNITUDE ) {
+					double theta = Math.atan2( gy, gx );
+					if( theta < 0 ) {
+						theta += Math.PI;
+					}
+					int bin = (int)( theta*THETA_BINS/Math.PI + 0.5 );
+					direction[i] = (byte)( bin >= THETA_BINS ? 0 : bin );
+				}
+				if( m > max ) {
+					max = m;
+				}
+			}
+		}
+		return max;
+	}
+
+	private void vote( int threshold ) {
+		int width = mWidth;
+		int height = mHeight;
+		int rhoBins = mRhoBins;
+		int rhoOffset = mRhoOffset;
+		int[] accumulator = mAccumulator;
+		Arrays.fill( accumulator, 0 );
+		for( int y = 1; y < height - 1; y++ ) {
+			for( int x = 1; x < width - 1; x++ ) {
+				int i = y*width + x;
+				if( mMagnitude[i] < threshold ) {
+					continue;
+				}
+				int center = mDirection[i];
+				for( int d = -THETA_WINDOW; d <= THETA_WINDOW; d++ ) {
+					// Theta wraps around at 180 degrees
+					int t = ( center + d + THETA_BINS )%THETA_BINS;
+					int rho = Math.round( x*COS[t] + y*SIN[t] );
+					accumulator[t*rhoBins + rho + rhoOffset]++;
+				}
+			}
+		}
+	}
+
+	// Keep the strongest local maxima of the accumulator, strongest first
+	private void findPeaks() {
+		int rhoBins = mRhoBins;
+		int[] accumulator = mAccumulator;
+		int minVotes = Math.min( mWidth, mHeight )/4;
+		mPeakCount = 0;
+		for( int t = 0; t < THETA_BINS; t++ ) {
+			int row = t*rhoBins;
+			for( int r = 1; r < rhoBins - 1; r++ ) {
+				int v = accumulator[row + r];
+				if( v < minVotes || v < accumulator[row + r - 1]
+					|| v <= accumulator[row + r + 1] ) {
+					continue;
+				}
+				int tPrev = ( t + THETA_BINS - 1 )%THETA_BINS;
+				int tNext = ( t + 1 )%THETA_BINS;
+				if( t > 0 && v < accumulator[tPrev*rhoBins + r]
+					|| t < THETA_BINS - 1 && v <= accumulator[tNext*rhoBins + r] ) {
+					continue;
+				}
+				insertPeak( t, r - mRhoOffset, v );
+			}
+		}
+	}
+
+	private void insertPeak( int theta, int rho, int votes ) {
+		int pos = mPeakCount;
+		if( pos == MAX_PEAKS ) {
+			if( votes <= mPeakVotes[MAX_PEAKS-1] ) {
+				return;
+			}
+			pos--;
+		} else {
+			mPeakCount++;
+		}
+		while( pos > 0 && mPeakVotes[pos-1] < votes ) {
+			mPeakTheta[pos] = mPeakTheta[pos-1];
+			mPeakRho[pos] = mPeakRho[pos-1];
+			mPeakVotes[pos] = mPeakVotes[pos-1];
+			pos--;
+		}
+		mPeakTheta[pos] = theta;
+		mPeakRho[pos] = rho;
+		mPeakVotes[pos] = votes;
+	}
+
+	// Choose the strongest pair of horizontal lines far enough from each
+	// other, and the same for the vertical lines. mLines is set as the peak
+	// indices of top, bottom, left and right.
+	private boolean choosePairs() {
+		float cx = mWidth/2.0f;
+		float cy = mHeight/2.0f;
+		int bestHorizontal = -1;
+		int bestVertical = -1;
+		for( int i = 0; i < mPeakCount; i++ ) {
+			boolean horizontalI = isHorizontal( mPeakTheta[i] );
+			boolean verticalI = isVertical( mPeakTheta[i] );
+			if( !horizontalI && !verticalI ) {
+				continue;
+			}
+			for( int j = i + 1; j < mPeakCount; j++ ) {
+				int votes = mPeakVotes[i] + mPeakVotes[j];
+				if( horizontalI && isHorizontal( mPeakTheta[j] ) ) {
+					float yi = yAt( i, cx ), yj = yAt( j, cx );
+					if( Math.abs( yi - yj ) >= mHeight*MIN_SEPARATION
+						&& votes > bestHorizontal ) {
+						bestHorizontal = votes;
+						mLines[0] = yi < yj ? i : j;
+						mLines[1] = yi < yj ? j : i;
+					}
+				} else if( verticalI && isVertical( mPeakTheta[j] ) ) {
+					float xi = xAt( i, cy ), xj = xAt( j, cy );
+					if( Math.abs( xi - xj ) >= mWidth*MIN_SEPARATION
+						&& votes > bestVertical ) {
+						bestVertical = votes;
+						mLines[2] = xi < xj ? i : j;
+						mLines[3] = xi < xj ? j : i;
+					}
+				}
+			}
+		}
+		return bestHorizontal > 0 && bestVertical > 0;
+	}
+
+	private static boolean isHorizontal( int theta ) {
+		return Math.abs( theta - THETA_BINS/2 ) <= MAX_TILT_BINS;
+	}
+
+	private static boolean isVertical( int theta ) {
+		return theta <= MAX_TILT_BINS || theta >= THETA_BINS - MAX_TILT_BINS;
+	}
+
+	private float yAt( int peak, float x ) {
+		int t = mPeakTheta[peak];
+		return ( mPeakRho[peak] - x*COS[t] )/SIN[t];
+	}
+
+	private float xAt( int peak, float y ) {
+		int t = mPeakTheta[peak];
+		return ( mPeakRho[peak] - y*SIN[t] )/COS[t];
+	}
+
+	private boolean intersect( float[] quad ) {
+		int top = mLines[0], bottom = mLines[1], left = mLines[2], right = mLines[3];
+		float[] corners = mCorners;
+		if( !intersect( top, left, corners, 0 )
+			|| !intersect( top, right, corners, 2 )
+			|| !intersect( bottom, right, corners, 4 )
+			|| !intersect( bottom, left, corners, 6 ) ) {
+			return false;
+		}
+
+		float minX = -mWidth*CORNER_MARGIN, maxX = mWidth*( 1 + CORNER_MARGIN );
+		float minY = -mHeight*CORNER_MARGIN, maxY = mHeight*( 1 + CORNER_MARGIN );
+		for( int i = 0; i < QUAD_SIZE; i += 2 ) {
+			if( corners[i] < minX || corners[i] > maxX
+				|| corners[i+1] < minY || corners[i+1] > maxY ) {
+				return false;
+			}
+		}
+		if( !isConvex( corners )
+			|| area( corners ) < mWidth*mHeight*MIN_AREA ) {
+			return false;
+		}
+
+		for( int i = 0; i < QUAD_SIZE; i += 2 ) {
+			quad[i] = corners[i]/mWidth;
+			quad[i+1] = corners[i+1]/mHeight;
+		}
+		return true;
+	}
+
+	private boolean intersect( int line1, int line2, float[] out, int offset ) {
+		int t1 = mPeakTheta[line1], t2 = mPeakTheta[line2];
+		float det = COS[t1]*SIN[t2] - SIN[t1]*COS[t2];
+		if( Math.abs( det ) < 1e-3f ) {
+			return false;
+		}
+		float r1 = mPeakRho[line1], r2 = mPeakRho[line2];
+		out[offset] = ( r1*SIN[t2] - r2*SIN[t1] )/det;
+		out[offset+1] = ( COS[t1]*r2 - COS[t2]*r1 )/det;
+		return true;
+	}
+
+	/**
+	 * @param quad corners in order, as {@link #detect} returns
+	 * @return true, if the quadrilateral is convex
+	 */
+	public static boolean isConvex( float[] quad ) {
+		int sign = 0;
+		for( int i = 0; i < 4; i++ ) {
+			int a = i*2, b = ( ( i + 1 )%4 )*2, c = ( ( i + 2 )%4 )*2;
+			float cross = ( quad[b] - quad[a] )*( quad[c+1] - quad[b+1] )
+						  - ( quad[b+1] - quad[a+1] )*( quad[c] - quad[b] );
+			int s = cross > 0 ? 1 : ( cross < 0 ? -1 : 0 );
+			if( s == 0 || ( sign != 0 && s != sign ) ) {
+				return false;
+			}
+			sign = s;
+		}
+		return true;
+	}
+
+	/**
+	 * @param quad corners in order, as {@link #detect} returns
+	 * @return area of the quadrilateral
+	 */
+	public static float area( float[] quad ) {
+		float sum = 0;
+		for( int i = 0; i < 4; i++ ) {
+			int a = i*2, b = ( ( i + 1 )%4 )*2;
+			sum += quad[a]*quad[b+1] - quad[b]*quad[a+1];
+		}
+		return Math.abs( sum )/2;
+	}
+}
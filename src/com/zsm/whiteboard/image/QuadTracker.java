@@ -0,0 +1,99 @@
+package com.zsm.whiteboard.image;
+
+/**
+ * Smooth the quadrilaterals detected frame by frame, so that the result does
+ * not jitter. A detection close to the current result is blended into it,
+ * and one far away is taken at once, as the camera or the board has moved.
+ * The result is kept for some frames without detection, so that a frame
+ * missed does not make it blink.
+ */
+public class QuadTracker {
+
+	// Weight of a new detection blended, 0 to 1
+	private static final float DEFAULT_SMOOTHING = 0.3f;
+	// A detection whose corner moved more than it, normalized, is taken at once
+	private static final float JUMP_DISTANCE = 0.15f;
+	private static final int DEFAULT_HOLD_FRAMES = 5;
+
+	private final float mSmoothing;
+	private final int mHoldFrames;
+	private final float[] mQuad = new float[QuadDetector.QUAD_SIZE];
+	private boolean mValid;
+	private int mMissedFrames;
+
+	public QuadTracker() {
+		this( DEFAULT_SMOOTHING, DEFAULT_HOLD_FRAMES );
+	}
+
+	/**
+	 * @param smoothing weight of a new detection blended into the result,
+	 * 			greater than 0 and not greater than 1. The smaller, the smoother.
+	 * @param holdFrames number of the frames the result is kept without
+	 * 			detection
+	 */
+	public QuadTracker( float smoothing, int holdFrames ) {
+		if( smoothing <= 0 || smoothing > 1 ) {
+			throw new IllegalArgumentException( "Invalid smoothing: " + smoothing );
+		}
+		mSmoothing = smoothing;
+		mHoldFrames = holdFrames;
+	}
+
+	/**
+	 * Update the result by the detection of a frame.
+	 *
+	 * @param detected corners detected, as {@link QuadDetector#detect} returns,
+	 * 			or null if not detected in the frame
+	 * @return true, if the result is valid after updated
+	 */
+	public boolean update( float[] detected ) {
+		if( detected == null ) {
+			if( mValid && ++mMissedFrames > mHoldFrames ) {
+				mValid = false;
+			}
+			return mValid;
+		}
+
+		mMissedFrames = 0;
+		if( !mValid || maxCornerDistance( detected ) > JUMP_DISTANCE ) {
+			System.arraycopy( detected, 0, mQuad, 0, mQuad.length );
+			mValid = true;
+			return true;
+		}
+		for( int i = 0; i < mQuad.length; i++ ) {
+			mQuad[i] += ( detected[i] - mQuad[i] )*mSmoothing;
+		}
+		return true;
+	}
+
+	public boolean isValid() {
+		return mValid;
+	}
+
+	/**
+	 * @param quad array of {@link QuadDetector#QUAD_SIZE} to copy the result to
+	 * @return true, if the result is valid and copied
+	 */
+	public boolean getQuad( float[] quad ) {
+		if( !mValid ) {
+			return false;
+		}
+		System.arraycopy( mQuad, 0, quad, 0, mQuad.length );
+		return true;
+	}
+
+	public void reset() {
+		mValid = false;
+		mMissedFrames = 0;
+	}
+
+	private float maxCornerDistance( float[] quad ) {
+		float max = 0;
+		for( int i = 0; i < mQuad.length; i += 2 ) {
+			float dx = quad[i] - mQuad[i];
+			float dy = quad[i+1] - mQuad[i+1];
+			max = Math.max( max, (float)Math.sqrt( dx*dx + dy*dy ) );
+		}
+		return max;
+	}
+}
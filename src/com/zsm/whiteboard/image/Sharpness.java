@@ -0,0 +1,81 @@
+package com.zsm.whiteboard.image;
+
+/**
+ * Measure how sharp an image is, by the mean energy of the Laplacian of its
+ * luma. A blurred image has weaker edges, so a smaller measure. The measures
+ * are only comparable between images of the same scene in the same size.
+ */
+public class Sharpness {
+
+	private Sharpness() {
+	}
+
+	/**
+	 * Measure the sharpness of the whole image.
+	 *
+	 * @param luma luma of the image, row by row
+	 * @param width width of the image
+	 * @param height height of the image
+	 * @return the sharpness, not less than 0
+	 */
+	public static double measure( byte[] luma, int width, int height ) {
+		return measure( luma, width, height, 0, 0, width, height );
+	}
+
+	/**
+	 * Measure the sharpness of a region of the image. The pixels on the
+	 * border of the image are not measured.
+	 *
+	 * @param luma luma of the image, row by row
+	 * @param width width of the image
+	 * @param height height of the image
+	 * @param left left of the region, inclusive
+	 * @param top top of the region, inclusive
+	 * @param right right of the region, exclusive
+	 * @param bottom bottom of the region, exclusive
+	 * @return the sharpness, 0 if the region is too small
+	 */
+	public static double measure( byte[] luma, int width, int height,
+								  int left, int top, int right, int bottom ) {
+
+		int x0 = Math.max( 1, left );
+		int y0 = Math.max( 1, top );
+		int x1 = Math.min( width - 1, right );
+		int y1 = Math.min( height - 1, bottom );
+		if( x0 >= x1 || y0 >= y1 ) {
+			return 0;
+		}
+
+		long sum = 0;
+		for( int y = y0; y < y1; y++ ) {
+			int i = y*width + x0;
+			int end = y*width + x1;
+			int west = luma[i-1] & 0xFF;
+			int center = luma[i] & 0xFF;
+			for( ; i < end; i++ ) {
+				int east = luma[i+1] & 0xFF;
+				int lap = west + east + ( luma[i-width] & 0xFF )
+						  + ( luma[i+width] & 0xFF ) - 4*center;
+				sum += lap*lap;
+				west = center;
+				center = east;
+			}
+		}
+		return (double)sum/( (long)( x1 - x0 )*( y1 - y0 ) );
+	}
+
+	/**
+	 * Extract the luma of ARGB pixels, by the weights of BT.601.
+	 *
+	 * @param argb the pixels
+	 * @param count number of the pixels
+	 * @param luma array to store the luma
+	 */
+	public static void argbToLuma( int[] argb, int count, byte[] luma ) {
+		for( int i = 0; i < count; i++ ) {
+			int p = argb[i];
+			luma[i] = (byte)( ( ( ( p >> 16 ) & 0xFF )*77 + ( ( p >> 8 ) & 0xFF )*150
+								+ ( p & 0xFF )*29 ) >> 8 );
+		}
+	}
+}
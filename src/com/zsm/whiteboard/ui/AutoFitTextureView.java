@@ -103,7 +103,11 @@ public class AutoFitTextureView extends TextureView {
 		return mPreviewOperator.getFocusArea(x, y);
 	}
 
-	public void setFocusSuccess( boolean success ) {
-		mPreviewOperator.setFocusSuccess(success);
+	public void setFocusRequest( int requestId ) {
+		mPreviewOperator.setFocusRequest(requestId);
+	}
+
+	public void setFocusSuccess( int requestId, boolean success ) {
+		mPreviewOperator.setFocusSuccess(requestId, success);
 	}
 }
\ No newline at end of file
@@ -1,16 +1,15 @@
 package com.zsm.whiteboard.ui;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.util.LinkedList;
 
 import android.annotation.SuppressLint;
 import android.app.Activity;
-import android.graphics.Bitmap;
 import android.graphics.Point;
 import android.graphics.SurfaceTexture;
 import android.hardware.Camera.CameraInfo;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.Handler;
@@ -18,6 +17,7 @@ import android.view.Display;
 import android.view.MotionEvent;
 import android.view.TextureView.SurfaceTextureListener;
 import android.view.View;
+import android.view.View.OnLongClickListener;
 import android.view.View.OnTouchListener;
 import android.view.Window;
 import android.view.WindowManager;
@@ -25,13 +25,31 @@ import android.widget.Toast;
 
 import com.zsm.log.Log;
 import com.zsm.whiteboard.R;
+import com.zsm.whiteboard.app.WhiteBoardApp;
+import com.zsm.whiteboard.analysis.AutoCapture;
+import com.zsm.whiteboard.analysis.LiveEnhancer;
+import com.zsm.whiteboard.analysis.PreviewFrameAnalyzer;
+import com.zsm.whiteboard.analysis.SharpnessFocusTrigger;
+import com.zsm.whiteboard.capture.BoardHistory;
+import com.zsm.whiteboard.capture.BurstCapture;
+import com.zsm.whiteboard.capture.KeystoneCorrector;
+import com.zsm.whiteboard.capture.PictureSaver;
+import com.zsm.whiteboard.camera.Camera2Camera;
 import com.zsm.whiteboard.camera.CameraController;
 import com.zsm.whiteboard.camera.CameraController.PICTURE_TYPE;
 import com.zsm.whiteboard.camera.CameraController.PREVIEW_FORMAT;
 import com.zsm.whiteboard.camera.CameraControllerException;
+import com.zsm.whiteboard.camera.CameraInterface;
+import com.zsm.whiteboard.camera.CameraSessionManager;
 import com.zsm.whiteboard.camera.CameraUserInterface;
 import com.zsm.whiteboard.camera.LegacyCamera;
-import com.zsm.whiteboard.camera.PreviewCallback;
+import com.zsm.whiteboard.camera.PipelineMetrics;
+import com.zsm.whiteboard.camera.SimulatedCamera;
+import com.zsm.whiteboard.camera.SyntheticBoardSource;
+import com.zsm.whiteboard.image.BoardEnhancer;
+import com.zsm.whiteboard.image.Nv21Processor;
+import com.zsm.whiteboard.image.ParallelExecutor;
+import com.zsm.whiteboard.image.QuadDetector;
 
 /**
  * An example full-screen activity that shows and hides the system UI (i.e.
@@ -41,19 +59,87 @@ import com.zsm.whiteboard.camera.PreviewCallback;
  */
 @SuppressWarnings("deprecation")
 public class CaptureActivity extends Activity
-	implements CameraUserInterface, SurfaceTextureListener {
+	implements CameraUserInterface, SurfaceTextureListener,
+			   PictureSaver.Listener, BurstCapture.Listener {
+	
+	private static final int SAVE_QUEUE_CAPACITY = 4;
+	private static final boolean SAVE_SYNC = true;
+	private static final int BURST_COUNT = 5;
+	private static final BurstCapture.MODE BURST_MODE = BurstCapture.MODE.SHARPEST;
+	// A tap on the shutter takes a still picture, a long press takes a burst
+	// of them. PREVIEW_FRAME to snapshot the preview on a tap instead.
+	private static final CameraController.CAPTURE_MODE CAPTURE_MODE
+		= CameraController.CAPTURE_MODE.STILL;
+	// Use the Camera2 API where it is available, off until it is on a par
+	// with the legacy camera
+	private static final boolean USE_CAMERA2 = false;
+	// Replay a synthetic board instead of the camera, such as on a device or
+	// an emulator without one
+	private static final boolean USE_SIMULATED_CAMERA = false;
+	private static final int SIMULATED_WIDTH = 1280;
+	private static final int SIMULATED_HEIGHT = 720;
+	private static final int SIMULATED_FPS = 30;
+	// Flatten the background and clean the strokes of the pictures saved
+	private static final boolean ENHANCE_PICTURES = true;
+	// Keep the boards taken in one history file by the tiles changed, instead
+	// of a picture file each. The pictures without a board are still saved.
+	private static final boolean KEEP_HISTORY = false;
+	private static final String HISTORY_FILE_NAME = "history.wbh";
+	// Take a picture by itself when the board changed and stays still. The
+	// frames are analyzed at a low rate then, to run for hours.
+	private static final boolean AUTO_CAPTURE = false;
+	private static final long AUTO_CAPTURE_FRAME_INTERVAL = 500;
+	// Show the board rectified and enhanced over the preview as it goes
+	private static final boolean LIVE_ENHANCE = false;
+	// Focus again when the sharpness of the board drops
+	private static final boolean SHARPNESS_FOCUS = true;
+	// Show the metrics of the preview pipeline over the preview
+	private static final boolean SHOW_METRICS = false;
+	private static final int METRICS_REFRESH_INTERVAL = 1000;
+	// The metrics are written into the log every so many refreshes
+	private static final int METRICS_DUMP_REFRESHES = 30;
 	
 	private CameraController mCameraController;
+	private CameraSessionManager mSessionManager;
+	// Opened in onCreate, while the views are being inflated
+	private boolean mOpenedInCreate;
 	private AutoFitTextureView mPreviewView;
-	protected Bitmap mBitmap;
 	private Handler mHandler;
 	private PreviewOperator mPreviewOperator;
+	private PreviewFrameAnalyzer mFrameAnalyzer;
+	private LiveEnhancer mLiveEnhancer;
+	private ParallelExecutor mImageExecutor;
+	private KeystoneCorrector mKeystoneCorrector;
+	private PictureSaver mPictureSaver;
+	private BoardHistory mBoardHistory;
+	private BurstCapture mBurstCapture;
+	// Corners of the board when each picture pending was requested, or null
+	// if no board, in the order requested. Owned by the UI thread.
+	private final LinkedList<float[]> mCaptureQuads = new LinkedList<float[]>();
+	// Corners of the board when the burst started, or null if no board
+	private volatile float[] mBurstQuad;
+	private Runnable mMetricsUpdater;
+	private int mMetricsRefreshes;
 
 	@SuppressLint("ClickableViewAccessibility")
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
 
+		mHandler = new Handler();
+		mSessionManager = ((WhiteBoardApp)getApplication()).getCameraSessionManager();
+		mSessionManager.markLaunch();
+		mCameraController = new CameraController( this, newCamera() );
+		mCameraController.setSessionManager( mSessionManager );
+		mCameraController.setCapabilityCache(
+			((WhiteBoardApp)getApplication()).getCapabilityCache() );
+		mCameraController.setCaptureMode( CAPTURE_MODE );
+		// The camera is opened and queried in the camera thread, in parallel
+		// with the inflation. The views are ready when it is notified opened
+		// in the UI thread.
+		mCameraController.openCamera( CameraInfo.CAMERA_FACING_BACK, this );
+		mOpenedInCreate = true;
+
 		requestWindowFeature(Window.FEATURE_NO_TITLE);
 		getWindow().setFlags(WindowManager.LayoutParams.FLAG_FULLSCREEN,
 							 WindowManager.LayoutParams.FLAG_FULLSCREEN);
@@ -65,33 +151,168 @@ public class CaptureActivity extends Activity
 		
 		mPreviewView.setSurfaceTextureListener( this );
 		mPreviewView.setPreviewOperator(mPreviewOperator);
-		mHandler = new Handler();
 
-		mCameraController = new CameraController( this, new LegacyCamera() );
+		mImageExecutor = new ParallelExecutor();
+		mKeystoneCorrector = new KeystoneCorrector( mImageExecutor );
+		if( ENHANCE_PICTURES ) {
+			mKeystoneCorrector.setEnhancer( new BoardEnhancer( mImageExecutor ) );
+		}
+		File pictureDirectory
+			= new File( Environment.getExternalStorageDirectory(), "WhiteBoard" );
+		mPictureSaver
+			= new PictureSaver( pictureDirectory, ".jpg", SAVE_QUEUE_CAPACITY, SAVE_SYNC,
+								mHandler, this );
+		if( KEEP_HISTORY ) {
+			mBoardHistory = openHistory( pictureDirectory );
+		}
+		mBurstCapture = new BurstCapture( this );
+		mFrameAnalyzer
+			= new PreviewFrameAnalyzer( mCameraController,
+										new Nv21Processor( mImageExecutor ),
+										mPreviewOperator, mHandler );
+		if( LIVE_ENHANCE ) {
+			mLiveEnhancer = new LiveEnhancer( mImageExecutor, mPreviewOperator, mHandler );
+			mFrameAnalyzer.setLiveEnhancer( mLiveEnhancer );
+		}
+		if( AUTO_CAPTURE ) {
+			mFrameAnalyzer.setAutoCapture(
+				new AutoCapture( mCameraController, new AutoCapture.Listener() {
+					@Override
+					public boolean onAutoCapture() {
+						// Checked here as well as when taken, so that a picture
+						// sure to be dropped is not taken as captured
+						if( mCameraController.isInBurst() || !mPictureSaver.hasCapacity() ) {
+							return false;
+						}
+						mHandler.post( new Runnable() {
+							@Override
+							public void run() {
+								onTakePicture( null );
+							}
+						} );
+						return true;
+					}
+				} ) );
+			mFrameAnalyzer.setMinFrameInterval( AUTO_CAPTURE_FRAME_INTERVAL );
+		}
+		if( SHARPNESS_FOCUS ) {
+			mFrameAnalyzer.setFocusTrigger(
+				new SharpnessFocusTrigger( mCameraController ) );
+		}
+		mPreviewOperator.setPipelineMetrics( mCameraController.getMetrics() );
+		mMetricsUpdater = new Runnable() {
+			@Override
+			public void run() {
+				updateMetrics();
+				mHandler.postDelayed( this, METRICS_REFRESH_INTERVAL );
+			}
+		};
 		
 		mPreviewView.setOnTouchListener( new OnTouchListener() {
 			@Override
 			public boolean onTouch(View v, MotionEvent event) {
-				mCameraController
-					.startAutoFocusAt( 
-						mPreviewView.getFocusAreaAt( event.getX(), event.getY() ) );
+				int requestId
+					= mCameraController
+						.startAutoFocusAt( 
+							mPreviewView.getFocusAreaAt( event.getX(), event.getY() ) );
+				mPreviewView.setFocusRequest( requestId );
 				return true;
 			}
 		} );
+		findViewById( R.id.btnTakePicture ).setOnLongClickListener(
+			new OnLongClickListener() {
+				@Override
+				public boolean onLongClick(View v) {
+					onTakeBurst();
+					return true;
+				}
+			} );
+	}
+	
+	private CameraInterface newCamera() {
+		if( USE_SIMULATED_CAMERA ) {
+			return new SimulatedCamera( new SyntheticBoardSource(), SIMULATED_WIDTH,
+										SIMULATED_HEIGHT, SIMULATED_FPS );
+		}
+		Handler cameraHandler = mSessionManager.getHandler();
+		if( USE_CAMERA2 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ) {
+			return new Camera2Camera( this, cameraHandler );
+		}
+		return new LegacyCamera( LegacyCamera.DEFAULT_PREVIEW_BUFFER_COUNT,
+								 cameraHandler );
 	}
 	
 	@Override
 	protected void onResume() {
 		super.onResume();
-		mCameraController.openCamera( CameraInfo.CAMERA_FACING_BACK, this );
+		if( mOpenedInCreate ) {
+			mOpenedInCreate = false;
+		} else {
+			mSessionManager.markLaunch();
+			mCameraController.openCamera( CameraInfo.CAMERA_FACING_BACK, this );
+		}
+		mCameraController.getMetrics().reset();
+		mMetricsRefreshes = 0;
+		mHandler.postDelayed( mMetricsUpdater, METRICS_REFRESH_INTERVAL );
 	}
 
 	@Override
 	protected void onPause() {
 		super.onPause();
+		mHandler.removeCallbacks( mMetricsUpdater );
+		mCameraController.getMetrics().dump();
 		mCameraController.releaseCamera();
 	}
 
+	private void updateMetrics() {
+		PipelineMetrics metrics = mCameraController.getMetrics();
+		if( SHOW_METRICS ) {
+			mPreviewOperator.setMetricsText(
+				metrics.format( new StringBuilder() ).toString() );
+		}
+		if( ++mMetricsRefreshes >= METRICS_DUMP_REFRESHES ) {
+			mMetricsRefreshes = 0;
+			metrics.dump();
+		}
+	}
+
+	@Override
+	protected void onDestroy() {
+		super.onDestroy();
+		// The pictures queued are still saved, but not rectified any more
+		// after the executor shut down
+		mBurstCapture.stop();
+		mPictureSaver.stop();
+		if( mLiveEnhancer != null ) {
+			mLiveEnhancer.release();
+		}
+		mImageExecutor.shutdown();
+		if( mBoardHistory != null ) {
+			// A picture still queued fails to be recorded then, and is saved
+			// as a picture
+			try {
+				mBoardHistory.close();
+			} catch (IOException e) {
+				Log.e( e, "Close the board history failed!" );
+			}
+		}
+	}
+
+	// Null if the history cannot be opened, and the boards are saved as
+	// pictures
+	private BoardHistory openHistory( File directory ) {
+		File file = new File( directory, HISTORY_FILE_NAME );
+		try {
+			if( !directory.isDirectory() && !directory.mkdirs() ) {
+				throw new IOException( "Cannot create the directory: " + directory );
+			}
+			return new BoardHistory( file, SAVE_SYNC );
+		} catch (IOException e) {
+			Log.e( e, "Open the board history failed, save the pictures instead.", file );
+			return null;
+		}
+	}
+
 	@Override
 	public void cameraOpened(int id) {
 		Log.d( "Camera opened, id is ", id );
@@ -114,22 +335,13 @@ public class CaptureActivity extends Activity
 
 	private void startPreview() {
 		if( mCameraController.getState() == CameraController.CAMERA_STATE.PREVIEW_SET ) {
-			PreviewCallback pc = new PreviewCallback(){
-				@Override
-				public void onPreviewFrame( final PREVIEW_FORMAT format, final byte[] frameData,
-											final int width, final int height ) {
-					
-					mHandler.post( new Runnable() {
-						@Override
-						public void run() {
-							processPreviewFrame(frameData, width, height);
-						}
-					} );
-				}
-			};
-			
+			// The pictures requested in the previous preview are dropped
+			mCaptureQuads.clear();
 			try {
-				mCameraController.startPreview(PREVIEW_FORMAT.NV21, pc);
+				// The analysis reads the luma only, unless enhancing the preview
+				mCameraController.startPreview(
+					LIVE_ENHANCE ? PREVIEW_FORMAT.NV21 : PREVIEW_FORMAT.LUMA,
+					mFrameAnalyzer );
 				Log.d( "Started to preview successfully!" );
 			} catch (CameraControllerException e) {
 				Log.e( e, "Failed to start preview!" );
@@ -152,32 +364,133 @@ public class CaptureActivity extends Activity
 	}
 
 	@Override
-	public void onAutoFocus(boolean success) {
-		Log.d( "Atuo focus result: ", success );
-		mPreviewView.setFocusSuccess(success);
+	public void onAutoFocus(final int requestId, final boolean success) {
+		Log.d( "Atuo focus result: ", success, "request", requestId );
+		// Notified in the camera thread
+		mHandler.post( new Runnable() {
+			@Override
+			public void run() {
+				mPreviewView.setFocusSuccess(requestId, success);
+			}
+		} );
 	}
 
 	@Override
-	public void savePicture(PICTURE_TYPE imageType, byte[] pictureData) {
-		String dirPath = Environment.getExternalStorageDirectory() + "/WhiteBoard";
-		File path = new File( dirPath );
-		File pictureFile = new File( dirPath, "test.jpg" );
-		int promptId;
-		try {
-			path.mkdir();
-			OutputStream os = new FileOutputStream( pictureFile );
-			os.write(pictureData);
-			os.close();
-			promptId = R.string.promptSavePictureSuccess;
-		} catch (IOException e) {
-			Log.e( e, "Savet picture to file failed!", pictureFile );
-			promptId = R.string.promptSavePictureFailed;
+	public void savePicture(final PICTURE_TYPE imageType, final byte[] pictureData) {
+		// Passed in the camera thread, or the encoding thread of a snapshot
+		mHandler.post( new Runnable() {
+			@Override
+			public void run() {
+				queuePicture( imageType, pictureData );
+			}
+		} );
+	}
+
+	@Override
+	public void saveBurstPicture(byte[] jpeg) {
+		mBurstCapture.add( jpeg );
+	}
+
+	private void queuePicture(PICTURE_TYPE imageType, byte[] pictureData) {
+		float[] quad = mCaptureQuads.poll();
+		File file
+			= imageType == PICTURE_TYPE.JPEG
+				? queueJpeg( pictureData, quad )
+				: mPictureSaver.save( pictureData, null );
+		if( file == null ) {
+			showToast( R.string.promptSaveQueueFull );
 		}
-		String prompt = getResources().getString( promptId, pictureFile.toString() );
-		Toast.makeText( this, prompt, Toast.LENGTH_LONG ).show();
 		mCameraController.soundShutter( true );
 	}
 
+	@Override
+	public void burstFinished(int count) {
+		Log.d( "Burst capture finished.", "taken", count );
+		mBurstCapture.finish();
+		if( mCameraController.getState() != CameraController.CAMERA_STATE.NOTINITIALIZED ) {
+			mCameraController.soundShutter( true );
+		}
+	}
+
+	@Override
+	public void onBurstPicture(byte[] jpeg, double sharpness) {
+		if( queueJpeg( jpeg, mBurstQuad ) == null ) {
+			showToast( R.string.promptSaveQueueFull );
+		}
+	}
+
+	@Override
+	public void onBurstFinished(int captured, int kept) {
+		Log.d( "Burst pictures scored.", "captured", captured, "kept", kept );
+	}
+
+	// Queue the picture to be saved. The board in it is recorded into the
+	// history if kept, so the history file is returned and reported.
+	private File queueJpeg( byte[] jpeg, float[] quad ) {
+		BoardHistory history = mBoardHistory;
+		if( quad != null && history != null ) {
+			return mPictureSaver.keep( jpeg, newRecorder( quad, history ),
+									   history.getFile() );
+		}
+		return mPictureSaver.save( jpeg, newRectifier( quad ) );
+	}
+
+	// Processor to record the board in the picture into the history. If it
+	// fails, the picture is saved as it is.
+	private PictureSaver.Processor newRecorder( final float[] quad,
+												final BoardHistory history ) {
+		final long time = System.currentTimeMillis();
+		return new PictureSaver.Processor() {
+			@Override
+			public byte[] process(byte[] data) {
+				try {
+					mKeystoneCorrector.record( data, quad, history, time );
+					return null;
+				} catch (IOException | RuntimeException e) {
+					Log.e( e, "Record the board failed, save the picture as it is." );
+					return data;
+				}
+			}
+		};
+	}
+
+	// Processor to rectify the board in the picture, and to enhance it. Null
+	// if neither to do.
+	private PictureSaver.Processor newRectifier( final float[] quad ) {
+		if( quad == null && !ENHANCE_PICTURES ) {
+			return null;
+		}
+		return new PictureSaver.Processor() {
+			@Override
+			public byte[] process(byte[] data) {
+				try {
+					return quad == null
+							? mKeystoneCorrector.enhance( data )
+							: mKeystoneCorrector.correct( data, quad );
+				} catch (IOException | RuntimeException e) {
+					Log.e( e, "Process the picture failed, save it as it is." );
+					return data;
+				}
+			}
+		};
+	}
+
+	@Override
+	public void onPictureSaved(File file) {
+		String prompt
+			= getResources().getString( R.string.promptSavePictureSuccess,
+										file.toString() );
+		Toast.makeText( this, prompt, Toast.LENGTH_LONG ).show();
+	}
+
+	@Override
+	public void onPictureSaveFailed(File file, Exception e) {
+		String prompt
+			= getResources().getString( R.string.promptSavePictureFailed,
+										file.toString() );
+		Toast.makeText( this, prompt, Toast.LENGTH_LONG ).show();
+	}
+
     /**
      * Shows a {@link Toast} on the UI thread.
      *
@@ -227,39 +540,31 @@ public class CaptureActivity extends Activity
 	}
 	
 	public void onTakePicture( View v ) {
+		if( mCameraController.isInBurst() ) {
+			return;
+		}
+		if( !mPictureSaver.hasCapacity() ) {
+			showToast( R.string.promptSaveQueueFull );
+			return;
+		}
+		float[] quad = new float[QuadDetector.QUAD_SIZE];
+		mCaptureQuads.add( mFrameAnalyzer.getBoardQuad( quad ) ? quad : null );
 		mCameraController.soundShutter( false );
 		mCameraController.takePicture();
 	}
-
-	private void processPreviewFrame(byte[] frameData, final int width, final int height) {
-		mCameraController.setPreviewFrameProcessing( true );
-		if( mBitmap == null ) {
-			mBitmap = Bitmap.createBitmap(width, height,
-		            Bitmap.Config.ARGB_8888);
-			mPreviewOperator.setImageBitmap(mBitmap);
-		}
-		
-		int max = 0;
-		int pos = 0;
-		int len = frameData.length*2/3;
-		for( int i = 0; i < len; i++ ) {
-			int data = frameData[i] & 0xFF;
-			if( data > max ) {
-				max = data;
-				pos = i;
-			}
+	
+	private void onTakeBurst() {
+		if( mCameraController.isInBurst() ) {
+			return;
 		}
-		int x = pos % width, y = pos / width;
-		x = Math.min( x, width - 101 );
-		y = Math.min( y, height - 101 );
-		int pixels[] = new int[100*100];
-		mBitmap.setPixels(pixels, 0, 100, x, y, 100, 100);
-		for( int i = 0; i < pixels.length; i++ ){
-			pixels[i] = 0xFFFF0000;
+		if( !mPictureSaver.hasCapacity() ) {
+			showToast( R.string.promptSaveQueueFull );
+			return;
 		}
-		mPreviewOperator.invalidate();
-		mBitmap.setPixels(pixels, 0, 100, x, y, 100, 100);
-		mPreviewOperator.setImageBitmap(mBitmap);
-		mCameraController.setPreviewFrameProcessing( false );
+		float[] quad = new float[QuadDetector.QUAD_SIZE];
+		mBurstQuad = mFrameAnalyzer.getBoardQuad( quad ) ? quad : null;
+		mBurstCapture.start( BURST_MODE );
+		mCameraController.soundShutter( false );
+		mCameraController.takeBurst( BURST_COUNT );
 	}
 }
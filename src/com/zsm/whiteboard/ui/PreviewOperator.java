@@ -1,15 +1,19 @@
 package com.zsm.whiteboard.ui;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Path;
 import android.graphics.Rect;
+import android.graphics.RectF;
 import android.os.Handler;
 import android.util.AttributeSet;
 import android.widget.ImageView;
 
+import com.zsm.whiteboard.camera.PipelineMetrics;
+
 public class PreviewOperator extends ImageView {
 
 	private static final int INDICATOR_TIME = 1000;
@@ -17,6 +21,13 @@ public class PreviewOperator extends ImageView {
 	private static final int COLOR_SUCCESS = Color.GREEN;
 	private static final int COLOR_FOCUSING = 0xeed7d7d7;
 	private static final float FOCUS_AREA_SIZE_FACTOR = .05f;
+	private static final int COLOR_BOARD = 0xcc33b5e5;
+	private static final int COLOR_METRICS = 0xeeffffff;
+	private static final float METRICS_TEXT_SIZE = 22;
+	// The enhanced board is shown in the top right corner, in this fraction
+	// of the view at most
+	private static final float ENHANCED_FRACTION = .4f;
+	private static final float ENHANCED_MARGIN = 16;
 	
 	private static int mFocusAreaSize = 0;
 	private static int mFocusPathSegment;
@@ -24,12 +35,29 @@ public class PreviewOperator extends ImageView {
 	private Path mFocusIndicator;
 	private Handler mHandler;
 	private Runnable mDismissIndicatorCallback;
+	private Paint mBoardPaint;
+	private final Path mBoardPath = new Path();
+	private final float[] mBoardQuad = new float[8];
+	private boolean mBoardShown;
+	private PipelineMetrics mMetrics;
+	private Paint mMetricsPaint;
+	private String[] mMetricsLines;
+	private int mFocusRequestId;
+	private Bitmap mEnhancedBitmap;
+	private final RectF mEnhancedRect = new RectF();
 	
 	public PreviewOperator(Context context, AttributeSet attrs) {
 		super(context, attrs);
 		mPaint = new Paint();
 		mPaint.setStyle(Paint.Style.STROKE);
 		mPaint.setStrokeWidth(5);
+		mBoardPaint = new Paint( Paint.ANTI_ALIAS_FLAG );
+		mBoardPaint.setStyle(Paint.Style.STROKE);
+		mBoardPaint.setStrokeWidth(4);
+		mBoardPaint.setColor( COLOR_BOARD );
+		mMetricsPaint = new Paint( Paint.ANTI_ALIAS_FLAG );
+		mMetricsPaint.setColor( COLOR_METRICS );
+		mMetricsPaint.setTextSize( METRICS_TEXT_SIZE );
         mHandler = new Handler();
         mDismissIndicatorCallback = new Runnable() {
             @Override
@@ -49,10 +77,47 @@ public class PreviewOperator extends ImageView {
 
 	@Override
 	public void onDraw(Canvas canvas) {
+		long start = System.nanoTime();
 		super.onDraw(canvas);
+		if( mBoardShown ) {
+			int w = getWidth();
+			int h = getHeight();
+			mBoardPath.reset();
+			mBoardPath.moveTo( mBoardQuad[0]*w, mBoardQuad[1]*h );
+			for( int i = 2; i < mBoardQuad.length; i += 2 ) {
+				mBoardPath.lineTo( mBoardQuad[i]*w, mBoardQuad[i+1]*h );
+			}
+			mBoardPath.close();
+			canvas.drawPath( mBoardPath, mBoardPaint );
+		}
+		if( mEnhancedBitmap != null ) {
+			drawEnhanced( canvas );
+		}
 		if(mFocusIndicator != null){
 			canvas.drawPath(mFocusIndicator, mPaint);
 	    }
+		if( mMetricsLines != null ) {
+			float y = METRICS_TEXT_SIZE*2;
+			for( String line : mMetricsLines ) {
+				canvas.drawText( line, METRICS_TEXT_SIZE, y, mMetricsPaint );
+				y += METRICS_TEXT_SIZE*1.2f;
+			}
+		}
+		if( mMetrics != null ) {
+			mMetrics.recordSince( PipelineMetrics.STAGE.DRAW, start );
+		}
+	}
+
+	private void drawEnhanced( Canvas canvas ) {
+		float bw = mEnhancedBitmap.getWidth();
+		float bh = mEnhancedBitmap.getHeight();
+		float scale = Math.min( getWidth()*ENHANCED_FRACTION/bw,
+								getHeight()*ENHANCED_FRACTION/bh );
+		float right = getWidth() - ENHANCED_MARGIN;
+		mEnhancedRect.set( right - bw*scale, ENHANCED_MARGIN, right,
+						   ENHANCED_MARGIN + bh*scale );
+		canvas.drawBitmap( mEnhancedBitmap, null, mEnhancedRect, null );
+		canvas.drawRect( mEnhancedRect, mBoardPaint );
 	}
 
 	public void setTouched(float x, float y) {
@@ -81,7 +146,73 @@ public class PreviewOperator extends ImageView {
 		mFocusIndicator.rLineTo( 0, -mFocusPathSegment);
 	}
 
-	public void setFocusSuccess( boolean success ) {
+	/**
+	 * Outline the board detected. It MUST be invoked in the UI thread.
+	 * 
+	 * @param quad corners of the board, top left, top right, bottom right and
+	 * 			bottom left, normalized by the size of the preview frame. Null
+	 * 			to hide the outline.
+	 */
+	public void setBoardQuad( float[] quad ) {
+		if( quad == null ) {
+			if( mBoardShown ) {
+				mBoardShown = false;
+				invalidate();
+			}
+			return;
+		}
+		System.arraycopy( quad, 0, mBoardQuad, 0, mBoardQuad.length );
+		mBoardShown = true;
+		invalidate();
+	}
+	
+	/**
+	 * Show the board enhanced over the preview. It MUST be invoked in the UI
+	 * thread, and the bitmap MUST NOT be changed until another one is set.
+	 * 
+	 * @param bitmap the board enhanced, or null to hide it
+	 */
+	public void setEnhancedBitmap( Bitmap bitmap ) {
+		mEnhancedBitmap = bitmap;
+		invalidate();
+	}
+	
+	/**
+	 * @param metrics metrics to record the drawing into, or null
+	 */
+	public void setPipelineMetrics( PipelineMetrics metrics ) {
+		mMetrics = metrics;
+	}
+	
+	/**
+	 * Show the metrics over the preview. It MUST be invoked in the UI thread.
+	 * 
+	 * @param text metrics in lines, or null to hide them
+	 */
+	public void setMetricsText( String text ) {
+		mMetricsLines = text == null ? null : text.split( "\n" );
+		invalidate();
+	}
+	
+	/**
+	 * @param requestId id of the focus requested for the last touch, only
+	 * 			its result will be shown
+	 */
+	public void setFocusRequest( int requestId ) {
+		mFocusRequestId = requestId;
+	}
+	
+	/**
+	 * Show the result of the focus. The result of a request other than the
+	 * last one is ignored, as the indicator is for the last touch.
+	 * 
+	 * @param requestId id of the request the result is for
+	 * @param success true, if focused
+	 */
+	public void setFocusSuccess( int requestId, boolean success ) {
+		if( requestId != mFocusRequestId ) {
+			return;
+		}
 		int color = success ? COLOR_SUCCESS : COLOR_FAILED;
 		mPaint.setColor( color );
 		invalidate();
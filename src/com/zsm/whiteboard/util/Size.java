@@ -1,8 +1,5 @@
 package com.zsm.whiteboard.util;
 
-import android.hardware.Camera;
-
-@SuppressWarnings("deprecation")
 public class Size {
 
     /** width of the picture */
@@ -15,11 +12,6 @@ public class Size {
         height = h;
     }
     
-    public Size( Camera.Size s ) {
-    	width = s.width;
-    	height = s.height;
-    }
-
 	public int area() {
 		return width*height;
 	}